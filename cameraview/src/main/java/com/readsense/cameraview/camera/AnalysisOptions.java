@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.readsense.cameraview.camera;
+
+import android.graphics.Rect;
+
+/**
+ * Describes the frames one {@link CameraView.Callback} wants to analyze, when that differs from
+ * the preview frames.
+ *
+ * <p>The options are copied when the callback is added; changing them afterwards has no
+ * effect.</p>
+ *
+ * @see CameraView#addCallback(CameraView.Callback, java.util.concurrent.Executor,
+ * AnalysisOptions)
+ */
+public final class AnalysisOptions {
+
+    int mWidth;
+
+    int mHeight;
+
+    Rect mRegion;
+
+    int mScaleMode = Nv21Scaler.SCALE_BOX;
+
+    boolean mGray;
+
+    public AnalysisOptions() {
+    }
+
+    AnalysisOptions(AnalysisOptions other) {
+        mWidth = other.mWidth;
+        mHeight = other.mHeight;
+        mRegion = other.mRegion == null ? null : new Rect(other.mRegion);
+        mScaleMode = other.mScaleMode;
+        mGray = other.mGray;
+    }
+
+    /**
+     * Asks for frames no larger than {@code width} x {@code height}. The region is shrunk to the
+     * largest size within these bounds that keeps its aspect ratio, and never enlarged.
+     * {@code 0} for both keeps the size of the region.
+     */
+    public AnalysisOptions setResolution(int width, int height) {
+        mWidth = width;
+        mHeight = height;
+        return this;
+    }
+
+    /**
+     * Restricts the frames to {@code region}, in the pixel coordinates of the frames delivered
+     * without options. The edges are moved outwards to even coordinates, and a region that
+     * misses the frame is ignored. {@code null} selects the whole frame.
+     */
+    public AnalysisOptions setRegion(Rect region) {
+        mRegion = region == null ? null : new Rect(region);
+        return this;
+    }
+
+    /**
+     * @param mode One of the {@code Nv21Scaler.SCALE_*} constants. Defaults to
+     *             {@link Nv21Scaler#SCALE_BOX}.
+     */
+    public AnalysisOptions setScaleMode(int mode) {
+        mScaleMode = mode;
+        return this;
+    }
+
+    /**
+     * Asks for {@link Frame#FORMAT_GRAY} frames instead of NV21, and marks the callback as
+     * luma-only so that no chroma is converted, rotated or scaled for it. Frames that need
+     * neither crop nor resize are delivered as they are without copying; read every frame through
+     * {@link Frame#getLuma()}.
+     */
+    public AnalysisOptions setGray(boolean gray) {
+        mGray = gray;
+        return this;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    public Rect getRegion() {
+        return mRegion == null ? null : new Rect(mRegion);
+    }
+
+    public int getScaleMode() {
+        return mScaleMode;
+    }
+
+    public boolean isGray() {
+        return mGray;
+    }
+
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.readsense.cameraview.camera;
+
+import android.graphics.ImageFormat;
+import android.graphics.Rect;
+
+/**
+ * Turns preview frames into the frames described by one {@link AnalysisOptions}. Used by one
+ * consumer at a time, on the thread that consumer runs on, so frames it drops never cost a
+ * resample.
+ */
+class AnalysisStage {
+
+    private final AnalysisOptions mOptions;
+
+    /** Every frame of this pool holds an output buffer, so there is nothing to release. */
+    private final FramePool mFramePool = new FramePool(null);
+
+    private final ByteArrayPool mOutputPool = new ByteArrayPool(3);
+
+    private final ByteArrayPool mScratchPool = new ByteArrayPool(1);
+
+    AnalysisStage(AnalysisOptions options) {
+        mOptions = new AnalysisOptions(options);
+    }
+
+    boolean isGray() {
+        return mOptions.mGray;
+    }
+
+    /**
+     * @return A new reference to the frame to deliver instead of {@code frame}. That is
+     * {@code frame} itself if it already matches the options, or if its layout or the region
+     * cannot be handled.
+     */
+    Frame process(Frame frame, boolean parallel) {
+        final int width = frame.getWidth();
+        final int height = frame.getHeight();
+        if ((width & 1) != 0 || (height & 1) != 0) {
+            return frame.retain();
+        }
+        int left = 0;
+        int top = 0;
+        int right = width;
+        int bottom = height;
+        final Rect region = mOptions.mRegion;
+        if (region != null) {
+            // NV21 chroma covers 2x2 luma pixels, so grow the region to even edges
+            left = Math.max(0, region.left) & ~1;
+            top = Math.max(0, region.top) & ~1;
+            right = Math.min(width, (region.right + 1) & ~1);
+            bottom = Math.min(height, (region.bottom + 1) & ~1);
+            if (right <= left || bottom <= top) {
+                return frame.retain();
+            }
+        }
+        final int cropWidth = right - left;
+        final int cropHeight = bottom - top;
+        final boolean gray = mOptions.mGray;
+        final long maxWidth = mOptions.mWidth > 0 ? mOptions.mWidth : Integer.MAX_VALUE;
+        final long maxHeight = mOptions.mHeight > 0 ? mOptions.mHeight : Integer.MAX_VALUE;
+        int dstWidth = cropWidth;
+        int dstHeight = cropHeight;
+        if (cropWidth > maxWidth || cropHeight > maxHeight) {
+            if (cropWidth * maxHeight > cropHeight * maxWidth) {
+                dstWidth = (int) maxWidth;
+                dstHeight = (int) (cropHeight * maxWidth / cropWidth);
+            } else {
+                dstWidth = (int) (cropWidth * maxHeight / cropHeight);
+                dstHeight = (int) maxHeight;
+            }
+        }
+        if (!gray) {
+            dstWidth &= ~1;
+            dstHeight &= ~1;
+        }
+        final int minSize = gray ? 1 : 2;
+        dstWidth = Math.max(minSize, dstWidth);
+        dstHeight = Math.max(minSize, dstHeight);
+        if (gray) {
+            return processGray(frame, left, top, cropWidth, cropHeight, dstWidth, dstHeight,
+                    parallel);
+        }
+        final boolean packedNv21 = frame.getData() != null
+                && frame.getFormat() == ImageFormat.NV21 && frame.getRowStride() == width;
+        if (packedNv21 && cropWidth == width && cropHeight == height
+                && dstWidth == width && dstHeight == height) {
+            return frame.retain();
+        }
+        byte[] scratch = null;
+        final byte[] nv21;
+        if (packedNv21) {
+            nv21 = frame.getData();
+        } else if (frame.getPlanes() != null) {
+            scratch = mScratchPool.obtain(Nv21Converter.getNv21Size(width, height));
+            Nv21Converter.convert(frame, scratch);
+            nv21 = scratch;
+        } else {
+            return frame.retain();
+        }
+        final byte[] out = mOutputPool.obtain(Nv21Scaler.getOutputSize(dstWidth, dstHeight, false));
+        Nv21Scaler.scale(nv21, width, height, left, top, cropWidth, cropHeight, out,
+                dstWidth, dstHeight, mOptions.mScaleMode, false, parallel);
+        if (scratch != null) {
+            mScratchPool.recycle(scratch);
+        }
+        return obtain(frame, out, dstWidth, dstHeight, ImageFormat.NV21);
+    }
+
+    /**
+     * Reads the luma plane in place and never touches chroma. A frame that needs neither crop nor
+     * resize is passed through, to be read through {@link Frame#getLuma()}.
+     */
+    private Frame processGray(Frame frame, int left, int top, int cropWidth, int cropHeight,
+            int dstWidth, int dstHeight, boolean parallel) {
+        final Frame.Luma luma = frame.getLuma();
+        if (luma == null || (cropWidth == frame.getWidth() && cropHeight == frame.getHeight()
+                && dstWidth == cropWidth && dstHeight == cropHeight)) {
+            return frame.retain();
+        }
+        byte[] scratch = null;
+        final byte[] src;
+        final int offset;
+        final int rowStride;
+        if (luma.getArray() != null) {
+            src = luma.getArray();
+            offset = luma.getOffset();
+            rowStride = luma.getRowStride();
+        } else {
+            scratch = mScratchPool.obtain(luma.getWidth() * luma.getHeight());
+            luma.copyTo(scratch);
+            src = scratch;
+            offset = 0;
+            rowStride = luma.getWidth();
+        }
+        final byte[] out = mOutputPool.obtain(Nv21Scaler.getOutputSize(dstWidth, dstHeight, true));
+        Nv21Scaler.scaleGray(src, offset, rowStride, left, top, cropWidth, cropHeight, out,
+                dstWidth, dstHeight, mOptions.mScaleMode, parallel);
+        if (scratch != null) {
+            mScratchPool.recycle(scratch);
+        }
+        return obtain(frame, out, dstWidth, dstHeight, Frame.FORMAT_GRAY);
+    }
+
+    private Frame obtain(Frame source, byte[] data, int width, int height, int format) {
+        final Frame result = mFramePool.obtain(data, mOutputPool);
+        result.setInfo(width, height, format, width, source.getRotation(), source.isMirrored(),
+                source.getTimestamp(), source.getSequence());
+        return result;
+    }
+
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.readsense.cameraview.camera;
+
+/**
+ * Recycles output buffers of one size for the image kernels. Changing the size drops the buffers
+ * of the old size.
+ */
+class ByteArrayPool {
+
+    private final byte[][] mFree;
+
+    private int mFreeCount;
+
+    private int mSize;
+
+    /**
+     * @param capacity The number of free buffers kept for reuse.
+     */
+    ByteArrayPool(int capacity) {
+        mFree = new byte[capacity][];
+    }
+
+    /**
+     * @return A buffer of exactly {@code size} bytes with undefined content.
+     */
+    synchronized byte[] obtain(int size) {
+        if (size != mSize) {
+            while (mFreeCount > 0) {
+                mFree[--mFreeCount] = null;
+            }
+            mSize = size;
+        }
+        if (mFreeCount > 0) {
+            final byte[] buffer = mFree[--mFreeCount];
+            mFree[mFreeCount] = null;
+            return buffer;
+        }
+        return new byte[size];
+    }
+
+    synchronized void recycle(byte[] buffer) {
+        if (buffer.length == mSize && mFreeCount < mFree.length) {
+            mFree[mFreeCount++] = buffer;
+        }
+    }
+
+}
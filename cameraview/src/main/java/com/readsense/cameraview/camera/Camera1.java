@@ -25,6 +25,7 @@ import android.view.SurfaceHolder;
 import com.readsense.cameraview.modle.CameraParameters;
 
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.List;
 
 
@@ -32,8 +33,9 @@ import java.util.List;
 class Camera1 extends CameraViewImpl {
 
     private static final int INVALID_CAMERA_ID = 0;
+    private static final String CAPABILITY_KEY_PREFIX = "camera1/";
     private int mCameraId;
-    private Camera mCamera;
+    private volatile Camera mCamera;
     private Camera.Parameters mCameraParameters;
     private final Camera.CameraInfo mCameraInfo = new Camera.CameraInfo();
     private boolean mShowingPreview; //是否显示预览
@@ -41,28 +43,78 @@ class Camera1 extends CameraViewImpl {
     private int LANDSCAPE_90 = 90;
     private int LANDSCAPE_270 = 270;
     private CameraParameters mParameters;
+    private final PreviewBufferPool mBufferPool = new PreviewBufferPool();
+    // Shared across instances and restarts, null until the camera has been opened once
+    private CameraCapabilities mCapabilities;
+    // The values last handed to Camera#setParameters, so that unchanged ones are not pushed again
+    private Size mAppliedSize;
+    private int mAppliedRotation = -1;
+    private String mAppliedFocusMode;
+    private int[] mAppliedFpsRange;
+    private final CameraThread mCameraThread = new CameraThread("CameraView-Camera1");
+    private final CameraController mController = new CameraController(mCameraThread,
+            new CameraController.Operations() {
+                @Override
+                public void open() {
+                    startInternal();
+                }
+
+                @Override
+                public void configure() {
+                    if (mCamera != null) {
+                        // The surface may only now be ready for the session being opened
+                        mTimings.begin(CameraTimings.STEP_SET_PREVIEW_TEXTURE);
+                        setUpPreview();
+                        mTimings.end(CameraTimings.STEP_SET_PREVIEW_TEXTURE);
+                        adjustCameraParameters();
+                    }
+                }
+
+                @Override
+                public void switchCamera() {
+                    // Only one camera can be opened at a time, so the old one is released first
+                    startInternal();
+                }
+
+                @Override
+                public void close() {
+                    stopInternal();
+                }
+            });
+
+    private final Camera.PreviewCallback mPreviewCallback = new Camera.PreviewCallback() {
+        @Override
+        public void onPreviewFrame(byte[] data, Camera camera) {
+            final boolean traced = CameraTrace.begin("Camera1.onPreviewFrame");
+            try {
+                if (mBufferPool.onFrameDelivered(data)) {
+                    onBufferExhausted();
+                }
+                dispatchFrame(data, camera);
+            } finally {
+                CameraTrace.end(traced);
+            }
+        }
+    };
 
 
     Camera1(Callback callback, PreviewImpl preview) {
-        super(callback, preview);
+        super(callback, preview, CameraTimings.API_CAMERA1);
         preview.setCallback(new PreviewImpl.Callback() {
             @Override
             public void onSurfaceChanged() {
-                if (mCamera != null) {
-                    setUpPreview();
-                    adjustCameraParameters();
-                }
+                mController.reconfigure();
             }
         });
     }
 
     @Override
     public void setCameraParameters(CameraParameters ps) {
-        if (null == mParameters) return;
+        if (null == ps) return;
         this.mParameters = ps;
         if (isCameraOpened()) {
-            stop();
-            start();
+            // Reopens on the camera thread; queued restarts collapse into one
+            mController.start(null);
         }
     }
 
@@ -80,15 +132,43 @@ class Camera1 extends CameraViewImpl {
      */
     @Override
     boolean start() {
+        return start(null);
+    }
+
+    @Override
+    boolean start(CameraController.Listener listener) {
+        mController.start(listener);
+        return true;
+    }
+
+    /**
+     * Reopens with {@code cameraId}, keeping the preview surface and the callback buffers, which
+     * are reused if the new camera has the same preview size.
+     */
+    @Override
+    boolean switchCamera(int cameraId, CameraController.Listener listener) {
+        getCameraParameters().setCameraId(cameraId);
+        mController.switchCamera(listener);
+        return true;
+    }
+
+    private void startInternal() {
+        loadCapabilitySnapshot();
+        stopInternal();
+        beginTimings();
+        mTimings.begin(CameraTimings.STEP_CHOOSE_CAMERA);
         chooseCamera();
-        stop();
+        mTimings.end(CameraTimings.STEP_CHOOSE_CAMERA);
         openCamera();
         if (mPreview.isReady()) {
+            mTimings.begin(CameraTimings.STEP_SET_PREVIEW_TEXTURE);
             setUpPreview();
+            mTimings.end(CameraTimings.STEP_SET_PREVIEW_TEXTURE);
         }
         mShowingPreview = true;
+        mTimings.begin(CameraTimings.STEP_START_PREVIEW);
         startPreview();
-        return true;
+        mTimings.end(CameraTimings.STEP_START_PREVIEW);
     }
 
     /**
@@ -97,7 +177,20 @@ class Camera1 extends CameraViewImpl {
     public void startPreview() {
         if (mCamera != null) {
             mCamera.startPreview();
-            mCamera.setPreviewCallback(mCallback);
+            Camera.Size size = mCameraParameters.getPreviewSize();
+            mFrameWidth = size.width;
+            mFrameHeight = size.height;
+            mFrameFormat = mCameraParameters.getPreviewFormat();
+            mFrameRowStride = getRowStride(mFrameWidth, mFrameFormat);
+            if (mParameters.mPreviewBufferCount > 0) {
+                // Drops the buffers still queued from the previous preview before queueing the pool
+                mCamera.setPreviewCallbackWithBuffer(null);
+                mBufferPool.attach(mCamera, mParameters.mPreviewBufferCount,
+                        mFrameWidth, mFrameHeight, mFrameFormat);
+                mCamera.setPreviewCallbackWithBuffer(mPreviewCallback);
+            } else {
+                mCamera.setPreviewCallback(mPreviewCallback);
+            }
         }
     }
 
@@ -106,16 +199,30 @@ class Camera1 extends CameraViewImpl {
      */
     @Override
     void stop() {
-        if (mCamera != null) {
+        mController.stop();
+    }
+
+    private void stopInternal() {
+        final boolean opened = mCamera != null;
+        if (opened) {
             mCamera.setPreviewCallback(null);
+            mTimings.begin(CameraTimings.STEP_STOP);
             mCamera.stopPreview();
+            mTimings.end(CameraTimings.STEP_STOP);
         }
+        mBufferPool.detach();
         mShowingPreview = false;
+        mTimings.begin(CameraTimings.STEP_RELEASE);
         releaseCamera();
+        mTimings.end(CameraTimings.STEP_RELEASE);
+        if (opened) {
+            endTimings();
+        }
     }
 
     @SuppressLint("NewApi")
     void setUpPreview() {
+        final boolean traced = CameraTrace.begin("Camera1.setUpPreview");
         try {
             if (mPreview.getOutputClass() == SurfaceHolder.class) {
                 final boolean needsToStopPreview = mShowingPreview && Build.VERSION.SDK_INT < 14;
@@ -131,6 +238,8 @@ class Camera1 extends CameraViewImpl {
             }
         } catch (IOException e) {
             throw new RuntimeException(e);
+        } finally {
+            CameraTrace.end(traced);
         }
     }
 
@@ -141,25 +250,40 @@ class Camera1 extends CameraViewImpl {
 
 
     @Override
-    List<Camera.Size> getSupportedPreviewSize() {
-        if (mCamera != null) {
-            List<Camera.Size> sizes = mCamera.getParameters().getSupportedPreviewSizes();
-            return sizes;
-        }
-        return null;
+    List<Size> getSupportedPreviewSize() {
+        final CameraCapabilities capabilities = mCapabilities;
+        return capabilities != null ? toSizes(capabilities.getPreviewSizes()) : null;
     }
 
 
     @Override
-    void setDisplayOrientation(int displayOrientation) {
+    public void releaseBuffer(byte[] data) {
+        mBufferPool.recycle(data);
+    }
+
+    @Override
+    void setDisplayOrientation(final int displayOrientation) {
+        if (postToCameraThread(new Runnable() {
+            @Override
+            public void run() {
+                setDisplayOrientation(displayOrientation);
+            }
+        })) {
+            return;
+        }
         if (mParameters == null) mParameters = new CameraParameters();
         if (mParameters.mDisplayOrientation == displayOrientation) {
             return;
         }
         mParameters.mDisplayOrientation = displayOrientation;
+        updateFrameRotation();
         if (isCameraOpened()) {
-            mCameraParameters.setRotation(calcCameraRotation(displayOrientation));
-            mCamera.setParameters(mCameraParameters);
+            final int rotation = calcCameraRotation(displayOrientation);
+            if (rotation != mAppliedRotation) {
+                mCameraParameters.setRotation(rotation);
+                mCamera.setParameters(mCameraParameters);
+                mAppliedRotation = rotation;
+            }
             final boolean needsToStopPreview = mShowingPreview && Build.VERSION.SDK_INT < 14;
             if (needsToStopPreview) {
                 mCamera.stopPreview();
@@ -173,61 +297,201 @@ class Camera1 extends CameraViewImpl {
 
 
     /**
-     * This rewrites {@link #} and {@link #mCameraInfo}.
+     * Posts {@code task} to {@link #mCameraThread} when it is running and this is called from
+     * another thread.
+     *
+     * @return {@code true} if the task was posted and the caller should return.
+     */
+    private boolean postToCameraThread(Runnable task) {
+        return !mCameraThread.isCurrentThread() && mCameraThread.post(task);
+    }
+
+    /**
+     * This rewrites {@link #mCameraId}, {@link #mCameraInfo} and {@link #mCapabilities}.
      */
     private void chooseCamera() {
-        for (int i = 0, count = Camera.getNumberOfCameras(); i < count; i++) {
-            Camera.getCameraInfo(i, mCameraInfo);
-            if (i == mParameters.CameraId) {
-                mCameraId = i;
-                return;
-            }
+        final int id = mParameters.CameraId;
+        mCameraId = id >= 0 && id < Camera.getNumberOfCameras() ? id : INVALID_CAMERA_ID;
+        loadCameraInfo();
+    }
+
+    /**
+     * Fills {@link #mCameraInfo} from the cached capabilities of {@link #mCameraId}, asking the
+     * camera service only for a camera that has never been opened.
+     */
+    private void loadCameraInfo() {
+        mCapabilities = CameraCapabilities.get(CAPABILITY_KEY_PREFIX + mCameraId);
+        if (mCapabilities == null) {
+            Camera.getCameraInfo(mCameraId, mCameraInfo);
+            return;
+        }
+        mCameraInfo.facing = mCapabilities.getFacing() == CameraParameters.FACING_FRONT
+                ? Camera.CameraInfo.CAMERA_FACING_FRONT : Camera.CameraInfo.CAMERA_FACING_BACK;
+        mCameraInfo.orientation = mCapabilities.getSensorOrientation();
+    }
+
+    /**
+     * Collects everything the camera supports out of {@code parameters}, which is only valid for
+     * the camera they were read from.
+     */
+    private CameraCapabilities buildCapabilities(Camera.Parameters parameters) {
+        final List<int[]> fpsRanges = parameters.getSupportedPreviewFpsRange();
+        final List<String> focusModes = parameters.getSupportedFocusModes();
+        return new CameraCapabilities.Builder(CAPABILITY_KEY_PREFIX + mCameraId)
+                .setFacing(mCameraInfo.facing == Camera.CameraInfo.CAMERA_FACING_FRONT
+                        ? CameraParameters.FACING_FRONT : CameraParameters.FACING_BACK)
+                .setSensorOrientation(mCameraInfo.orientation)
+                .setPreviewSizes(buildCatalog(parameters.getSupportedPreviewSizes()))
+                .setJpegSizes(buildCatalog(parameters.getSupportedPictureSizes()))
+                .setFpsRanges(fpsRanges == null ? new int[0][]
+                        : fpsRanges.toArray(new int[fpsRanges.size()][]), 1000)
+                .setFocusModes(focusModes == null ? new String[0]
+                        : focusModes.toArray(new String[focusModes.size()]))
+                .build();
+    }
+
+    private static SizeCatalog buildCatalog(List<Camera.Size> sizes) {
+        if (sizes == null) {
+            return SizeCatalog.of(new long[0]);
+        }
+        final long[] packed = new long[sizes.size()];
+        for (int i = 0; i < packed.length; i++) {
+            packed[i] = SizeCatalog.pack(sizes.get(i).width, sizes.get(i).height);
         }
-        mCameraId = INVALID_CAMERA_ID;
+        return SizeCatalog.of(packed);
     }
 
     private void openCamera() {
         if (mCamera != null) {
             releaseCamera();
         }
+        mTimings.begin(CameraTimings.STEP_OPEN);
         try {
             mCamera = Camera.open(mCameraId);
         } catch (Exception e) {
             mCameraId = mCameraId == 0 ? 1 : 0;
             mCamera = Camera.open(mCameraId);
+            loadCameraInfo();
         }
+        mTimings.end(CameraTimings.STEP_OPEN);
+        mTimings.setCameraId(String.valueOf(mCameraId));
+        // Still read once per open: setParameters needs a Parameters object of this camera
+        mTimings.begin(CameraTimings.STEP_GET_PARAMETERS);
         mCameraParameters = mCamera.getParameters();
+        mTimings.end(CameraTimings.STEP_GET_PARAMETERS);
+        if (mCapabilities == null) {
+            mCapabilities = CameraCapabilities.put(buildCapabilities(mCameraParameters));
+            CapabilitySnapshot.save();
+        }
+        mAppliedSize = null;
+        mAppliedRotation = -1;
+        mAppliedFocusMode = null;
+        mAppliedFpsRange = null;
+        mFpsRange = null;
+        resetFrameSequence();
+        updateFrameRotation();
+        mTimings.begin(CameraTimings.STEP_SET_PARAMETERS);
         adjustCameraParameters();
+        mTimings.end(CameraTimings.STEP_SET_PARAMETERS);
         mCamera.setDisplayOrientation(calcDisplayOrientation(mParameters.mDisplayOrientation));
         mCallback.onCameraOpened();
     }
 
     void adjustCameraParameters() {
-        if (mParameters.mCameraSize == null) {
-            Camera.Size size = mCameraParameters.getSupportedPictureSizes().get(0);//设置摄像头支持该比例下最高分辨率
-            mParameters.mCameraSize = new Size(size.width, size.height);
+        final boolean traced = CameraTrace.begin("Camera1.adjustCameraParameters");
+        try {
+            applyCameraParameters();
+        } finally {
+            CameraTrace.end(traced);
         }
+    }
 
-        if (mShowingPreview) {
+    private void applyCameraParameters() {
+        if (mCameraParameters == null || mCamera == null) return;
+        // An explicit camera size wins; otherwise pick the cheapest preview size that serves the view
+        final Size size = mParameters.mCameraSize != null ? mParameters.mCameraSize : choosePreviewSize();
+        final int rotation = calcCameraRotation(mParameters.mDisplayOrientation);
+        final String focusMode = chooseFocusMode(mAutoFocus);
+        final int[] fpsRange = chooseFpsRange();
+        final boolean sizeChanged = !size.equals(mAppliedSize);
+        final boolean fpsChanged = fpsRange != null && !Arrays.equals(fpsRange, mAppliedFpsRange);
+        if (!sizeChanged && rotation == mAppliedRotation && !fpsChanged
+                && (focusMode == null || focusMode.equals(mAppliedFocusMode))) {
+            return;
+        }
+        // Only the preview size needs the stream to stop; rotation and focus apply live
+        boolean restart = sizeChanged && mShowingPreview;
+        if (restart) {
             mCamera.stopPreview();
         }
-        if (mCameraParameters == null || mCamera == null) return;
-        mCameraParameters.setPreviewSize(mParameters.mCameraSize.getWidth(), mParameters.mCameraSize.getHeight());
-        mCameraParameters.setRotation(calcCameraRotation(mParameters.mDisplayOrientation));
-        setAutoFocusInternal(mAutoFocus);
+        if (sizeChanged) {
+            mCameraParameters.setPreviewSize(size.getWidth(), size.getHeight());
+        }
+        mCameraParameters.setRotation(rotation);
+        if (focusMode != null) {
+            mCameraParameters.setFocusMode(focusMode);
+        }
+        int[] previousFpsRange = null;
+        if (fpsChanged) {
+            previousFpsRange = new int[2];
+            mCameraParameters.getPreviewFpsRange(previousFpsRange);
+            mCameraParameters.setPreviewFpsRange(fpsRange[Camera.Parameters.PREVIEW_FPS_MIN_INDEX],
+                    fpsRange[Camera.Parameters.PREVIEW_FPS_MAX_INDEX]);
+        }
         try {
             mCamera.setParameters(mCameraParameters);
         } catch (Exception e) {
+            if (mShowingPreview && !restart) {
+                mCamera.stopPreview();
+                restart = true;
+            }
+            // The new range may be what the driver rejected, so the retry keeps the previous one
+            if (previousFpsRange != null) {
+                mCameraParameters.setPreviewFpsRange(
+                        previousFpsRange[Camera.Parameters.PREVIEW_FPS_MIN_INDEX],
+                        previousFpsRange[Camera.Parameters.PREVIEW_FPS_MAX_INDEX]);
+            }
             mParameters.mPreviewSize = new Size(640, 480);
             mCameraParameters.setPreviewSize(640, 480);
             mCamera.setParameters(mCameraParameters);
         }
-        if (mShowingPreview) {
+        // Remember the requested size even if it fell back, so that it is not retried every time
+        mAppliedSize = size;
+        mAppliedRotation = rotation;
+        mAppliedFocusMode = focusMode;
+        mAppliedFpsRange = fpsRange;
+        updateFpsRange();
+        if (restart) {
             startPreview();
         }
     }
 
 
+    private Size choosePreviewSize() {
+        final boolean swap = calcDisplayOrientation(mParameters.mDisplayOrientation) % 180 != 0;
+        // Camera1 cannot tell the frame rate per size, so the target fps does not filter here
+        return PreviewSizeSelector.select(mCapabilities.getPreviewSizes(), mParameters, mPreview.getWidth(),
+                mPreview.getHeight(), swap, null);
+    }
+
+    /**
+     * @return The supported range for {@link CameraParameters#mFpsMode}, or {@code null} to keep
+     * the current one.
+     */
+    private int[] chooseFpsRange() {
+        final int[][] ranges = mCapabilities.getFpsRanges();
+        final int index = FpsRangeSelector.select(ranges, mCapabilities.getFpsScale(),
+                mParameters.mFpsMode, mParameters.mFps);
+        return index < 0 ? null : ranges[index];
+    }
+
+    private void updateFpsRange() {
+        final int[] range = new int[2];
+        mCameraParameters.getPreviewFpsRange(range);
+        mFpsRange = new int[]{range[Camera.Parameters.PREVIEW_FPS_MIN_INDEX] / 1000,
+                range[Camera.Parameters.PREVIEW_FPS_MAX_INDEX] / 1000};
+    }
+
     private void releaseCamera() {
         if (mCamera != null) {
             mCamera.release();
@@ -236,6 +500,13 @@ class Camera1 extends CameraViewImpl {
         }
     }
 
+    private void updateFrameRotation() {
+        final boolean front = mCameraInfo.facing == Camera.CameraInfo.CAMERA_FACING_FRONT;
+        mFrameRotation = calcFrameRotation(mCameraInfo.orientation, front,
+                mParameters.mDisplayOrientation);
+        mFrameMirrored = front;
+    }
+
     private int calcDisplayOrientation(int screenOrientationDegrees) {
         int degrees;
         if (mCameraInfo.facing == Camera.CameraInfo.CAMERA_FACING_FRONT) {
@@ -275,24 +546,22 @@ class Camera1 extends CameraViewImpl {
     }
 
     /**
-     * @return {@code true} if {@link #mCameraParameters} was modified.
+     * @return The focus mode to use, or {@code null} if the camera is not opened.
      */
-    private boolean setAutoFocusInternal(boolean autoFocus) {
-        mAutoFocus = autoFocus;
-        if (isCameraOpened()) {
-            final List<String> modes = mCameraParameters.getSupportedFocusModes();
-            if (autoFocus && modes.contains(Camera.Parameters.FOCUS_MODE_CONTINUOUS_PICTURE)) {
-                mCameraParameters.setFocusMode(Camera.Parameters.FOCUS_MODE_CONTINUOUS_PICTURE);
-            } else if (modes.contains(Camera.Parameters.FOCUS_MODE_FIXED)) {
-                mCameraParameters.setFocusMode(Camera.Parameters.FOCUS_MODE_FIXED);
-            } else if (modes.contains(Camera.Parameters.FOCUS_MODE_INFINITY)) {
-                mCameraParameters.setFocusMode(Camera.Parameters.FOCUS_MODE_INFINITY);
-            } else {
-                mCameraParameters.setFocusMode(modes.get(0));
-            }
-            return true;
+    private String chooseFocusMode(boolean autoFocus) {
+        if (!isCameraOpened()) {
+            return null;
+        }
+        final CameraCapabilities capabilities = mCapabilities;
+        if (autoFocus && capabilities.hasFocusMode(Camera.Parameters.FOCUS_MODE_CONTINUOUS_PICTURE)) {
+            return Camera.Parameters.FOCUS_MODE_CONTINUOUS_PICTURE;
+        } else if (capabilities.hasFocusMode(Camera.Parameters.FOCUS_MODE_FIXED)) {
+            return Camera.Parameters.FOCUS_MODE_FIXED;
+        } else if (capabilities.hasFocusMode(Camera.Parameters.FOCUS_MODE_INFINITY)) {
+            return Camera.Parameters.FOCUS_MODE_INFINITY;
         } else {
-            return false;
+            final String[] modes = capabilities.getFocusModes();
+            return modes.length > 0 ? modes[0] : null;
         }
     }
 }
@@ -18,28 +18,36 @@ package com.readsense.cameraview.camera;
 
 import android.annotation.TargetApi;
 import android.content.Context;
-import android.hardware.Camera;
+import android.graphics.ImageFormat;
+import android.graphics.SurfaceTexture;
 import android.hardware.camera2.CameraAccessException;
 import android.hardware.camera2.CameraCaptureSession;
 import android.hardware.camera2.CameraCharacteristics;
 import android.hardware.camera2.CameraDevice;
 import android.hardware.camera2.CameraManager;
+import android.hardware.camera2.CaptureFailure;
 import android.hardware.camera2.CaptureRequest;
 import android.hardware.camera2.CaptureResult;
 import android.hardware.camera2.TotalCaptureResult;
 import android.hardware.camera2.params.StreamConfigurationMap;
 import android.media.Image;
 import android.media.ImageReader;
+import android.os.Handler;
 import androidx.annotation.NonNull;
 import android.util.Log;
-import android.util.SparseIntArray;
+import android.util.Range;
 import android.view.Surface;
 
 import com.readsense.cameraview.modle.CameraParameters;
 
 import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 @SuppressWarnings("MissingPermission")
 @TargetApi(21)
@@ -47,17 +55,14 @@ class Camera2 extends CameraViewImpl {
 
     private static final String TAG = "Camera2";
 
-    private static final SparseIntArray INTERNAL_FACINGS = new SparseIntArray();
+    private static final String CAPABILITY_KEY_PREFIX = "camera2/";
+
+    private static String[] sCameraIds;
     private int LANDSCAPE_90 = 90;
     private int LANDSCAPE_270 = 270;
     private static int FACING_BACK = 0;
     private static int FACING_FRONT = 1;
 
-    static {
-        INTERNAL_FACINGS.put(FACING_BACK, CameraCharacteristics.LENS_FACING_BACK);
-        INTERNAL_FACINGS.put(FACING_FRONT, CameraCharacteristics.LENS_FACING_FRONT);
-    }
-
     /**
      * Max preview width that is guaranteed by Camera2 API
      */
@@ -68,44 +73,144 @@ class Camera2 extends CameraViewImpl {
      */
     private static final int MAX_PREVIEW_HEIGHT = 1080;
 
+    /**
+     * The number of analysis images consumers may hold at the same time
+     */
+    private static final int MAX_IMAGES = 4;
+
+    /**
+     * The number of stills that may be in flight at the same time
+     */
+    private static final int MAX_STILL_IMAGES = 2;
+
+    /**
+     * How long opening a camera device may take before the start fails
+     */
+    private static final long OPEN_TIMEOUT_MS = 3000;
+
+    /**
+     * How long configuring a capture session may take before the start fails
+     */
+    private static final long SESSION_TIMEOUT_MS = 3000;
+
+    /**
+     * The largest YUV still below a FULL device, the bound of the preview size class
+     */
+    private static final int MAX_LIMITED_YUV_WIDTH = 1920;
+
+    private static final int MAX_LIMITED_YUV_HEIGHT = 1080;
+
     private final CameraManager mCameraManager;
 
+    private final CameraThread mCameraThread = new CameraThread("CameraView-Camera2");
+
+    /**
+     * Receives the device, session and capture result callbacks, so that none of them waits
+     * behind the main thread or behind {@link #mCameraThread}, which blocks while opening.
+     */
+    private final CameraThread mCallbackThread = new CameraThread("CameraView-Camera2-Callback");
+
+    /** Receives the analysis images, so that slow frame consumers never delay capture results. */
+    private final CameraThread mAnalysisThread = new CameraThread("CameraView-Camera2-Analysis");
+
+    private final CameraController mController = new CameraController(mCameraThread,
+            new CameraController.Operations() {
+                @Override
+                public void open() {
+                    startInternal();
+                }
+
+                @Override
+                public void configure() {
+                    if (mCamera != null) {
+                        startCaptureSession();
+                    }
+                }
+
+                @Override
+                public void switchCamera() {
+                    closeCamera();
+                    startInternal();
+                }
+
+                @Override
+                public void close() {
+                    stopInternal();
+                }
+            });
+
+    /** Counted down once the pending session is configured or has failed, {@code null} otherwise. */
+    private volatile CountDownLatch mSessionLatch;
+
+    private volatile boolean mSessionFailed;
+
+    /** Counted down once the pending open has succeeded or failed, {@code null} otherwise. */
+    private volatile CountDownLatch mOpenLatch;
+
+    private volatile int mOpenError;
+
     private final CameraDevice.StateCallback mCameraDeviceCallback
             = new CameraDevice.StateCallback() {
 
         @Override
         public void onOpened(@NonNull CameraDevice camera) {
+            final CountDownLatch latch = mOpenLatch;
+            if (latch == null) {
+                // Opened after the start has given up on it
+                camera.close();
+                return;
+            }
             mCamera = camera;
-            mCallback.onCameraOpened();
-            startCaptureSession();
-        }
-
-        @Override
-        public void onClosed(@NonNull CameraDevice camera) {
-            mCallback.onCameraClosed();
+            latch.countDown();
         }
 
         @Override
         public void onDisconnected(@NonNull CameraDevice camera) {
-            mCamera = null;
+            Log.w(TAG, "onDisconnected: " + camera.getId());
+            onDeviceLost(camera, 0);
         }
 
         @Override
         public void onError(@NonNull CameraDevice camera, int error) {
             Log.e(TAG, "onError: " + camera.getId() + " (" + error + ")");
-            mCamera = null;
+            onDeviceLost(camera, error);
+        }
+
+        private void onDeviceLost(CameraDevice camera, int error) {
+            camera.close();
+            if (mCamera == camera) {
+                mCamera = null;
+            }
+            mOpenError = error;
+            final CountDownLatch latch = mOpenLatch;
+            if (latch != null) {
+                latch.countDown();
+            }
         }
 
     };
 
+    private CameraParameters mParameters = new CameraParameters();
+
+    private CameraCapabilities mCapabilities;
+
+    /** The preview size of the last capture session, {@code null} before the first one. */
+    private volatile Size mPreviewSize;
+
     @Override
     public void setCameraParameters(CameraParameters ps) {
-
+        if (ps == null) {
+            return;
+        }
+        mParameters = ps;
+        if (isCameraOpened()) {
+            // Reopens on the camera thread; queued restarts collapse into one
+            mController.start(null);
+        }
     }
 
     public CameraParameters getCameraParameters() {
-
-        return null;
+        return mParameters;
     }
 
     private final CameraCaptureSession.StateCallback mSessionCallback
@@ -113,24 +218,47 @@ class Camera2 extends CameraViewImpl {
 
         @Override
         public void onConfigured(@NonNull CameraCaptureSession session) {
-            if (mCamera == null) {
+            final CameraDevice camera = mCamera;
+            if (camera == null || session.getDevice() != camera) {
+                // Superseded by a newer session or a closed camera
+                session.close();
                 return;
             }
+            final boolean traced = CameraTrace.begin("Camera2.onConfigured");
+            mTimings.end(CameraTimings.STEP_SET_PARAMETERS);
             mCaptureSession = session;
             updateAutoFocus();
             try {
+                mTimings.begin(CameraTimings.STEP_START_PREVIEW);
                 mCaptureSession.setRepeatingRequest(mPreviewRequestBuilder.build(),
-                        mCaptureCallback, null);
+                        mCaptureCallback, mCallbackThread.getHandler());
+                mTimings.end(CameraTimings.STEP_START_PREVIEW);
+                onSessionResult(false);
             } catch (CameraAccessException e) {
                 Log.e(TAG, "Failed to start camera preview because it couldn't access camera", e);
+                onSessionResult(true);
             } catch (IllegalStateException e) {
                 Log.e(TAG, "Failed to start camera preview.", e);
+                onSessionResult(true);
+            } finally {
+                CameraTrace.end(traced);
             }
         }
 
         @Override
         public void onConfigureFailed(@NonNull CameraCaptureSession session) {
             Log.e(TAG, "Failed to configure capture session.");
+            if (session.getDevice() == mCamera) {
+                onSessionResult(true);
+            }
+        }
+
+        private void onSessionResult(boolean failed) {
+            final CountDownLatch latch = mSessionLatch;
+            if (latch != null) {
+                mSessionFailed = failed;
+                latch.countDown();
+            }
         }
 
         @Override
@@ -150,7 +278,8 @@ class Camera2 extends CameraViewImpl {
                     CaptureRequest.CONTROL_AE_PRECAPTURE_TRIGGER_START);
             setState(STATE_PRECAPTURE);
             try {
-                mCaptureSession.capture(mPreviewRequestBuilder.build(), this, null);
+                mCaptureSession.capture(mPreviewRequestBuilder.build(), this,
+                        mCallbackThread.getHandler());
                 mPreviewRequestBuilder.set(CaptureRequest.CONTROL_AE_PRECAPTURE_TRIGGER,
                         CaptureRequest.CONTROL_AE_PRECAPTURE_TRIGGER_IDLE);
             } catch (CameraAccessException e) {
@@ -170,74 +299,325 @@ class Camera2 extends CameraViewImpl {
 
         @Override
         public void onImageAvailable(ImageReader reader) {
-            try (Image image = reader.acquireNextImage()) {
-                Image.Plane[] planes = image.getPlanes();
-                if (planes.length > 0) {
-                    ByteBuffer buffer = planes[0].getBuffer();
-                    byte[] data = new byte[buffer.remaining()];
-                    buffer.get(data);
-                    mCallback.onPreviewFrame(data, null);
-                    Log.e("pan", "onImageAvailable");
+            final AnalysisReader analysis = mAnalysisReader;
+            if (analysis == null || analysis.mReader != reader) {
+                return;
+            }
+            final Image image = analysis.acquire();
+            if (image == null) {
+                return;
+            }
+            final boolean traced = CameraTrace.begin("Camera2.onImageAvailable");
+            try {
+                mFrameWidth = image.getWidth();
+                mFrameHeight = image.getHeight();
+                mFrameFormat = image.getFormat();
+                mFrameRowStride = image.getPlanes()[0].getRowStride();
+                dispatchImage(image);
+            } finally {
+                CameraTrace.end(traced);
+            }
+        }
+
+    };
+
+    private final ImageReader.OnImageAvailableListener mOnStillAvailableListener
+            = new ImageReader.OnImageAvailableListener() {
+
+        @Override
+        public void onImageAvailable(ImageReader reader) {
+            final Image image;
+            try {
+                image = reader.acquireNextImage();
+            } catch (IllegalStateException e) {
+                Log.e(TAG, "Failed to acquire a still image.", e);
+                return;
+            }
+            if (image == null) {
+                return;
+            }
+            try {
+                final PictureCallback callback = pollPendingPicture();
+                if (callback != null) {
+                    deliverPicture(image, callback);
                 }
+            } finally {
+                image.close();
             }
         }
 
     };
 
+    private final Runnable mAcquirePendingImage = new Runnable() {
+        @Override
+        public void run() {
+            final AnalysisReader analysis = mAnalysisReader;
+            if (analysis != null) {
+                mOnImageAvailableListener.onImageAvailable(analysis.mReader);
+            }
+        }
+    };
+
 
     private String mCameraId;
 
-    private CameraCharacteristics mCameraCharacteristics;
+    volatile CameraDevice mCamera;
 
-    CameraDevice mCamera;
+    volatile CameraCaptureSession mCaptureSession;
 
-    CameraCaptureSession mCaptureSession;
+    volatile CaptureRequest.Builder mPreviewRequestBuilder;
 
-    CaptureRequest.Builder mPreviewRequestBuilder;
+    private volatile AnalysisReader mAnalysisReader;
+
+    /** Readers replaced while consumers still held their images, closed once they are released. */
+    private final ArrayList<AnalysisReader> mRetiredReaders = new ArrayList<>();
+
+    /** The optional still stream, see {@link CameraParameters#mStillCapture}. */
+    private volatile ImageReader mStillReader;
+
+    /** Pictures requested but not delivered yet, in request order. */
+    private final ArrayDeque<PictureCallback> mPendingPictures = new ArrayDeque<>();
+
+    private Handler mImageHandler;
 
-    private ImageReader mImageReader;
     private int mFacing;
 
     private boolean mAutoFocus;
 
-    private int mDisplayOrientation;
-
     Camera2(Callback callback, PreviewImpl preview, Context context) {
-        super(callback, preview);
+        super(callback, preview, CameraTimings.API_CAMERA2);
         mCameraManager = (CameraManager) context.getSystemService(Context.CAMERA_SERVICE);
         mPreview.setCallback(new PreviewImpl.Callback() {
             @Override
             public void onSurfaceChanged() {
-                startCaptureSession();
+                mController.reconfigure();
             }
         });
     }
 
+    /**
+     * @return Whether the back camera, or the first camera if there is none, is better than
+     * {@link CameraCharacteristics#INFO_SUPPORTED_HARDWARE_LEVEL_LEGACY}.
+     */
+    static boolean isSupported(Context context) {
+        CameraManager manager = (CameraManager) context.getSystemService(Context.CAMERA_SERVICE);
+        return manager != null && isSupported(manager, FACING_BACK);
+    }
+
+    /**
+     * Legacy devices only emulate Camera2 on top of the old API, so {@link Camera1} serves them
+     * with less overhead.
+     *
+     * @return Whether the camera {@link #chooseCameraIdByFacing()} would pick for {@code facing}
+     * is better than legacy. Has no side effects.
+     */
+    private static boolean isSupported(CameraManager manager, int facing) {
+        try {
+            final String[] ids = getCameraIds(manager);
+            if (ids.length == 0) {
+                return false;
+            }
+            for (String id : ids) {
+                CameraCapabilities capabilities = getCapabilities(manager, id);
+                if (isBetterThanLegacy(capabilities) && capabilities.getFacing() == facing) {
+                    return true;
+                }
+            }
+            return isBetterThanLegacy(getCapabilities(manager, ids[0]));
+        } catch (CameraAccessException e) {
+            Log.w(TAG, "Failed to query the cameras", e);
+            return false;
+        }
+    }
+
+    private static boolean isBetterThanLegacy(CameraCapabilities capabilities) {
+        return capabilities.getHardwareLevel()
+                != CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL_LEGACY;
+    }
+
+    /**
+     * The levels are not ordered by value: LIMITED is 0 and EXTERNAL, which behaves like LIMITED,
+     * is 4.
+     */
+    private static boolean isFullOrBetter(CameraCapabilities capabilities) {
+        final int level = capabilities.getHardwareLevel();
+        return level == CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL_FULL
+                || level == CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL_3;
+    }
+
+    /**
+     * The id list is cached like the capabilities; cameras attached later are not seen until the
+     * process restarts.
+     */
+    private static synchronized String[] getCameraIds(CameraManager manager)
+            throws CameraAccessException {
+        if (sCameraIds == null) {
+            sCameraIds = manager.getCameraIdList();
+        }
+        return sCameraIds;
+    }
+
+    /**
+     * Everything this class reads from {@link CameraCharacteristics}, auto-focus modes included,
+     * is copied into the capabilities, so the characteristics themselves are not kept.
+     */
+    private static CameraCapabilities getCapabilities(CameraManager manager, String id)
+            throws CameraAccessException {
+        CameraCapabilities capabilities = CameraCapabilities.get(CAPABILITY_KEY_PREFIX + id);
+        if (capabilities == null) {
+            capabilities = CameraCapabilities.put(
+                    buildCapabilities(id, manager.getCameraCharacteristics(id)));
+        }
+        return capabilities;
+    }
+
+    private static CameraCapabilities buildCapabilities(String id,
+            CameraCharacteristics characteristics) {
+        CameraCapabilities.Builder builder =
+                new CameraCapabilities.Builder(CAPABILITY_KEY_PREFIX + id);
+        Integer facing = characteristics.get(CameraCharacteristics.LENS_FACING);
+        // External cameras are treated as facing back
+        builder.setFacing(facing != null && facing == CameraCharacteristics.LENS_FACING_FRONT
+                ? CameraParameters.FACING_FRONT : CameraParameters.FACING_BACK);
+        Integer orientation = characteristics.get(CameraCharacteristics.SENSOR_ORIENTATION);
+        builder.setSensorOrientation(orientation == null ? 0 : orientation);
+        Integer level = characteristics.get(CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL);
+        builder.setHardwareLevel(level == null
+                ? CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL_LEGACY : level);
+        StreamConfigurationMap map = characteristics.get(
+                CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+        if (map != null) {
+            // The preview always renders to a SurfaceTexture from API 14 on
+            SizeCatalog previewSizes = buildCatalog(map.getOutputSizes(SurfaceTexture.class),
+                    MAX_PREVIEW_WIDTH, MAX_PREVIEW_HEIGHT);
+            // Capped like the preview, so that preview + analysis + still stays a guaranteed
+            // stream combination
+            SizeCatalog analysisSizes = buildCatalog(
+                    map.getOutputSizes(ImageFormat.YUV_420_888),
+                    MAX_PREVIEW_WIDTH, MAX_PREVIEW_HEIGHT);
+            builder.setPreviewSizes(previewSizes)
+                    .setPreviewRates(buildRates(map, previewSizes, SurfaceTexture.class, 0))
+                    .setAnalysisSizes(analysisSizes)
+                    .setAnalysisRates(buildRates(map, analysisSizes, null,
+                            ImageFormat.YUV_420_888));
+            builder.setYuvSizes(buildCatalog(map.getOutputSizes(ImageFormat.YUV_420_888),
+                    Integer.MAX_VALUE, Integer.MAX_VALUE));
+            builder.setJpegSizes(buildCatalog(map.getOutputSizes(ImageFormat.JPEG),
+                    Integer.MAX_VALUE, Integer.MAX_VALUE));
+        }
+        Range<Integer>[] fpsRanges = characteristics.get(
+                CameraCharacteristics.CONTROL_AE_AVAILABLE_TARGET_FPS_RANGES);
+        if (fpsRanges != null) {
+            int[][] ranges = new int[fpsRanges.length][];
+            for (int i = 0; i < fpsRanges.length; i++) {
+                ranges[i] = new int[]{fpsRanges[i].getLower(), fpsRanges[i].getUpper()};
+            }
+            builder.setFpsRanges(ranges, 1);
+        }
+        int[] afModes = characteristics.get(CameraCharacteristics.CONTROL_AF_AVAILABLE_MODES);
+        if (afModes != null) {
+            builder.setAfModes(afModes);
+        }
+        return builder.build();
+    }
+
     @Override
     boolean start() {
-        if (!chooseCameraIdByFacing()) {
+        return start(null);
+    }
+
+    /**
+     * @return {@code false} if the wanted camera is a legacy one and {@link Camera1} should be
+     * used instead; the camera is not opened then.
+     */
+    @Override
+    boolean start(CameraController.Listener listener) {
+        if (!isSupported(mCameraManager, getWantedFacing())) {
             return false;
         }
-        collectCameraInfo();
-        prepareImageReader();
-        startOpeningCamera();
+        mController.start(listener);
         return true;
     }
 
     @Override
     void stop() {
+        mController.stop();
+    }
+
+    private int getWantedFacing() {
+        return mParameters.CameraId == CameraParameters.FACING_FRONT ? FACING_FRONT : FACING_BACK;
+    }
+
+    private void startInternal() {
+        loadCapabilitySnapshot();
+        beginTimings();
+        mTimings.begin(CameraTimings.STEP_CHOOSE_CAMERA);
+        mFacing = getWantedFacing();
+        if (!chooseCameraIdByFacing()) {
+            throw new IllegalStateException("Only legacy cameras available: " + mCameraId);
+        }
+        mTimings.end(CameraTimings.STEP_CHOOSE_CAMERA);
+        mTimings.setCameraId(mCameraId);
+        // Persists the cameras queried for the first time, a no-op afterwards
+        CapabilitySnapshot.save();
+        mCallbackThread.start();
+        collectCameraInfo();
+        prepareImageReader();
+        mTimings.begin(CameraTimings.STEP_OPEN);
+        openCamera();
+        mTimings.end(CameraTimings.STEP_OPEN);
+        mCallback.onCameraOpened();
+        startCaptureSession();
+    }
+
+    private void stopInternal() {
+        closeCamera();
+        retireAnalysisReader();
+        if (mStillReader != null) {
+            mStillReader.close();
+            mStillReader = null;
+        }
+        mImageHandler = null;
+        mAnalysisThread.quit();
+        mCallbackThread.quit();
+    }
+
+    /**
+     * Closes the session and the device, but keeps the image readers and the threads for the
+     * next camera.
+     */
+    private void closeCamera() {
+        final CameraDevice camera = mCamera;
         if (mCaptureSession != null) {
+            mTimings.begin(CameraTimings.STEP_STOP);
             mCaptureSession.close();
             mCaptureSession = null;
+            mTimings.end(CameraTimings.STEP_STOP);
         }
-        if (mCamera != null) {
-            mCamera.close();
-            mCamera = null;
+        mCamera = null;
+        if (camera != null) {
+            mTimings.begin(CameraTimings.STEP_RELEASE);
+            camera.close();
+            mTimings.end(CameraTimings.STEP_RELEASE);
+            mCallback.onCameraClosed();
+            endTimings();
+        }
+        PictureCallback callback;
+        while ((callback = pollPendingPicture()) != null) {
+            callback.onPictureFailed(new CancellationException("Camera closed"));
         }
-        if (mImageReader != null) {
-            mImageReader.close();
-            mImageReader = null;
+        mFpsRange = null;
+    }
+
+    @Override
+    boolean switchCamera(int cameraId, CameraController.Listener listener) {
+        if (!isSupported(mCameraManager, cameraId)) {
+            // Let the caller fall back to Camera1 like a regular start
+            return false;
         }
+        mParameters.setCameraId(cameraId);
+        mController.switchCamera(listener);
+        return true;
     }
 
     @Override
@@ -246,13 +626,12 @@ class Camera2 extends CameraViewImpl {
     }
 
     void setFacing(int facing) {
-        if (mFacing == facing) {
+        if (getWantedFacing() == facing) {
             return;
         }
-        mFacing = facing;
+        mParameters.setCameraId(facing);
         if (isCameraOpened()) {
-            stop();
-            start();
+            mController.start(null);
         }
     }
 
@@ -260,115 +639,60 @@ class Camera2 extends CameraViewImpl {
         return mFacing;
     }
 
-
-//    @Override
-//    Set<AspectRatio> getSupportedAspectRatios() {
-//        return mPreviewSizes.ratios();
-//    }
-
-//    @Override
-//    boolean setAspectRatio(AspectRatio ratio) {
-//        if (ratio == null || ratio.equals(mAspectRatio) ||
-//                !mPreviewSizes.ratios().contains(ratio)) {
-//            // TODO: Better error handling
-//            return false;
-//        }
-//        mAspectRatio = ratio;
-//        prepareImageReader();
-//        if (mCaptureSession != null) {
-//            mCaptureSession.close();
-//            mCaptureSession = null;
-//            startCaptureSession();
-//        }
-//        return true;
-//    }
-
-//    @Override
-//    AspectRatio getAspectRatio() {
-//        return mAspectRatio;
-//    }
-
-//    @Override
-//    void setAutoFocus(boolean autoFocus) {
-//        if (mAutoFocus == autoFocus) {
-//            return;
-//        }
-//        mAutoFocus = autoFocus;
-//        if (mPreviewRequestBuilder != null) {
-//            updateAutoFocus();
-//            if (mCaptureSession != null) {
-//                try {
-//                    mCaptureSession.setRepeatingRequest(mPreviewRequestBuilder.build(),
-//                            mCaptureCallback, null);
-//                } catch (CameraAccessException e) {
-//                    mAutoFocus = !mAutoFocus; // Revert
-//                }
-//            }
-//        }
-//    }
-//
-//    @Override
-//    boolean getAutoFocus() {
-//        return mAutoFocus;
-//    }
-//
-//    @Override
-//    void setFlash(int flash) {
-//        if (mFlash == flash) {
-//            return;
-//        }
-//        int saved = mFlash;
-//        mFlash = flash;
-//        if (mPreviewRequestBuilder != null) {
-//            updateFlash();
-//            if (mCaptureSession != null) {
-//                try {
-//                    mCaptureSession.setRepeatingRequest(mPreviewRequestBuilder.build(),
-//                            mCaptureCallback, null);
-//                } catch (CameraAccessException e) {
-//                    mFlash = saved; // Revert
-//                }
-//            }
-//        }
-//    }
-//
-//    @Override
-//    int getFlash() {
-//        return mFlash;
-//    }
-
-
+    /**
+     * @return The preview size of the last capture session, {@code null} before the first one.
+     */
     Size getCameraResolution() {
-        return null;
+        return mPreviewSize;
     }
 
+    /**
+     * Fixes the preview size, and reconfigures the session on the camera thread if a camera is
+     * opened. The analysis stream keeps its own size.
+     *
+     * @return {@code false} if the opened camera does not support {@code resolution}.
+     */
     boolean setCameraResolution(Size resolution) {
+        final CameraCapabilities capabilities = mCapabilities;
+        if (resolution == null || capabilities != null && !capabilities.getPreviewSizes()
+                .contains(resolution.getWidth(), resolution.getHeight())) {
+            return false;
+        }
+        mParameters.setmCameraSize(resolution);
+        mController.reconfigure();
         return true;
     }
 
-
     @Override
-    List<Camera.Size> getSupportedPreviewSize() {
-        return null;
+    List<Size> getSupportedPreviewSize() {
+        final CameraCapabilities capabilities = mCapabilities;
+        return capabilities != null ? toSizes(capabilities.getPreviewSizes()) : null;
     }
 
-//    @Override
-//    void takePicture() {
-//        if (mAutoFocus) {
-//            lockFocus();
-//        } else {
-//            captureStillPicture();
-//        }
-//    }
-
     @Override
     void setDisplayOrientation(int displayOrientation) {
-        mDisplayOrientation = displayOrientation;
-        mPreview.setDisplayOrientation(mDisplayOrientation);
+        // Camera2 does not rotate the preview itself; the view transform does
+        mPreview.setDisplayOrientation(displayOrientation);
+        applyDisplayOrientation(displayOrientation);
+    }
+
+    private void applyDisplayOrientation(final int displayOrientation) {
+        if (!mCameraThread.isCurrentThread() && mCameraThread.post(new Runnable() {
+            @Override
+            public void run() {
+                applyDisplayOrientation(displayOrientation);
+            }
+        })) {
+            return;
+        }
+        mParameters.mDisplayOrientation = displayOrientation;
+        if (mCapabilities != null) {
+            updateFrameRotation();
+        }
     }
 
     int getDisplayOrientation() {
-        return 0;
+        return mParameters.mDisplayOrientation;
     }
 
     boolean adjustCameraParameters(int facing, Size resolution) {
@@ -377,56 +701,30 @@ class Camera2 extends CameraViewImpl {
 
     /**
      * <p>Chooses a camera ID by the specified camera facing ({@link #mFacing}).</p>
-     * <p>This rewrites {@link #mCameraId}, {@link #mCameraCharacteristics}, and optionally
+     * <p>This rewrites {@link #mCameraId}, {@link #mCapabilities}, and optionally
      * {@link #mFacing}.</p>
      */
     private boolean chooseCameraIdByFacing() {
         try {
-            int internalFacing = INTERNAL_FACINGS.get(mFacing);
-            final String[] ids = mCameraManager.getCameraIdList();
+            final String[] ids = getCameraIds(mCameraManager);
             if (ids.length == 0) { // No camera
                 throw new RuntimeException("No camera available.");
             }
             for (String id : ids) {
-                CameraCharacteristics characteristics = mCameraManager.getCameraCharacteristics(id);
-                Integer level = characteristics.get(
-                        CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL);
-                if (level == null ||
-                        level == CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL_LEGACY) {
-                    continue;
-                }
-                Integer internal = characteristics.get(CameraCharacteristics.LENS_FACING);
-                if (internal == null) {
-                    throw new NullPointerException("Unexpected state: LENS_FACING null");
-                }
-                if (internal == internalFacing) {
+                CameraCapabilities capabilities = getCapabilities(mCameraManager, id);
+                if (isBetterThanLegacy(capabilities) && capabilities.getFacing() == mFacing) {
                     mCameraId = id;
-                    mCameraCharacteristics = characteristics;
+                    mCapabilities = capabilities;
                     return true;
                 }
             }
             // Not found
             mCameraId = ids[0];
-            mCameraCharacteristics = mCameraManager.getCameraCharacteristics(mCameraId);
-            Integer level = mCameraCharacteristics.get(
-                    CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL);
-            if (level == null ||
-                    level == CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL_LEGACY) {
+            mCapabilities = getCapabilities(mCameraManager, mCameraId);
+            if (!isBetterThanLegacy(mCapabilities)) {
                 return false;
             }
-            Integer internal = mCameraCharacteristics.get(CameraCharacteristics.LENS_FACING);
-            if (internal == null) {
-                throw new NullPointerException("Unexpected state: LENS_FACING null");
-            }
-            for (int i = 0, count = INTERNAL_FACINGS.size(); i < count; i++) {
-                if (INTERNAL_FACINGS.valueAt(i) == internal) {
-                    mFacing = INTERNAL_FACINGS.keyAt(i);
-                    return true;
-                }
-            }
-            // The operation can reach here when the only camera device is an external one.
-            // We treat it as facing back.
-            mFacing = FACING_BACK;
+            mFacing = mCapabilities.getFacing();
             return true;
         } catch (CameraAccessException e) {
             throw new RuntimeException("Failed to get a list of camera devices", e);
@@ -435,57 +733,203 @@ class Camera2 extends CameraViewImpl {
 
 
     private void collectCameraInfo() {
-        StreamConfigurationMap map = mCameraCharacteristics.get(
-                CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
-        if (map == null) {
-            throw new IllegalStateException("Failed to get configuration map: " + mCameraId);
-        }
-        //mPreviewSizes.clear();
-//        for (android.util.Size size : map.getOutputSizes(mPreview.getOutputClass())) {
-//            int width = size.getWidth();
-//            int height = size.getHeight();
-//            if (width <= MAX_PREVIEW_WIDTH && height <= MAX_PREVIEW_HEIGHT) {
-//                mPreviewSizes.add(new Size(width, height));
-//            }
-//        }
-//        mPictureSizes.clear();
-//        collectPictureSizes(mPictureSizes, map);
-//        for (AspectRatio ratio : mPreviewSizes.ratios()) {
-//            if (!mPictureSizes.ratios().contains(ratio)) {
-//                mPreviewSizes.remove(ratio);
-//            }
-//        }
-//
-//        if (!mPreviewSizes.ratios().contains(mAspectRatio)) {
-//            mAspectRatio = mPreviewSizes.ratios().iterator().next();
-//        }
-    }
-
-//    protected void collectPictureSizes(SizeMap sizes, StreamConfigurationMap map) {
-//        for (android.util.Size size : map.getOutputSizes(ImageFormat.JPEG)) {
-//            mPictureSizes.add(new Size(size.getWidth(), size.getHeight()));
-//        }
-//    }
+        resetFrameSequence();
+        updateFrameRotation();
+    }
+
+    /**
+     * @return The maximum frame rates of {@code sizes} from their minimum frame durations for
+     * {@code klass}, or for {@code format} if {@code klass} is {@code null}.
+     */
+    private static SizeRates buildRates(StreamConfigurationMap map, SizeCatalog sizes,
+            Class<?> klass, int format) {
+        long[] all = sizes.toArray();
+        int[] maxFps = new int[all.length];
+        for (int i = 0; i < all.length; i++) {
+            android.util.Size size = new android.util.Size(SizeCatalog.width(all[i]),
+                    SizeCatalog.height(all[i]));
+            long duration = klass != null ? map.getOutputMinFrameDuration(klass, size)
+                    : map.getOutputMinFrameDuration(format, size);
+            maxFps[i] = duration > 0 ? (int) (1000000000L / duration) : 0;
+        }
+        return new SizeRates(all, maxFps);
+    }
+
+    private static SizeCatalog buildCatalog(android.util.Size[] sizes, int maxWidth,
+            int maxHeight) {
+        long[] packed = new long[sizes.length];
+        int count = 0;
+        for (android.util.Size size : sizes) {
+            if (size.getWidth() <= maxWidth && size.getHeight() <= maxHeight) {
+                packed[count++] = SizeCatalog.pack(size.getWidth(), size.getHeight());
+            }
+        }
+        return SizeCatalog.of(Arrays.copyOf(packed, count));
+    }
 
+    private void updateFrameRotation() {
+        mFrameRotation = calcFrameRotation(mCapabilities.getSensorOrientation(),
+                mFacing == FACING_FRONT, mParameters.mDisplayOrientation);
+        mFrameMirrored = mFacing == FACING_FRONT;
+    }
+
+    /**
+     * Creates the readers, or keeps the ones left open by {@link #closeCamera()} if they already
+     * have the wanted size, so that a camera switch does not reallocate their buffers and the
+     * images held by consumers stay valid.
+     */
     private void prepareImageReader() {
-        if (mImageReader != null) {
-            mImageReader.close();
+        Size size = chooseAnalysisSize();
+        // Like the Camera1 callback buffers, the images bound how many frames consumers may hold
+        int maxImages = mParameters.mPreviewBufferCount > 1 ? mParameters.mPreviewBufferCount
+                : MAX_IMAGES;
+        if (mAnalysisReader == null
+                || !isReusable(mAnalysisReader.mReader, size, ImageFormat.YUV_420_888, maxImages)) {
+            retireAnalysisReader();
+            ImageReader reader = ImageReader.newInstance(size.getWidth(), size.getHeight(),
+                    ImageFormat.YUV_420_888, maxImages);
+            mAnalysisThread.start();
+            mImageHandler = mAnalysisThread.getHandler();
+            mAnalysisReader = new AnalysisReader(reader);
+            reader.setOnImageAvailableListener(mOnImageAvailableListener, mImageHandler);
+        }
+        if (mParameters.mStillCapture == CameraParameters.STILL_NONE) {
+            if (mStillReader != null) {
+                mStillReader.close();
+                mStillReader = null;
+            }
+            return;
+        }
+        int format = mParameters.mStillCapture == CameraParameters.STILL_JPEG
+                ? ImageFormat.JPEG : ImageFormat.YUV_420_888;
+        Size stillSize = chooseStillSize(format, size);
+        if (!isReusable(mStillReader, stillSize, format, MAX_STILL_IMAGES)) {
+            if (mStillReader != null) {
+                mStillReader.close();
+            }
+            ImageReader reader = ImageReader.newInstance(stillSize.getWidth(),
+                    stillSize.getHeight(), format, MAX_STILL_IMAGES);
+            reader.setOnImageAvailableListener(mOnStillAvailableListener,
+                    mCallbackThread.getHandler());
+            mStillReader = reader;
+        }
+    }
+
+    /**
+     * Stops acquiring from the current analysis reader. It is closed right away if consumers hold
+     * none of its images, or else by the release of the last one, since closing it would free
+     * their buffers.
+     */
+    private void retireAnalysisReader() {
+        synchronized (mRetiredReaders) {
+            for (int i = mRetiredReaders.size() - 1; i >= 0; i--) {
+                if (mRetiredReaders.get(i).isClosed()) {
+                    mRetiredReaders.remove(i);
+                }
+            }
+            final AnalysisReader analysis = mAnalysisReader;
+            if (analysis == null) {
+                return;
+            }
+            mAnalysisReader = null;
+            analysis.retire();
+            if (!analysis.isClosed()) {
+                mRetiredReaders.add(analysis);
+            }
+        }
+    }
+
+    private static boolean isReusable(ImageReader reader, Size size, int format, int maxImages) {
+        return reader != null && reader.getWidth() == size.getWidth()
+                && reader.getHeight() == size.getHeight() && reader.getImageFormat() == format
+                && reader.getMaxImages() == maxImages;
+    }
+
+    /**
+     * @return The largest still size with the aspect ratio of {@code analysisSize}, or the largest
+     * size of any ratio. Below a FULL device a YUV still is capped to a preview class size, the
+     * analysis size if the ratio has none.
+     */
+    private Size chooseStillSize(int format, Size analysisSize) {
+        SizeCatalog sizes = format == ImageFormat.JPEG ? mCapabilities.getJpegSizes()
+                : mCapabilities.getYuvSizes();
+        int ratio = sizes.findRatio(analysisSize.getWidth(), analysisSize.getHeight());
+        long size;
+        if (format == ImageFormat.JPEG || isFullOrBetter(mCapabilities)) {
+            size = ratio >= 0 ? sizes.getSize(ratio, sizes.getSizeCount(ratio) - 1)
+                    : sizes.getLargest();
+        } else {
+            // Three streams with a maximum size YUV are only guaranteed from FULL on
+            size = ratio >= 0 ? sizes.largestAtMost(ratio, MAX_LIMITED_YUV_WIDTH,
+                    MAX_LIMITED_YUV_HEIGHT) : SizeCatalog.NONE;
         }
-        //   Size largest = mPictureSizes.sizes(mAspectRatio).last();
-//        mImageReader = ImageReader.newInstance(largest.getWidth(), largest.getHeight(),
-//                ImageFormat.JPEG, /* maxImages */ 2);
-        mImageReader.setOnImageAvailableListener(mOnImageAvailableListener, null);
+        return size == SizeCatalog.NONE ? analysisSize
+                : new Size(SizeCatalog.width(size), SizeCatalog.height(size));
+    }
+
+    /**
+     * @return The cheapest YUV size for the frame consumers, chosen like the preview size.
+     */
+    private Size chooseAnalysisSize() {
+        Size size = PreviewSizeSelector.select(mCapabilities.getAnalysisSizes(), mParameters,
+                mPreview.getWidth(), mPreview.getHeight(), isPreviewSwapped(),
+                mCapabilities.getAnalysisRates());
+        return size != null ? size : new Size(640, 480);
     }
 
     /**
-     * <p>Starts opening a camera device.</p>
-     * <p>The result will be processed in {@link #mCameraDeviceCallback}.</p>
+     * @return Whether the sensor image is shown rotated by 90 or 270 degrees.
      */
-    private void startOpeningCamera() {
+    private boolean isPreviewSwapped() {
+        return (mCapabilities.getSensorOrientation() + mParameters.mDisplayOrientation) % 180
+                != 0;
+    }
+
+    @Override
+    public void releaseImage(Image image) {
+        final AnalysisReader analysis = mAnalysisReader;
+        if (analysis != null && analysis.release(image)) {
+            return;
+        }
+        // Acquired from a reader that has been replaced since
+        synchronized (mRetiredReaders) {
+            for (int i = 0; i < mRetiredReaders.size(); i++) {
+                if (mRetiredReaders.get(i).release(image)) {
+                    return;
+                }
+            }
+        }
+        image.close();
+    }
+
+    /**
+     * <p>Opens the camera device and waits for {@link #mCameraDeviceCallback} to report it.</p>
+     * <p>This rewrites {@link #mCamera}.</p>
+     *
+     * @throws RuntimeException if the device cannot be opened in {@link #OPEN_TIMEOUT_MS}.
+     */
+    private void openCamera() {
+        mCallbackThread.start();
+        final CountDownLatch latch = new CountDownLatch(1);
+        mOpenLatch = latch;
+        mOpenError = 0;
         try {
-            mCameraManager.openCamera(mCameraId, mCameraDeviceCallback, null);
+            mCameraManager.openCamera(mCameraId, mCameraDeviceCallback,
+                    mCallbackThread.getHandler());
+            if (!latch.await(OPEN_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                throw new RuntimeException("Timed out opening camera: " + mCameraId);
+            }
         } catch (CameraAccessException e) {
             throw new RuntimeException("Failed to open camera: " + mCameraId, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted opening camera: " + mCameraId, e);
+        } finally {
+            mOpenLatch = null;
+        }
+        if (mCamera == null) {
+            throw new RuntimeException("Failed to open camera: " + mCameraId
+                    + " (" + mOpenError + ")");
         }
     }
 
@@ -493,61 +937,99 @@ class Camera2 extends CameraViewImpl {
      * <p>Starts a capture session for camera preview.</p>
      * <p>This rewrites {@link #mPreviewRequestBuilder}.</p>
      * <p>The result will be continuously processed in {@link #mSessionCallback}.</p>
+     *
+     * @throws RuntimeException if the session cannot be configured in {@link #SESSION_TIMEOUT_MS},
+     * for instance because the device does not support the combination of streams.
      */
     void startCaptureSession() {
-        if (!isCameraOpened() || !mPreview.isReady() || mImageReader == null) {
+        final AnalysisReader analysis = mAnalysisReader;
+        if (!isCameraOpened() || !mPreview.isReady() || analysis == null) {
             return;
         }
-        // Size previewSize = chooseOptimalSize();
-        // mPreview.setBufferSize(previewSize.getWidth(), previewSize.getHeight());
+        mTimings.begin(CameraTimings.STEP_SET_PREVIEW_TEXTURE);
+        Size previewSize = chooseOptimalSize();
+        mPreviewSize = previewSize;
+        mPreview.setBufferSize(previewSize.getWidth(), previewSize.getHeight());
         Surface surface = mPreview.getSurface();
+        mTimings.end(CameraTimings.STEP_SET_PREVIEW_TEXTURE);
+        // Preview and analysis stream continuously; the still stream only receives captures.
+        // With preview sized streams and a maximum size JPEG, this combination is guaranteed
+        // from LIMITED on; a maximum size YUV still needs a FULL device, see chooseStillSize().
+        List<Surface> outputs = mStillReader != null
+                ? Arrays.asList(surface, analysis.mReader.getSurface(), mStillReader.getSurface())
+                : Arrays.asList(surface, analysis.mReader.getSurface());
+        final boolean traced = CameraTrace.begin("Camera2.startCaptureSession");
         try {
+            mTimings.begin(CameraTimings.STEP_GET_PARAMETERS);
             mPreviewRequestBuilder = mCamera.createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW);
             mPreviewRequestBuilder.addTarget(surface);
-            mCamera.createCaptureSession(Arrays.asList(surface, mImageReader.getSurface()),
-                    mSessionCallback, null);
+            mPreviewRequestBuilder.addTarget(analysis.mReader.getSurface());
+            applyFpsRange(mPreviewRequestBuilder);
+            mTimings.end(CameraTimings.STEP_GET_PARAMETERS);
+            // Ends once the session is configured
+            mTimings.begin(CameraTimings.STEP_SET_PARAMETERS);
+            final CountDownLatch latch = new CountDownLatch(1);
+            mSessionLatch = latch;
+            mSessionFailed = false;
+            mCamera.createCaptureSession(outputs, mSessionCallback, mCallbackThread.getHandler());
+            // Reports an unsupported stream combination to the start instead of a black preview
+            if (!latch.await(SESSION_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                throw new RuntimeException("Timed out configuring the capture session");
+            }
+            if (mSessionFailed) {
+                throw new RuntimeException("Failed to configure the capture session");
+            }
         } catch (CameraAccessException e) {
             throw new RuntimeException("Failed to start camera session");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted configuring the capture session", e);
+        } finally {
+            mSessionLatch = null;
+            CameraTrace.end(traced);
         }
     }
 
     /**
-     * Chooses the optimal preview size based on {@link #mPreviewSizes} and the surface size.
+     * Chooses the optimal preview size based on the supported sizes and the surface size.
      *
      * @return The picked size for camera preview.
-    //     */
-//    private Size chooseOptimalSize() {
-//        int surfaceLonger, surfaceShorter;
-//        final int surfaceWidth = mPreview.getWidth();
-//        final int surfaceHeight = mPreview.getHeight();
-//        if (surfaceWidth < surfaceHeight) {
-//            surfaceLonger = surfaceHeight;
-//            surfaceShorter = surfaceWidth;
-//        } else {
-//            surfaceLonger = surfaceWidth;
-//            surfaceShorter = surfaceHeight;
-//        }
-//      //  SortedSet<Size> candidates = mPreviewSizes.sizes(mAspectRatio);
-//
-//        // Pick the smallest of those big enough
-//        for (Size size : candidates) {
-//            if (size.getWidth() >= surfaceLonger && size.getHeight() >= surfaceShorter) {
-//                return size;
-//            }
-//        }
-//        // If no size is big enough, pick the largest one.
-//        return candidates.last();
-//    }
+     */
+    private Size chooseOptimalSize() {
+        if (mParameters.mCameraSize != null) {
+            return mParameters.mCameraSize;
+        }
+        // Analysis has a stream of its own, so the preview only has to serve the view
+        Size size = PreviewSizeSelector.selectForView(mCapabilities.getPreviewSizes(), mParameters,
+                mPreview.getWidth(), mPreview.getHeight(), isPreviewSwapped(),
+                mCapabilities.getPreviewRates());
+        return size != null ? size : new Size(640, 480);
+    }
+
+    /**
+     * Sets the range for {@link CameraParameters#mFpsMode} on {@code builder}, then reports the
+     * range the builder ends up with.
+     */
+    private void applyFpsRange(CaptureRequest.Builder builder) {
+        int[][] ranges = mCapabilities.getFpsRanges();
+        int index = FpsRangeSelector.select(ranges, mCapabilities.getFpsScale(),
+                mParameters.mFpsMode, mParameters.mFps);
+        if (index >= 0) {
+            builder.set(CaptureRequest.CONTROL_AE_TARGET_FPS_RANGE,
+                    new Range<>(ranges[index][0], ranges[index][1]));
+        }
+        Range<Integer> applied = builder.get(CaptureRequest.CONTROL_AE_TARGET_FPS_RANGE);
+        mFpsRange = applied == null ? null : new int[]{applied.getLower(), applied.getUpper()};
+    }
 
     /**
      * Updates the internal state of auto-focus to {@link #mAutoFocus}.
      */
     void updateAutoFocus() {
         if (mAutoFocus) {
-            int[] modes = mCameraCharacteristics.get(
-                    CameraCharacteristics.CONTROL_AF_AVAILABLE_MODES);
+            int[] modes = mCapabilities.getAfModes();
             // Auto focus is not supported
-            if (modes == null || modes.length == 0 ||
+            if (modes.length == 0 ||
                     (modes.length == 1 && modes[0] == CameraCharacteristics.CONTROL_AF_MODE_OFF)) {
                 mAutoFocus = false;
                 mPreviewRequestBuilder.set(CaptureRequest.CONTROL_AF_MODE,
@@ -563,63 +1045,96 @@ class Camera2 extends CameraViewImpl {
     }
 
 
+    @Override
+    void takePicture(PictureCallback callback) {
+        if (mStillReader == null || mCaptureSession == null) {
+            callback.onPictureFailed(new IllegalStateException(
+                    "No still stream configured or preview not running"));
+            return;
+        }
+        synchronized (mPendingPictures) {
+            mPendingPictures.add(callback);
+        }
+        captureStillPicture();
+    }
+
+    private PictureCallback pollPendingPicture() {
+        synchronized (mPendingPictures) {
+            return mPendingPictures.poll();
+        }
+    }
+
+    private void failPendingPicture(Exception e) {
+        PictureCallback callback = pollPendingPicture();
+        if (callback != null) {
+            callback.onPictureFailed(e);
+        }
+    }
+
+    /**
+     * Copies the still out of {@code image}, JPEG as is and YUV as NV21.
+     */
+    private static void deliverPicture(Image image, PictureCallback callback) {
+        final int width = image.getWidth();
+        final int height = image.getHeight();
+        final Image.Plane[] planes = image.getPlanes();
+        if (image.getFormat() == ImageFormat.JPEG) {
+            ByteBuffer buffer = planes[0].getBuffer();
+            byte[] data = new byte[buffer.remaining()];
+            buffer.get(data);
+            callback.onPictureTaken(data, ImageFormat.JPEG, width, height);
+        } else {
+            byte[] data = new byte[Nv21Converter.getNv21Size(width, height)];
+            Nv21Converter.convert(planes[0].getBuffer(), planes[0].getRowStride(),
+                    planes[1].getBuffer(), planes[2].getBuffer(), planes[1].getRowStride(),
+                    planes[1].getPixelStride(), width, height, data);
+            callback.onPictureTaken(data, ImageFormat.NV21, width, height);
+        }
+    }
+
     /**
-     * Captures a still picture.
+     * Captures a still picture into {@link #mStillReader} for the oldest pending picture. The
+     * repeating preview request keeps running, so preview and analysis do not stall.
      */
     void captureStillPicture() {
+        final CameraDevice camera = mCamera;
+        final CameraCaptureSession session = mCaptureSession;
+        final ImageReader reader = mStillReader;
+        if (camera == null || session == null || reader == null) {
+            failPendingPicture(new IllegalStateException("Camera closed"));
+            return;
+        }
         try {
-            CaptureRequest.Builder captureRequestBuilder = mCamera.createCaptureRequest(
+            CaptureRequest.Builder captureRequestBuilder = camera.createCaptureRequest(
                     CameraDevice.TEMPLATE_STILL_CAPTURE);
-            captureRequestBuilder.addTarget(mImageReader.getSurface());
-            captureRequestBuilder.set(CaptureRequest.CONTROL_AF_MODE,
-                    mPreviewRequestBuilder.get(CaptureRequest.CONTROL_AF_MODE));
-//            switch (mFlash) {
-//                case Constants.FLASH_OFF:
-//                    captureRequestBuilder.set(CaptureRequest.CONTROL_AE_MODE,
-//                            CaptureRequest.CONTROL_AE_MODE_ON);
-//                    captureRequestBuilder.set(CaptureRequest.FLASH_MODE,
-//                            CaptureRequest.FLASH_MODE_OFF);
-//                    break;
-//                case Constants.FLASH_ON:
-//                    captureRequestBuilder.set(CaptureRequest.CONTROL_AE_MODE,
-//                            CaptureRequest.CONTROL_AE_MODE_ON_ALWAYS_FLASH);
-//                    break;
-//                case Constants.FLASH_TORCH:
-//                    captureRequestBuilder.set(CaptureRequest.CONTROL_AE_MODE,
-//                            CaptureRequest.CONTROL_AE_MODE_ON);
-//                    captureRequestBuilder.set(CaptureRequest.FLASH_MODE,
-//                            CaptureRequest.FLASH_MODE_TORCH);
-//                    break;
-//                case Constants.FLASH_AUTO:
-//                    captureRequestBuilder.set(CaptureRequest.CONTROL_AE_MODE,
-//                            CaptureRequest.CONTROL_AE_MODE_ON_AUTO_FLASH);
-//                    break;
-//                case Constants.FLASH_RED_EYE:
-//                    captureRequestBuilder.set(CaptureRequest.CONTROL_AE_MODE,
-//                            CaptureRequest.CONTROL_AE_MODE_ON_AUTO_FLASH);
-//                    break;
-//            }
+            captureRequestBuilder.addTarget(reader.getSurface());
+            final CaptureRequest.Builder previewRequestBuilder = mPreviewRequestBuilder;
+            if (previewRequestBuilder != null) {
+                captureRequestBuilder.set(CaptureRequest.CONTROL_AF_MODE,
+                        previewRequestBuilder.get(CaptureRequest.CONTROL_AF_MODE));
+            }
             // Calculate JPEG orientation.
-            @SuppressWarnings("ConstantConditions")
-            int sensorOrientation = mCameraCharacteristics.get(
-                    CameraCharacteristics.SENSOR_ORIENTATION);
+            int sensorOrientation = mCapabilities.getSensorOrientation();
             captureRequestBuilder.set(CaptureRequest.JPEG_ORIENTATION,
                     (sensorOrientation +
-                            mDisplayOrientation * (mFacing == FACING_FRONT ? 1 : -1) +
+                            mParameters.mDisplayOrientation * (mFacing == FACING_FRONT ? 1 : -1) +
                             360) % 360);
-            // Stop preview and capture a still picture.
-            mCaptureSession.stopRepeating();
-            mCaptureSession.capture(captureRequestBuilder.build(),
+            session.capture(captureRequestBuilder.build(),
                     new CameraCaptureSession.CaptureCallback() {
                         @Override
-                        public void onCaptureCompleted(@NonNull CameraCaptureSession session,
-                                                       @NonNull CaptureRequest request,
-                                                       @NonNull TotalCaptureResult result) {
-                            unlockFocus();
+                        public void onCaptureFailed(@NonNull CameraCaptureSession session,
+                                                    @NonNull CaptureRequest request,
+                                                    @NonNull CaptureFailure failure) {
+                            failPendingPicture(new IllegalStateException(
+                                    "Still capture failed: " + failure.getReason()));
                         }
-                    }, null);
+                    }, mCallbackThread.getHandler());
         } catch (CameraAccessException e) {
             Log.e(TAG, "Cannot capture a still picture.", e);
+            failPendingPicture(e);
+        } catch (IllegalStateException e) {
+            Log.e(TAG, "Cannot capture a still picture.", e);
+            failPendingPicture(e);
         }
     }
 
@@ -627,18 +1142,126 @@ class Camera2 extends CameraViewImpl {
         mPreviewRequestBuilder.set(CaptureRequest.CONTROL_AF_TRIGGER,
                 CaptureRequest.CONTROL_AF_TRIGGER_CANCEL);
         try {
-            mCaptureSession.capture(mPreviewRequestBuilder.build(), mCaptureCallback, null);
+            mCaptureSession.capture(mPreviewRequestBuilder.build(), mCaptureCallback,
+                    mCallbackThread.getHandler());
             updateAutoFocus();
             mPreviewRequestBuilder.set(CaptureRequest.CONTROL_AF_TRIGGER,
                     CaptureRequest.CONTROL_AF_TRIGGER_IDLE);
             mCaptureSession.setRepeatingRequest(mPreviewRequestBuilder.build(), mCaptureCallback,
-                    null);
+                    mCallbackThread.getHandler());
             mCaptureCallback.setState(PictureCaptureCallback.STATE_PREVIEW);
         } catch (CameraAccessException e) {
             Log.e(TAG, "Failed to restart camera preview.", e);
         }
     }
 
+    /**
+     * An analysis {@link ImageReader} and the images consumers hold from it. Acquiring and
+     * releasing share one lock, so that an image arriving while every image is held is always
+     * picked up by the next release.
+     */
+    private final class AnalysisReader {
+
+        final ImageReader mReader;
+
+        /** Images acquired and not yet released by every consumer, {@code null} slots are free. */
+        private final Image[] mImages;
+
+        private int mImageCount;
+
+        /** {@code true} if an image became available while the maximum was acquired. */
+        private boolean mPending;
+
+        private boolean mRetired;
+
+        AnalysisReader(ImageReader reader) {
+            mReader = reader;
+            mImages = new Image[reader.getMaxImages()];
+        }
+
+        /**
+         * @return The next image, or {@code null} if there is none or consumers hold every image
+         * we may acquire. In the latter case it is acquired once one of them is released.
+         */
+        synchronized Image acquire() {
+            if (mRetired) {
+                return null;
+            }
+            if (mImageCount == mImages.length) {
+                if (!mPending) {
+                    mPending = true;
+                    onBufferExhausted();
+                }
+                return null;
+            }
+            final Image image;
+            try {
+                image = mReader.acquireNextImage();
+            } catch (IllegalStateException e) {
+                mPending = true;
+                return null;
+            }
+            if (image != null) {
+                for (int i = 0; i < mImages.length; i++) {
+                    if (mImages[i] == null) {
+                        mImages[i] = image;
+                        break;
+                    }
+                }
+                mImageCount++;
+            }
+            return image;
+        }
+
+        /**
+         * Closes {@code image} if it was acquired from this reader, and the reader with it if this
+         * was its last image after {@link #retire()}.
+         *
+         * @return Whether {@code image} was acquired from this reader.
+         */
+        synchronized boolean release(Image image) {
+            int index = 0;
+            while (index < mImages.length && mImages[index] != image) {
+                index++;
+            }
+            if (index == mImages.length) {
+                return false;
+            }
+            mImages[index] = null;
+            mImageCount--;
+            image.close();
+            if (mRetired) {
+                if (mImageCount == 0) {
+                    mReader.close();
+                }
+                return true;
+            }
+            final Handler handler = mImageHandler;
+            if (mPending && handler != null) {
+                mPending = false;
+                handler.post(mAcquirePendingImage);
+            }
+            return true;
+        }
+
+        /**
+         * Stops acquiring, and closes the reader unless consumers still hold its images.
+         */
+        synchronized void retire() {
+            mRetired = true;
+            mPending = false;
+            mReader.setOnImageAvailableListener(null, null);
+            if (mImageCount == 0) {
+                mReader.close();
+            }
+        }
+
+        synchronized boolean isClosed() {
+            return mRetired && mImageCount == 0;
+        }
+
+    }
+
     /**
      * A {@link CameraCaptureSession.CaptureCallback} for capturing a still picture.
      */
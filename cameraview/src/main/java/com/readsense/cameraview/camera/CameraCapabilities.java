@@ -0,0 +1,324 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.readsense.cameraview.camera;
+
+import androidx.collection.ArrayMap;
+
+/**
+ * What one camera can do, collected once and shared by every {@link CameraView} and both
+ * backends for the life of the process.
+ *
+ * <p>Instances are immutable. Querying them is free, unlike {@code Camera.getParameters()} or
+ * {@code CameraManager.getCameraCharacteristics()}, which go through the camera service and
+ * parse or copy all metadata each time.</p>
+ */
+final class CameraCapabilities {
+
+    /** The hardware level reported for cameras accessed through {@link Camera1}. */
+    static final int LEVEL_CAMERA1 = -1;
+
+    private static final ArrayMap<String, CameraCapabilities> sCache = new ArrayMap<>();
+
+    private final String mKey;
+
+    private final int mFacing;
+
+    private final int mSensorOrientation;
+
+    private final int mHardwareLevel;
+
+    private final SizeCatalog mPreviewSizes;
+
+    private final SizeCatalog mAnalysisSizes;
+
+    private final SizeCatalog mYuvSizes;
+
+    private final SizeCatalog mJpegSizes;
+
+    private final SizeRates mPreviewRates;
+
+    private final SizeRates mAnalysisRates;
+
+    private final int[][] mFpsRanges;
+
+    private final int mFpsScale;
+
+    private final String[] mFocusModes;
+
+    private final int[] mAfModes;
+
+    private CameraCapabilities(Builder builder) {
+        mKey = builder.mKey;
+        mFacing = builder.mFacing;
+        mSensorOrientation = builder.mSensorOrientation;
+        mHardwareLevel = builder.mHardwareLevel;
+        mPreviewSizes = builder.mPreviewSizes;
+        mAnalysisSizes = builder.mAnalysisSizes != null ? builder.mAnalysisSizes
+                : builder.mPreviewSizes;
+        mYuvSizes = builder.mYuvSizes != null ? builder.mYuvSizes : mAnalysisSizes;
+        mJpegSizes = builder.mJpegSizes;
+        mPreviewRates = builder.mPreviewRates;
+        mAnalysisRates = builder.mAnalysisRates;
+        mFpsRanges = builder.mFpsRanges;
+        mFpsScale = builder.mFpsScale;
+        mFocusModes = builder.mFocusModes;
+        mAfModes = builder.mAfModes;
+    }
+
+    /**
+     * @return The cached capabilities of the camera identified by {@code key}, or {@code null}.
+     */
+    static CameraCapabilities get(String key) {
+        synchronized (sCache) {
+            return sCache.get(key);
+        }
+    }
+
+    /**
+     * @return Every cached instance, in no particular order.
+     */
+    static CameraCapabilities[] getAll() {
+        synchronized (sCache) {
+            final CameraCapabilities[] all = new CameraCapabilities[sCache.size()];
+            for (int i = 0; i < all.length; i++) {
+                all[i] = sCache.valueAt(i);
+            }
+            return all;
+        }
+    }
+
+    /**
+     * Caches {@code capabilities} unless another thread has cached the same camera first.
+     *
+     * @return The cached instance.
+     */
+    static CameraCapabilities put(CameraCapabilities capabilities) {
+        synchronized (sCache) {
+            final CameraCapabilities cached = sCache.get(capabilities.mKey);
+            if (cached != null) {
+                return cached;
+            }
+            sCache.put(capabilities.mKey, capabilities);
+            return capabilities;
+        }
+    }
+
+    /**
+     * @return The cache key, the backend and its camera id, e.g. {@code "camera2/0"}.
+     */
+    String getKey() {
+        return mKey;
+    }
+
+    /**
+     * @return {@code CameraParameters.FACING_BACK} or {@code FACING_FRONT}.
+     */
+    int getFacing() {
+        return mFacing;
+    }
+
+    int getSensorOrientation() {
+        return mSensorOrientation;
+    }
+
+    /**
+     * @return A Camera2 {@code INFO_SUPPORTED_HARDWARE_LEVEL_*} or {@link #LEVEL_CAMERA1}.
+     */
+    int getHardwareLevel() {
+        return mHardwareLevel;
+    }
+
+    SizeCatalog getPreviewSizes() {
+        return mPreviewSizes;
+    }
+
+    /**
+     * @return The sizes of a YUV stream that can run next to the preview, the preview sizes for
+     * {@link Camera1}.
+     */
+    SizeCatalog getAnalysisSizes() {
+        return mAnalysisSizes;
+    }
+
+    /**
+     * @return All YUV sizes, including those too large to stream next to the preview.
+     */
+    SizeCatalog getYuvSizes() {
+        return mYuvSizes;
+    }
+
+    SizeCatalog getJpegSizes() {
+        return mJpegSizes;
+    }
+
+    /**
+     * @return The maximum frame rates of {@link #getPreviewSizes()}, or {@code null} if the
+     * backend cannot tell them.
+     */
+    SizeRates getPreviewRates() {
+        return mPreviewRates;
+    }
+
+    /**
+     * @return The maximum frame rates of {@link #getAnalysisSizes()}, or {@code null} if the
+     * backend cannot tell them.
+     */
+    SizeRates getAnalysisRates() {
+        return mAnalysisRates;
+    }
+
+    /**
+     * @return The supported frame rate ranges as {@code {min, max}}, in units of
+     * {@link #getFpsScale()}. Must not be modified.
+     */
+    int[][] getFpsRanges() {
+        return mFpsRanges;
+    }
+
+    /**
+     * @return The value of one frame per second in {@link #getFpsRanges()}.
+     */
+    int getFpsScale() {
+        return mFpsScale;
+    }
+
+    /**
+     * @return The {@code Camera.Parameters.FOCUS_MODE_*} values, empty for Camera2. Must not be
+     * modified.
+     */
+    String[] getFocusModes() {
+        return mFocusModes;
+    }
+
+    boolean hasFocusMode(String mode) {
+        for (String focusMode : mFocusModes) {
+            if (focusMode.equals(mode)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return The {@code CONTROL_AF_MODE_*} values, empty for Camera1. Must not be modified.
+     */
+    int[] getAfModes() {
+        return mAfModes;
+    }
+
+    static final class Builder {
+
+        private final String mKey;
+
+        private int mFacing;
+
+        private int mSensorOrientation;
+
+        private int mHardwareLevel = LEVEL_CAMERA1;
+
+        private SizeCatalog mPreviewSizes = SizeCatalog.of(new long[0]);
+
+        private SizeCatalog mAnalysisSizes;
+
+        private SizeCatalog mYuvSizes;
+
+        private SizeCatalog mJpegSizes = SizeCatalog.of(new long[0]);
+
+        private SizeRates mPreviewRates;
+
+        private SizeRates mAnalysisRates;
+
+        private int[][] mFpsRanges = new int[0][];
+
+        private int mFpsScale = 1;
+
+        private String[] mFocusModes = new String[0];
+
+        private int[] mAfModes = new int[0];
+
+        Builder(String key) {
+            mKey = key;
+        }
+
+        Builder setFacing(int facing) {
+            mFacing = facing;
+            return this;
+        }
+
+        Builder setSensorOrientation(int sensorOrientation) {
+            mSensorOrientation = sensorOrientation;
+            return this;
+        }
+
+        Builder setHardwareLevel(int hardwareLevel) {
+            mHardwareLevel = hardwareLevel;
+            return this;
+        }
+
+        Builder setPreviewSizes(SizeCatalog sizes) {
+            mPreviewSizes = sizes;
+            return this;
+        }
+
+        Builder setAnalysisSizes(SizeCatalog sizes) {
+            mAnalysisSizes = sizes;
+            return this;
+        }
+
+        Builder setYuvSizes(SizeCatalog sizes) {
+            mYuvSizes = sizes;
+            return this;
+        }
+
+        Builder setJpegSizes(SizeCatalog sizes) {
+            mJpegSizes = sizes;
+            return this;
+        }
+
+        Builder setPreviewRates(SizeRates rates) {
+            mPreviewRates = rates;
+            return this;
+        }
+
+        Builder setAnalysisRates(SizeRates rates) {
+            mAnalysisRates = rates;
+            return this;
+        }
+
+        Builder setFpsRanges(int[][] ranges, int scale) {
+            mFpsRanges = ranges;
+            mFpsScale = scale;
+            return this;
+        }
+
+        Builder setFocusModes(String[] modes) {
+            mFocusModes = modes;
+            return this;
+        }
+
+        Builder setAfModes(int[] modes) {
+            mAfModes = modes;
+            return this;
+        }
+
+        CameraCapabilities build() {
+            return new CameraCapabilities(this);
+        }
+
+    }
+
+}
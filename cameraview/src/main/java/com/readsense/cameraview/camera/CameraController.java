@@ -0,0 +1,348 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.readsense.cameraview.camera;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.concurrent.CancellationException;
+
+/**
+ * Runs the open, configure and close steps of a camera as commands on a {@link CameraThread}, so
+ * that none of them blocks the caller.
+ *
+ * <p>Commands only record the wanted outcome; the camera thread then brings the camera to it in
+ * as few steps as possible. Redundant commands queued before the thread gets to them collapse:
+ * several reconfigurations run once, a reconfiguration is dropped when the camera is reopened
+ * anyway, and a start followed by a stop never opens the camera.</p>
+ */
+class CameraController {
+
+    private static final String TAG = "CameraController";
+
+    static final int STATE_CLOSED = 0;
+
+    static final int STATE_OPENING = 1;
+
+    static final int STATE_OPENED = 2;
+
+    static final int STATE_CLOSING = 3;
+
+    /**
+     * The steps of one camera backend, always called on the camera thread.
+     */
+    interface Operations {
+
+        /**
+         * Opens the camera with the current parameters and starts the preview.
+         *
+         * @throws RuntimeException if the camera cannot be opened.
+         */
+        void open();
+
+        /**
+         * Applies a new surface or new parameters to the opened camera.
+         *
+         * @throws RuntimeException if the camera rejects them.
+         */
+        void configure();
+
+        /**
+         * Replaces the opened camera with the one of the current parameters, keeping the preview
+         * surface, buffers and threads where the backend can.
+         *
+         * @throws RuntimeException if the new camera cannot be opened.
+         */
+        void switchCamera();
+
+        /**
+         * Stops the preview and releases the camera, if opened.
+         */
+        void close();
+
+    }
+
+    /**
+     * Completion of one {@link #start(Listener)}, called on the camera thread.
+     */
+    interface Listener {
+
+        void onStarted();
+
+        /**
+         * @param e The reason, a {@link CancellationException} if the start was overridden by
+         *          {@link #stop()}.
+         */
+        void onStartFailed(Exception e);
+
+    }
+
+    private final CameraThread mThread;
+
+    private final Operations mOperations;
+
+    private final Object mLock = new Object();
+
+    /** Whether the camera should end up opened. Guarded by {@link #mLock}, like the flags below. */
+    private boolean mWantOpen;
+
+    private boolean mReopen;
+
+    private boolean mReconfigure;
+
+    private boolean mSwitch;
+
+    /** {@code true} while {@link #mDrainTask} is queued or running. */
+    private boolean mScheduled;
+
+    private final ArrayList<Listener> mListeners = new ArrayList<>();
+
+    private volatile int mState = STATE_CLOSED;
+
+    private final Runnable mDrainTask = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+
+    CameraController(CameraThread thread, Operations operations) {
+        mThread = thread;
+        mOperations = operations;
+    }
+
+    /**
+     * @return One of the {@code STATE_*} constants.
+     */
+    int getState() {
+        return mState;
+    }
+
+    /**
+     * Opens the camera, or reopens it if it is already opened so that new parameters take
+     * effect. Returns right away.
+     *
+     * @param listener Told on the camera thread once the camera is opened, may be {@code null}.
+     */
+    void start(Listener listener) {
+        synchronized (mLock) {
+            mWantOpen = true;
+            mReopen = true;
+            if (listener != null) {
+                mListeners.add(listener);
+            }
+            scheduleLocked();
+        }
+    }
+
+    /**
+     * Switches the opened camera to the one of the current parameters, or opens it like
+     * {@link #start(Listener)} if it is not opened. Returns right away.
+     *
+     * @param listener Told on the camera thread once the new camera is opened, may be
+     *                 {@code null}.
+     */
+    void switchCamera(Listener listener) {
+        synchronized (mLock) {
+            mWantOpen = true;
+            mSwitch = true;
+            if (listener != null) {
+                mListeners.add(listener);
+            }
+            scheduleLocked();
+        }
+    }
+
+    /**
+     * Re-applies the surface and parameters if the camera is or is about to be opened.
+     */
+    void reconfigure() {
+        synchronized (mLock) {
+            if (!mWantOpen) {
+                return;
+            }
+            mReconfigure = true;
+            scheduleLocked();
+        }
+    }
+
+    /**
+     * Closes the camera and fails the starts that have not completed yet. Returns right away.
+     */
+    void stop() {
+        final Listener[] cancelled;
+        synchronized (mLock) {
+            mWantOpen = false;
+            mReopen = false;
+            mReconfigure = false;
+            mSwitch = false;
+            cancelled = takeListenersLocked();
+            scheduleLocked();
+        }
+        if (cancelled.length > 0) {
+            fail(cancelled, new CancellationException("Camera stopped before it was opened"));
+        }
+    }
+
+    private void scheduleLocked() {
+        if (mScheduled) {
+            return;
+        }
+        mThread.start();
+        mScheduled = mThread.post(mDrainTask);
+    }
+
+    private Listener[] takeListenersLocked() {
+        final Listener[] listeners = mListeners.toArray(new Listener[mListeners.size()]);
+        mListeners.clear();
+        return listeners;
+    }
+
+    /**
+     * Brings the camera to the wanted state until no command is pending, then lets the thread go
+     * if the camera is closed.
+     */
+    private void drain() {
+        while (true) {
+            final boolean open;
+            final boolean reopen;
+            final boolean reconfigure;
+            final boolean switchCamera;
+            final Listener[] listeners;
+            synchronized (mLock) {
+                open = mWantOpen;
+                reopen = mReopen;
+                reconfigure = mReconfigure;
+                switchCamera = mSwitch;
+                if (open == (mState == STATE_OPENED) && !reopen && !reconfigure && !switchCamera
+                        && mListeners.isEmpty()) {
+                    mScheduled = false;
+                    if (!open) {
+                        // Nothing else can be queued while we hold the lock
+                        mThread.quit();
+                    }
+                    return;
+                }
+                mReopen = false;
+                mReconfigure = false;
+                mSwitch = false;
+                listeners = takeListenersLocked();
+            }
+            if (!open) {
+                close();
+                if (listeners.length > 0) {
+                    fail(listeners, new CancellationException("Camera start failed"));
+                }
+            } else if (reopen || mState != STATE_OPENED) {
+                // Opening configures the camera as well
+                open(listeners);
+            } else if (switchCamera) {
+                // The new camera is configured while it opens
+                switchCamera(listeners);
+            } else if (reconfigure) {
+                configure(listeners);
+            } else {
+                for (Listener listener : listeners) {
+                    listener.onStarted();
+                }
+            }
+        }
+    }
+
+    private void open(Listener[] listeners) {
+        close();
+        mState = STATE_OPENING;
+        try {
+            mOperations.open();
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Failed to open the camera", e);
+            close();
+            synchronized (mLock) {
+                // Retrying would fail the same way; wait for the next start
+                if (!mReopen) {
+                    mWantOpen = false;
+                }
+            }
+            fail(listeners, e);
+            return;
+        }
+        mState = STATE_OPENED;
+        for (Listener listener : listeners) {
+            listener.onStarted();
+        }
+    }
+
+    private void configure(Listener[] listeners) {
+        try {
+            mOperations.configure();
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Failed to configure the camera", e);
+            close();
+            synchronized (mLock) {
+                // Like a failed open, the camera stays closed until the next start
+                if (!mReopen) {
+                    mWantOpen = false;
+                }
+            }
+            fail(listeners, e);
+            return;
+        }
+        for (Listener listener : listeners) {
+            listener.onStarted();
+        }
+    }
+
+    private void switchCamera(Listener[] listeners) {
+        mState = STATE_OPENING;
+        try {
+            mOperations.switchCamera();
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Failed to switch the camera", e);
+            close();
+            synchronized (mLock) {
+                if (!mReopen && !mSwitch) {
+                    mWantOpen = false;
+                }
+            }
+            fail(listeners, e);
+            return;
+        }
+        mState = STATE_OPENED;
+        for (Listener listener : listeners) {
+            listener.onStarted();
+        }
+    }
+
+    private static void fail(Listener[] listeners, Exception e) {
+        for (Listener listener : listeners) {
+            listener.onStartFailed(e);
+        }
+    }
+
+    private void close() {
+        if (mState == STATE_CLOSED) {
+            return;
+        }
+        mState = STATE_CLOSING;
+        try {
+            mOperations.close();
+        } finally {
+            mState = STATE_CLOSED;
+        }
+    }
+
+}
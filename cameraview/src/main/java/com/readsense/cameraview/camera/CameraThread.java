@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.readsense.cameraview.camera;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+
+/**
+ * A library-owned {@link HandlerThread} that camera work is posted to.
+ *
+ * <p>A camera opened on this thread delivers its callbacks to this thread's looper instead of the
+ * main one.</p>
+ */
+class CameraThread {
+
+    private final String mName;
+
+    private HandlerThread mThread;
+
+    private Handler mHandler;
+
+    CameraThread(String name) {
+        mName = name;
+    }
+
+    /**
+     * Starts the thread if it is not running yet.
+     */
+    synchronized void start() {
+        if (mThread != null) {
+            return;
+        }
+        mThread = new HandlerThread(mName);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+    }
+
+    synchronized boolean isRunning() {
+        return mThread != null;
+    }
+
+    synchronized boolean isCurrentThread() {
+        return mThread != null && Thread.currentThread() == mThread;
+    }
+
+    synchronized Handler getHandler() {
+        return mHandler;
+    }
+
+    /**
+     * @return {@code false} if the thread is not running and {@code task} was not queued.
+     */
+    synchronized boolean post(Runnable task) {
+        return mHandler != null && mHandler.post(task);
+    }
+
+    /**
+     * Lets the already queued tasks finish, then stops the thread. Waits for the thread to die
+     * unless called from the thread itself.
+     */
+    void quit() {
+        final HandlerThread thread;
+        synchronized (this) {
+            thread = mThread;
+            mThread = null;
+            mHandler = null;
+        }
+        if (thread == null) {
+            return;
+        }
+        thread.quitSafely();
+        if (Thread.currentThread() == thread) {
+            return;
+        }
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.readsense.cameraview.camera;
+
+import android.os.SystemClock;
+
+/**
+ * When each step of one camera session began and ended, from the start request to the release
+ * of the camera.
+ *
+ * <p>All times are {@link SystemClock#elapsedRealtimeNanos()}, 0 for steps that have not run.
+ * A step that runs several times in a session, for example when the surface changes, keeps the
+ * times of its first run. Instances handed to {@link CameraView.TimingListener} are snapshots and
+ * never change afterwards.</p>
+ */
+public final class CameraTimings {
+
+    public static final int API_CAMERA1 = 1;
+
+    public static final int API_CAMERA2 = 2;
+
+    /** Camera1: picking the camera id. Camera2: picking the id and looking up its capabilities. */
+    public static final int STEP_CHOOSE_CAMERA = 0;
+
+    /** {@code Camera.open()}, or {@code CameraManager.openCamera()} until the device is opened. */
+    public static final int STEP_OPEN = 1;
+
+    /** {@code Camera.getParameters()}, or creating the preview capture request. */
+    public static final int STEP_GET_PARAMETERS = 2;
+
+    /** {@code Camera.setParameters()}, or creating the capture session until it is configured. */
+    public static final int STEP_SET_PARAMETERS = 3;
+
+    /** Binding the preview surface, or sizing it and taking its {@code Surface}. */
+    public static final int STEP_SET_PREVIEW_TEXTURE = 4;
+
+    /** {@code Camera.startPreview()}, or setting the repeating request. */
+    public static final int STEP_START_PREVIEW = 5;
+
+    /** The first preview frame reaching the frame callbacks; begins and ends at once. */
+    public static final int STEP_FIRST_FRAME = 6;
+
+    /** Stopping the preview, or closing the capture session. */
+    public static final int STEP_STOP = 7;
+
+    /** {@code Camera.release()}, or closing the device. */
+    public static final int STEP_RELEASE = 8;
+
+    public static final int STEP_COUNT = 9;
+
+    private static final String[] STEP_NAMES = {"chooseCamera", "open", "getParameters",
+            "setParameters", "setPreviewTexture", "startPreview", "firstFrame", "stop", "release"};
+
+    private final int mApi;
+
+    private String mCameraId;
+
+    private long mRequestTime;
+
+    private long mSessionStart;
+
+    private final long[] mBegin = new long[STEP_COUNT];
+
+    private final long[] mEnd = new long[STEP_COUNT];
+
+    CameraTimings(int api) {
+        mApi = api;
+    }
+
+    /**
+     * Clears the record for a new session.
+     *
+     * @param requestTime When the session was requested, 0 if it was not requested through
+     *                    {@link CameraView}, for example when new parameters reopen the camera.
+     */
+    synchronized void reset(long requestTime) {
+        mCameraId = null;
+        mRequestTime = requestTime;
+        mSessionStart = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < STEP_COUNT; i++) {
+            mBegin[i] = 0;
+            mEnd[i] = 0;
+        }
+    }
+
+    synchronized void setCameraId(String cameraId) {
+        mCameraId = cameraId;
+    }
+
+    synchronized void begin(int step) {
+        if (mBegin[step] == 0) {
+            mBegin[step] = SystemClock.elapsedRealtimeNanos();
+        }
+    }
+
+    synchronized void end(int step) {
+        if (mBegin[step] != 0 && mEnd[step] == 0) {
+            mEnd[step] = SystemClock.elapsedRealtimeNanos();
+        }
+    }
+
+    /**
+     * Records a step without duration.
+     */
+    synchronized void mark(int step) {
+        begin(step);
+        end(step);
+    }
+
+    synchronized CameraTimings copy() {
+        final CameraTimings copy = new CameraTimings(mApi);
+        copy.mCameraId = mCameraId;
+        copy.mRequestTime = mRequestTime;
+        copy.mSessionStart = mSessionStart;
+        System.arraycopy(mBegin, 0, copy.mBegin, 0, STEP_COUNT);
+        System.arraycopy(mEnd, 0, copy.mEnd, 0, STEP_COUNT);
+        return copy;
+    }
+
+    /**
+     * @return {@link #API_CAMERA1} or {@link #API_CAMERA2}.
+     */
+    public int getApi() {
+        return mApi;
+    }
+
+    /**
+     * @return The id of the opened camera, {@code null} if none was chosen.
+     */
+    public synchronized String getCameraId() {
+        return mCameraId;
+    }
+
+    /**
+     * @return When {@link CameraView} was asked to start or switch, 0 if the session was started
+     * internally.
+     */
+    public synchronized long getRequestTimeNanos() {
+        return mRequestTime;
+    }
+
+    /**
+     * @return When the camera thread began the session.
+     */
+    public synchronized long getSessionStartNanos() {
+        return mSessionStart;
+    }
+
+    public synchronized long getBeginNanos(int step) {
+        return mBegin[step];
+    }
+
+    public synchronized long getEndNanos(int step) {
+        return mEnd[step];
+    }
+
+    /**
+     * @return How long {@code step} took, or -1 if it has not completed.
+     */
+    public synchronized long getDurationNanos(int step) {
+        return mEnd[step] == 0 ? -1 : mEnd[step] - mBegin[step];
+    }
+
+    /**
+     * @return The time from the request, or from the session start if there was none, to the
+     * first frame, or -1 if no frame has arrived.
+     */
+    public synchronized long getTimeToFirstFrameNanos() {
+        final long firstFrame = mEnd[STEP_FIRST_FRAME];
+        if (firstFrame == 0) {
+            return -1;
+        }
+        return firstFrame - (mRequestTime != 0 ? mRequestTime : mSessionStart);
+    }
+
+    public static String getStepName(int step) {
+        return STEP_NAMES[step];
+    }
+
+    @Override
+    public synchronized String toString() {
+        final StringBuilder sb = new StringBuilder("CameraTimings{api=").append(mApi)
+                .append(", camera=").append(mCameraId)
+                .append(", timeToFirstFrameMs=").append(toMillis(getTimeToFirstFrameNanos()));
+        for (int i = 0; i < STEP_COUNT; i++) {
+            final long duration = getDurationNanos(i);
+            if (duration >= 0) {
+                sb.append(", ").append(STEP_NAMES[i]).append("Ms=").append(toMillis(duration));
+            }
+        }
+        return sb.append('}').toString();
+    }
+
+    private static String toMillis(long nanos) {
+        return nanos < 0 ? "-" : String.valueOf(nanos / 1000000L);
+    }
+
+}
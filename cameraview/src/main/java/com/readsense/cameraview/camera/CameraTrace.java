@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.readsense.cameraview.camera;
+
+import android.os.Build;
+import android.os.Trace;
+import android.util.Log;
+
+import java.lang.reflect.Method;
+
+/**
+ * Optional {@link Trace} sections around the camera hot paths, so that they show up in systrace
+ * and Perfetto next to RenderThread and GC activity.
+ *
+ * <p>Disabled by default; every call then costs one static field read. Each begin reports
+ * whether it opened a section, and only those are ended, so tracing may be toggled at any time.
+ * Sections must begin and end on the same thread; async slices may end on any thread.</p>
+ */
+final class CameraTrace {
+
+    private static final String TAG = "CameraTrace";
+
+    static final String FRAME = "CameraView.frame";
+
+    private static volatile boolean sEnabled;
+
+    /** {@code null} if async slices are not available on this device. */
+    private static Method sBeginAsync;
+
+    private static Method sEndAsync;
+
+    /** The first argument of the hidden methods used before API 29, {@code null} from 29 on. */
+    private static Object sTraceTag;
+
+    private static boolean sAsyncResolved;
+
+    private CameraTrace() {
+    }
+
+    static synchronized void setEnabled(boolean enabled) {
+        if (enabled && !sAsyncResolved) {
+            sAsyncResolved = true;
+            resolveAsync();
+        }
+        sEnabled = enabled;
+    }
+
+    static boolean isEnabled() {
+        return sEnabled;
+    }
+
+    /**
+     * Begins a section that ends on the same thread.
+     *
+     * @return Whether the section was begun; pass it to {@link #end(boolean)}.
+     */
+    static boolean begin(String name) {
+        if (sEnabled) {
+            Trace.beginSection(name);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @param traced What the matching {@link #begin(String)} returned.
+     */
+    static void end(boolean traced) {
+        if (traced) {
+            Trace.endSection();
+        }
+    }
+
+    /**
+     * Begins a slice that may end on another thread, identified by {@code name} and
+     * {@code cookie}.
+     *
+     * @return Whether the slice was begun and has to be ended.
+     */
+    static boolean beginAsync(String name, int cookie) {
+        return sEnabled && invokeAsync(sBeginAsync, name, cookie);
+    }
+
+    static void endAsync(String name, int cookie) {
+        invokeAsync(sEndAsync, name, cookie);
+    }
+
+    private static boolean invokeAsync(Method method, String name, int cookie) {
+        if (method == null) {
+            return false;
+        }
+        try {
+            if (sTraceTag != null) {
+                method.invoke(null, sTraceTag, name, cookie);
+            } else {
+                method.invoke(null, name, cookie);
+            }
+            return true;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    /**
+     * Looks up the async slice methods by reflection: they are public from API 29 on, which is
+     * above the compile SDK, and hidden before.
+     */
+    private static void resolveAsync() {
+        try {
+            if (Build.VERSION.SDK_INT >= 29) {
+                sBeginAsync = Trace.class.getMethod("beginAsyncSection", String.class,
+                        int.class);
+                sEndAsync = Trace.class.getMethod("endAsyncSection", String.class, int.class);
+            } else {
+                sTraceTag = Trace.class.getField("TRACE_TAG_APP").get(null);
+                sBeginAsync = Trace.class.getMethod("asyncTraceBegin", long.class,
+                        String.class, int.class);
+                sEndAsync = Trace.class.getMethod("asyncTraceEnd", long.class, String.class,
+                        int.class);
+            }
+        } catch (Exception e) {
+            Log.w(TAG, "Async trace slices are not available", e);
+            sBeginAsync = null;
+            sEndAsync = null;
+            sTraceTag = null;
+        }
+    }
+
+}
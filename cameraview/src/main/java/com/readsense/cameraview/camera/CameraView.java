@@ -20,7 +20,10 @@ import android.content.Context;
 import android.content.res.TypedArray;
 import android.hardware.Camera;
 import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
 import android.os.Parcelable;
+import android.os.SystemClock;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
@@ -33,12 +36,18 @@ import android.widget.FrameLayout;
 import com.readsense.cameraview.R;
 import com.readsense.cameraview.modle.CameraParameters;
 
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+
 
 public class CameraView extends FrameLayout {
     private CameraViewImpl mImpl;
     private CallbackBridge mCallbacks;
     private final DisplayOrientationDetector mDisplayOrientationDetector;
     private CameraParameters mCameraParameters;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private volatile TimingListener mTimingListener;
+    private final FrameMetricsRecorder mMetrics = new FrameMetricsRecorder();
 
 
     public CameraView(Context context) {
@@ -58,12 +67,13 @@ public class CameraView extends FrameLayout {
         }
         final PreviewImpl preview = createPreviewImpl(context);
         mCallbacks = new CallbackBridge();
-//        if (Build.VERSION.SDK_INT < 21) {
-//            mImpl = new Camera1(mCallbacks, preview);
-//        } else if (Build.VERSION.SDK_INT > 21) {
-//            mImpl = new Camera2(mCallbacks, preview, context);
-//        }
-        mImpl = new Camera1(mCallbacks, preview);
+        // Camera2 only pays off on devices that implement it natively rather than as a legacy shim
+        if (Build.VERSION.SDK_INT >= 21 && Camera2.isSupported(context)) {
+            mImpl = new Camera2(mCallbacks, preview, context);
+        } else {
+            mImpl = new Camera1(mCallbacks, preview);
+        }
+        mImpl.setMetrics(mMetrics);
         TypedArray a = context.obtainStyledAttributes(attrs, R.styleable.CameraView, defStyleAttr,
                 R.style.Widget_CameraView);
         mCameraParameters = mImpl.getCameraParameters();
@@ -150,13 +160,60 @@ public class CameraView extends FrameLayout {
         }
     }
 
+    /**
+     * 打开摄像头，不阻塞调用线程，打开、配置都在后台线程执行
+     */
     public void start(CameraParameters mCameraParameters) {
+        start(mCameraParameters, null);
+    }
+
+    /**
+     * 打开摄像头，立即返回。打开完成或失败后在主线程回调 callback。
+     * 连续多次 start/stop 会合并执行，只有最终状态生效。
+     *
+     * @param callback 可为 null
+     */
+    public void start(CameraParameters mCameraParameters, @Nullable final StartCallback callback) {
+        final CameraController.Listener listener = callback == null ? null : new CameraController.Listener() {
+            @Override
+            public void onStarted() {
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onStarted(CameraView.this);
+                    }
+                });
+            }
+
+            @Override
+            public void onStartFailed(final Exception e) {
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onStartFailed(CameraView.this, e);
+                    }
+                });
+            }
+        };
+        startCamera(mCameraParameters, listener);
+    }
+
+    private void startCamera(CameraParameters mCameraParameters, CameraController.Listener listener) {
+        mImpl.markStartRequested();
         mImpl.setCameraParameters(mCameraParameters);
-        if (!mImpl.start()) {
+        mImpl.setFrameTransform(mCameraParameters.mUprightFrames, mCameraParameters.mParallelKernels);
+        mCallbacks.openDispatchers(mCameraParameters.mDispatchPolicy, mCameraParameters.mDispatchQueueSize);
+        if (!mImpl.start(listener)) {
             Parcelable state = onSaveInstanceState();//store the state ,and restore this state after fall back o Camera1
+            removeView(mImpl.getView());
             mImpl = new Camera1(mCallbacks, createPreviewImpl(getContext()));// Camera2 uses legacy hardware layer; fall back to Camera1
             onRestoreInstanceState(state);
-            mImpl.start();
+            mImpl.markStartRequested();
+            mImpl.setCameraParameters(mCameraParameters);
+            mImpl.setFrameTransform(mCameraParameters.mUprightFrames, mCameraParameters.mParallelKernels);
+            mImpl.setLumaOnly(mCallbacks.isLumaOnly());
+            mImpl.setMetrics(mMetrics);
+            mImpl.start(listener);
         }
         this.mCameraParameters = mCameraParameters;
         requestLayout();
@@ -170,13 +227,100 @@ public class CameraView extends FrameLayout {
     }
 
     /**
-     * 停止摄像头
+     * 停止摄像头，立即返回，相机在后台线程关闭
      */
     public void stop() {
-        mCallbacks = null;
-        if (mImpl.isCameraOpened()) {
-            mImpl.stop();
-        }
+        // The camera may still be opening on the camera thread, so always let the impl stop.
+        mImpl.stop();
+        mCallbacks.closeDispatchers();
+    }
+
+    /**
+     * 当前生效的帧率范围 {最小, 最大}（fps），相机未打开或未知时为 null，
+     * 可用于估算分析线程的处理预算。
+     */
+    @Nullable
+    public int[] getFpsRange() {
+        return mImpl.getFpsRange();
+    }
+
+    /**
+     * 拍照，从预览会话中的拍照流取图，预览和分析帧不中断。需要 Camera2，
+     * 并在 start 前通过 {@link CameraParameters#setmStillCapture(int)} 开启拍照流，
+     * 否则回调 onPictureFailed。结果在主线程回调。
+     */
+    public void takePicture(@NonNull final PictureCallback callback) {
+        mImpl.takePicture(new CameraViewImpl.PictureCallback() {
+            @Override
+            public void onPictureTaken(final byte[] data, final int format, final int width,
+                                       final int height) {
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onPictureTaken(CameraView.this, data, format, width, height);
+                    }
+                });
+            }
+
+            @Override
+            public void onPictureFailed(final Exception e) {
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onPictureFailed(CameraView.this, e);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * 已交给回调处理完成的预览帧数（本次 start 以来，所有回调之和）
+     */
+    public long getDeliveredFrameCount() {
+        return mCallbacks.sumDelivered();
+    }
+
+    /**
+     * 因回调处理不过来而被丢弃的预览帧数（本次 start 以来，所有回调之和）
+     */
+    public long getDroppedFrameCount() {
+        return mCallbacks.sumDropped();
+    }
+
+    /**
+     * 指定回调已处理完成的预览帧数，回调未添加时返回 0
+     */
+    public long getDeliveredFrameCount(@NonNull Callback callback) {
+        CallbackBridge.FrameConsumer consumer = mCallbacks.find(callback);
+        return consumer == null ? 0 : consumer.mDispatcher.getDeliveredCount();
+    }
+
+    /**
+     * 指定回调被丢弃的预览帧数，回调未添加时返回 0
+     */
+    public long getDroppedFrameCount(@NonNull Callback callback) {
+        CallbackBridge.FrameConsumer consumer = mCallbacks.find(callback);
+        return consumer == null ? 0 : consumer.mDispatcher.getDroppedCount();
+    }
+
+    /**
+     * 预览帧管线的运行指标快照：相机出帧数、最近一秒帧率、帧间隔分布、缓冲区耗尽次数。
+     * 记录无锁且不分配内存，可在正式版本中常开；快照开销很小，可定期采集上报。
+     */
+    @NonNull
+    public FrameMetrics getFrameMetrics() {
+        return mMetrics.snapshot();
+    }
+
+    /**
+     * 指定回调的运行指标快照：处理帧数、丢帧数、排队耗时和处理耗时分布，
+     * 回调未添加时返回 null
+     */
+    @Nullable
+    public FrameMetrics.Consumer getFrameMetrics(@NonNull Callback callback) {
+        CallbackBridge.FrameConsumer consumer = mCallbacks.find(callback);
+        return consumer == null ? null : consumer.mDispatcher.getMetrics();
     }
 
     /**
@@ -188,18 +332,112 @@ public class CameraView extends FrameLayout {
         return mImpl.isCameraOpened();
     }
 
+    /**
+     * 添加回调，可以添加多个。每个回调共享同一份预览数据（不拷贝），
+     * 所有回调都处理完后缓冲区才会还给相机，回调中不要修改数据。
+     */
     public void addCallback(@NonNull Callback callback) {
+        addCallback(callback, null);
+    }
+
+    /**
+     * 添加回调，并在指定的 {@link Executor} 上执行 onPreviewFrame，每个回调各自按分发策略排队。
+     *
+     * @param executor 为 null 时使用分发策略对应的默认线程；不为 null 时回调不会在相机线程直接执行，
+     *                 策略为 DISPATCH_INLINE 时按 DISPATCH_KEEP_LATEST 处理
+     */
+    public void addCallback(@NonNull Callback callback, @Nullable Executor executor) {
+        addCallback(callback, executor, null);
+    }
+
+    /**
+     * 添加回调，并指定该回调需要的分析帧，例如人脸检测只需要 320x240 的灰度图。
+     * 裁剪和缩放在该回调自己的分发线程上执行，被丢弃的帧不会做缩放。
+     * onPreviewFrame 收到的 data 同样是缩放后的数据，camera 为 null。
+     *
+     * @param options 为 null 时收到原始预览帧
+     */
+    public void addCallback(@NonNull Callback callback, @Nullable Executor executor,
+                            @Nullable AnalysisOptions options) {
         if (mCallbacks == null) mCallbacks = new CallbackBridge();
-        mCallbacks.setmCallback(callback);
+        mCallbacks.add(callback, executor, options);
+        if (mImpl != null) mImpl.setLumaOnly(mCallbacks.isLumaOnly());
+    }
+
+    public void removeCallback(@NonNull Callback callback) {
+        if (mCallbacks == null) return;
+        mCallbacks.remove(callback);
+        if (mImpl != null) mImpl.setLumaOnly(mCallbacks.isLumaOnly());
     }
 
     public void swichCamera() {
-        CameraParameters cameraParameters = mImpl.getCameraParameters();
-        int mCameraId = cameraParameters.CameraId == CameraParameters.FACING_BACK ? CameraParameters.FACING_FRONT : CameraParameters.FACING_BACK;
-        cameraParameters.setCameraId(mCameraId);
-        reStart(cameraParameters);
+        swichCamera(null);
+    }
+
+    /**
+     * 切换前后摄像头。相机已打开时只重新打开相机，预览 Surface、帧缓存和分发线程都保留，
+     * 不重新布局；未打开时等同于 {@link #reStart(CameraParameters)}。
+     * 完成后在主线程回调 callback，并带上切换耗时。
+     *
+     * @param callback 可为 null
+     */
+    public void swichCamera(@Nullable final SwitchCallback callback) {
+        final CameraParameters cameraParameters = mImpl.getCameraParameters();
+        final int cameraId = cameraParameters.CameraId == CameraParameters.FACING_BACK ? CameraParameters.FACING_FRONT : CameraParameters.FACING_BACK;
+        final long startTime = SystemClock.elapsedRealtime();
+        final CameraController.Listener listener = callback == null ? null : new CameraController.Listener() {
+            @Override
+            public void onStarted() {
+                final long latency = SystemClock.elapsedRealtime() - startTime;
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onCameraSwitched(CameraView.this, cameraId, latency);
+                    }
+                });
+            }
+
+            @Override
+            public void onStartFailed(final Exception e) {
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onSwitchFailed(CameraView.this, e);
+                    }
+                });
+            }
+        };
+        mImpl.markStartRequested();
+        if (!mImpl.isCameraOpened() || !mImpl.switchCamera(cameraId, listener)) {
+            // Not running yet, or Camera2 cannot drive the other camera: take the full start path
+            cameraParameters.setCameraId(cameraId);
+            if (mImpl.isCameraOpened()) {
+                mImpl.stop();
+            }
+            startCamera(cameraParameters, listener);
+        }
+    }
+
+
+    /**
+     * 开启或关闭 systrace/Perfetto 埋点，对进程内所有 CameraView 生效，默认关闭，关闭时几乎没有开销。
+     * 开启后预览帧回调、参数设置、预览绑定、Camera2 会话回调等热点路径带有 trace section，
+     * 每一帧从分发到最后一次 release 记录为一个异步 slice（名为 "CameraView.frame"，cookie 为帧序号）。
+     * 可随时切换，已开始的 section 总会被结束。
+     */
+    public static void setTraceEnabled(boolean enabled) {
+        CameraTrace.setEnabled(enabled);
     }
 
+    /**
+     * 设置相机会话耗时监听，每次会话收到首帧和释放相机后各在主线程回调一次，
+     * 记录选择摄像头、打开、设置参数、开始预览、首帧、停止、释放等步骤的时间点。
+     *
+     * @param listener 为 null 时取消监听
+     */
+    public void setTimingListener(@Nullable TimingListener listener) {
+        mTimingListener = listener;
+    }
 
     public void initCameraParameters(CameraParameters cameraParameters) {
         if (null == mCameraParameters) {
@@ -211,35 +449,275 @@ public class CameraView extends FrameLayout {
 
 
     private class CallbackBridge implements CameraViewImpl.Callback {
-        private CameraView.Callback mCallback = null;
 
-        @Override
-        public void onCameraOpened() {
-            if (mCallback != null) {
-                mCallback.onCameraOpened(CameraView.this);
+        /** Copy-on-write, so the frame path can iterate without locking or allocating. */
+        private volatile FrameConsumer[] mConsumers = new FrameConsumer[0];
+
+        private int mPolicy = CameraParameters.DISPATCH_INLINE;
+
+        private int mCapacity = 1;
+
+        private final Runnable mOpenedTask = new Runnable() {
+            @Override
+            public void run() {
+                for (FrameConsumer consumer : mConsumers) {
+                    consumer.mCallback.onCameraOpened(CameraView.this);
+                }
+            }
+        };
+
+        private final Runnable mClosedTask = new Runnable() {
+            @Override
+            public void run() {
+                for (FrameConsumer consumer : mConsumers) {
+                    consumer.mCallback.onCameraClosed(CameraView.this);
+                }
             }
+        };
 
+        // The camera opens and closes on the camera thread; report it where the UI can react
+        @Override
+        public void onCameraOpened() {
+            mMainHandler.post(mOpenedTask);
         }
 
         @Override
         public void onCameraClosed() {
-            if (mCallback != null) {
-                mCallback.onCameraClosed(CameraView.this);
+            mMainHandler.post(mClosedTask);
+        }
+
+        @Override
+        public void onFirstFrame(CameraTimings timings) {
+            postTimings(timings, false);
+        }
+
+        @Override
+        public void onSessionClosed(CameraTimings timings) {
+            postTimings(timings, true);
+        }
+
+        private void postTimings(final CameraTimings timings, final boolean closed) {
+            final TimingListener listener = mTimingListener;
+            if (listener == null) {
+                return;
             }
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (closed) {
+                        listener.onSessionClosed(CameraView.this, timings);
+                    } else {
+                        listener.onFirstFrame(CameraView.this, timings);
+                    }
+                }
+            });
         }
 
         @Override
-        public void onPreviewFrame(byte[] data, Camera camera) {
-            if (mCallback != null) {
-                mCallback.onPreviewFrame(data, camera);
+        public void onFrame(Frame frame) {
+            for (FrameConsumer consumer : mConsumers) {
+                consumer.mDispatcher.dispatch(frame.retain());
+            }
+            frame.release();
+        }
+
+        /**
+         * Gives every consumer a fresh dispatcher, so that the counters start from zero.
+         */
+        synchronized void openDispatchers(int policy, int capacity) {
+            mPolicy = policy;
+            mCapacity = capacity;
+            for (FrameConsumer consumer : mConsumers) {
+                FrameDispatcher old = consumer.mDispatcher;
+                consumer.mDispatcher = consumer.newDispatcher();
+                old.close();
             }
         }
 
-        public void setmCallback(@NonNull CameraView.Callback callback) {
-            mCallback = callback;
+        synchronized void closeDispatchers() {
+            for (FrameConsumer consumer : mConsumers) {
+                consumer.mDispatcher.close();
+            }
+        }
+
+        synchronized void add(CameraView.Callback callback, Executor executor,
+                AnalysisOptions options) {
+            remove(callback);
+            final FrameConsumer[] consumers = Arrays.copyOf(mConsumers, mConsumers.length + 1);
+            consumers[consumers.length - 1] = new FrameConsumer(callback, executor, options);
+            mConsumers = consumers;
+        }
+
+        synchronized void remove(CameraView.Callback callback) {
+            final FrameConsumer[] consumers = mConsumers;
+            for (int i = 0; i < consumers.length; i++) {
+                if (consumers[i].mCallback == callback) {
+                    final FrameConsumer[] remaining = new FrameConsumer[consumers.length - 1];
+                    System.arraycopy(consumers, 0, remaining, 0, i);
+                    System.arraycopy(consumers, i + 1, remaining, i, remaining.length - i);
+                    mConsumers = remaining;
+                    consumers[i].mDispatcher.close();
+                    return;
+                }
+            }
+        }
+
+        FrameConsumer find(CameraView.Callback callback) {
+            for (FrameConsumer consumer : mConsumers) {
+                if (consumer.mCallback == callback) {
+                    return consumer;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * @return {@code true} if there are callbacks and all of them only read luma.
+         */
+        boolean isLumaOnly() {
+            final FrameConsumer[] consumers = mConsumers;
+            for (FrameConsumer consumer : consumers) {
+                if (consumer.mStage == null || !consumer.mStage.isGray()) {
+                    return false;
+                }
+            }
+            return consumers.length > 0;
         }
+
+        long sumDelivered() {
+            long count = 0;
+            for (FrameConsumer consumer : mConsumers) {
+                count += consumer.mDispatcher.getDeliveredCount();
+            }
+            return count;
+        }
+
+        long sumDropped() {
+            long count = 0;
+            for (FrameConsumer consumer : mConsumers) {
+                count += consumer.mDispatcher.getDroppedCount();
+            }
+            return count;
+        }
+
+        /**
+         * One registered {@link CameraView.Callback} together with the dispatcher feeding it.
+         */
+        private class FrameConsumer implements FrameDispatcher.Consumer {
+
+            final CameraView.Callback mCallback;
+
+            final Executor mExecutor;
+
+            /** {@code null} if the callback takes the preview frames as they are. */
+            final AnalysisStage mStage;
+
+            volatile FrameDispatcher mDispatcher;
+
+            FrameConsumer(CameraView.Callback callback, Executor executor,
+                    AnalysisOptions options) {
+                mCallback = callback;
+                mExecutor = executor;
+                mStage = options == null ? null : new AnalysisStage(options);
+                mDispatcher = newDispatcher();
+            }
+
+            FrameDispatcher newDispatcher() {
+                return new FrameDispatcher(mPolicy, mCapacity, mExecutor, this);
+            }
+
+            @Override
+            public void onFrame(Frame frame) {
+                if (mStage == null) {
+                    deliver(frame);
+                    return;
+                }
+                final Frame analysis = mStage.process(frame, mImpl.isParallelKernels());
+                try {
+                    deliver(analysis);
+                } finally {
+                    analysis.release();
+                }
+            }
+
+            private void deliver(Frame frame) {
+                mCallback.onFrame(frame);
+                mCallback.onPreviewFrame(frame.mData, frame.mCamera);
+            }
+        }
+    }
+
+    /**
+     * {@link #start(CameraParameters, StartCallback)} 的结果，在主线程回调
+     */
+    public abstract static class StartCallback {
+
+        public void onStarted(CameraView cameraView) {
+        }
+
+        /**
+         * @param e 被 stop() 取消时为 {@link java.util.concurrent.CancellationException}
+         */
+        public void onStartFailed(CameraView cameraView, Exception e) {
+        }
+
     }
 
+    /**
+     * 相机会话各步骤的耗时，在主线程回调，见 {@link CameraTimings}
+     */
+    public abstract static class TimingListener {
+
+        /**
+         * 会话收到首帧，timings 中记录到首帧为止的步骤
+         */
+        public void onFirstFrame(CameraView cameraView, CameraTimings timings) {
+        }
+
+        /**
+         * 会话结束、相机已释放，timings 中记录了整个会话的步骤
+         */
+        public void onSessionClosed(CameraView cameraView, CameraTimings timings) {
+        }
+
+    }
+
+    /**
+     * {@link #swichCamera(SwitchCallback)} 的结果，在主线程回调
+     */
+    public abstract static class SwitchCallback {
+
+        /**
+         * @param cameraId  切换后的摄像头
+         * @param latencyMs 从调用切换到新摄像头开始预览的耗时（毫秒）
+         */
+        public void onCameraSwitched(CameraView cameraView, int cameraId, long latencyMs) {
+        }
+
+        public void onSwitchFailed(CameraView cameraView, Exception e) {
+        }
+
+    }
+
+    public abstract static class PictureCallback {
+
+        /**
+         * @param format {@link android.graphics.ImageFormat#JPEG} 或
+         *               {@link android.graphics.ImageFormat#NV21}
+         */
+        public void onPictureTaken(CameraView cameraView, byte[] data, int format, int width,
+                                   int height) {
+        }
+
+        public void onPictureFailed(CameraView cameraView, Exception e) {
+        }
+
+    }
+
+    /**
+     * onCameraOpened、onCameraClosed 在主线程回调；预览帧在相机线程或分发线程回调，
+     * 更新界面请切回主线程。
+     */
     public abstract static class Callback {
 
         public void onCameraOpened(CameraView cameraView) {
@@ -248,6 +726,18 @@ public class CameraView extends FrameLayout {
         public void onCameraClosed(CameraView cameraView) {
         }
 
+        /**
+         * 预览帧回调，带有尺寸、格式、旋转角度、时间戳等信息。
+         * 回调返回后 frame 会被回收复用，需要异步处理时先调用 {@link Frame#retain()}，
+         * 处理完再调用 {@link Frame#release()}。
+         */
+        public void onFrame(Frame frame) {
+        }
+
+        /**
+         * 旧版预览帧回调，与 {@link #onFrame(Frame)} 收到的是同一帧。
+         * 使用 Camera2 时 camera 为 null，data 也为 null，请通过 {@link Frame#getPlanes()} 读取。
+         */
         public void onPreviewFrame(byte[] data, Camera camera) {
         }
 
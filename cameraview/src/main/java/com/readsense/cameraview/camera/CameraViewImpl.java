@@ -16,28 +16,81 @@
 
 package com.readsense.cameraview.camera;
 
+import android.graphics.ImageFormat;
 import android.hardware.Camera;
+import android.media.Image;
+import android.os.SystemClock;
 import android.view.View;
 
 import com.readsense.cameraview.modle.CameraParameters;
 
+import java.util.ArrayList;
 import java.util.List;
 
-abstract class CameraViewImpl {
+abstract class CameraViewImpl implements FramePool.BufferReleaser {
 
     protected final Callback mCallback;
 
     protected final PreviewImpl mPreview;
 
-    CameraViewImpl(Callback callback, PreviewImpl preview) {
+    protected final FramePool mFramePool = new FramePool(this);
+
+    /*
+     * Describes the frames handed to dispatchFrame(), kept up to date by the implementation
+     * whenever the preview size, format, camera or display orientation changes.
+     */
+    protected int mFrameWidth;
+    protected int mFrameHeight;
+    protected int mFrameFormat = ImageFormat.NV21;
+    protected int mFrameRowStride;
+    protected int mFrameRotation;
+    protected boolean mFrameMirrored;
+
+    /** The applied frame rate range, {@code {min, max}} in frames per second. */
+    protected volatile int[] mFpsRange;
+
+    /** The steps of the current session, recorded on the camera thread. */
+    protected final CameraTimings mTimings;
+
+    private volatile long mRequestTime;
+
+    private volatile boolean mAwaitingFirstFrame;
+
+    private volatile FrameMetricsRecorder mMetrics = new FrameMetricsRecorder();
+
+    private long mFrameSequence;
+
+    private volatile boolean mUprightFrames;
+
+    private volatile boolean mParallelKernels;
+
+    private volatile boolean mLumaOnly;
+
+    private final ByteArrayPool mUprightPool = new ByteArrayPool(4);
+
+    private final ByteArrayPool mScratchPool = new ByteArrayPool(1);
+
+    /**
+     * @param api {@link CameraTimings#API_CAMERA1} or {@link CameraTimings#API_CAMERA2}.
+     */
+    CameraViewImpl(Callback callback, PreviewImpl preview, int api) {
         mCallback = callback;
         mPreview = preview;
+        mTimings = new CameraTimings(api);
     }
 
     View getView() {
         return mPreview.getView();
     }
 
+    /**
+     * Fills the capability cache from the snapshot before the first camera is chosen. Call it on
+     * the camera thread, which pays for the file read once per process.
+     */
+    protected void loadCapabilitySnapshot() {
+        CapabilitySnapshot.load(getView().getContext());
+    }
+
     public PreviewImpl getPreview() {
         return mPreview;
     }
@@ -48,22 +101,343 @@ abstract class CameraViewImpl {
      */
     abstract boolean start();
 
+    /**
+     * Starts like {@link #start()}, and tells {@code listener} on the camera thread once the
+     * camera is opened. Backends that open synchronously report right away.
+     *
+     * @param listener May be {@code null}.
+     */
+    boolean start(CameraController.Listener listener) {
+        final boolean started = start();
+        if (started && listener != null) {
+            listener.onStarted();
+        }
+        return started;
+    }
+
     abstract void stop();
 
+    /**
+     * Switches to camera {@code cameraId}. Backends that can replace the opened camera without a
+     * full stop and start override this; the default restarts.
+     *
+     * @param listener Told on the camera thread once the new camera is opened, may be
+     *                 {@code null}.
+     */
+    boolean switchCamera(int cameraId, CameraController.Listener listener) {
+        getCameraParameters().setCameraId(cameraId);
+        stop();
+        return start(listener);
+    }
+
     abstract boolean isCameraOpened();
 
 
-    abstract List<Camera.Size> getSupportedPreviewSize();
+    /**
+     * @return The preview sizes of the opened camera in ascending order, or {@code null} before
+     * a camera has been opened.
+     */
+    abstract List<Size> getSupportedPreviewSize();
 
     abstract void setDisplayOrientation(int displayOrientation);
 
-    interface Callback extends Camera.PreviewCallback {
+    /**
+     * Called once every consumer is done with a buffer delivered through
+     * {@link #dispatchFrame(byte[], Camera)}, so that it can be reused for later frames.
+     */
+    @Override
+    public void releaseBuffer(byte[] data) {
+    }
+
+    /**
+     * Called once every consumer is done with an image delivered through
+     * {@link #dispatchImage(Image)}.
+     */
+    @Override
+    public void releaseImage(Image image) {
+        image.close();
+    }
+
+    /**
+     * Wraps {@code data} into a pooled {@link Frame} described by the {@code mFrame*} fields and
+     * hands it to {@link #mCallback}.
+     */
+    protected final void dispatchFrame(byte[] data, Camera camera) {
+        dispatch(mFramePool.obtain(data, camera));
+    }
+
+    /**
+     * Hands the planes of {@code image} to {@link #mCallback} without copying. The image stays
+     * open until {@link #releaseImage(Image)}.
+     */
+    protected final void dispatchImage(Image image) {
+        dispatch(mFramePool.obtain(image));
+    }
+
+    private void dispatch(Frame frame) {
+        final long timestamp = SystemClock.elapsedRealtimeNanos();
+        mMetrics.onFrame(timestamp);
+        if (mAwaitingFirstFrame) {
+            mAwaitingFirstFrame = false;
+            mTimings.mark(CameraTimings.STEP_FIRST_FRAME);
+            mCallback.onFirstFrame(mTimings.copy());
+        }
+        frame.setInfo(mFrameWidth, mFrameHeight, mFrameFormat, mFrameRowStride, mFrameRotation,
+                mFrameMirrored, timestamp, mFrameSequence++);
+        final boolean traced = CameraTrace.begin("CameraView.dispatchFrame");
+        try {
+            if (mUprightFrames && (mFrameRotation != 0 || mFrameMirrored)) {
+                frame = toUpright(frame);
+            }
+            // Spans the frame from here until its last reference is released
+            frame.mTraced = CameraTrace.beginAsync(CameraTrace.FRAME, (int) frame.getSequence());
+            mCallback.onFrame(frame);
+        } finally {
+            CameraTrace.end(traced);
+        }
+    }
+
+    /**
+     * @param metrics Where frames are recorded, owned by the view so that it outlives a fallback
+     *                to another backend.
+     */
+    void setMetrics(FrameMetricsRecorder metrics) {
+        mMetrics = metrics;
+    }
+
+    /**
+     * Reports that the consumers hold every buffer or image the camera could fill.
+     */
+    protected final void onBufferExhausted() {
+        mMetrics.onBufferExhausted();
+    }
+
+    /**
+     * @param upright  Whether to rotate and mirror every frame on the camera thread, so that
+     *                 consumers receive NV21 that looks like the preview.
+     * @param parallel Whether the image kernels may split their work across several threads.
+     */
+    void setFrameTransform(boolean upright, boolean parallel) {
+        mUprightFrames = upright;
+        mParallelKernels = parallel;
+    }
+
+    /**
+     * @param lumaOnly Whether every consumer reads the luma plane only, so that chroma can be
+     *                 left out of the frame transforms.
+     */
+    void setLumaOnly(boolean lumaOnly) {
+        mLumaOnly = lumaOnly;
+    }
+
+    boolean isParallelKernels() {
+        return mParallelKernels;
+    }
+
+    /**
+     * @return The sizes of {@code catalog} in ascending order.
+     */
+    static List<Size> toSizes(SizeCatalog catalog) {
+        final long[] packed = catalog.toArray();
+        final List<Size> sizes = new ArrayList<>(packed.length);
+        for (long size : packed) {
+            sizes.add(new Size(SizeCatalog.width(size), SizeCatalog.height(size)));
+        }
+        return sizes;
+    }
+
+    /**
+     * Rotates and mirrors {@code frame} into a pooled NV21 buffer as described by its own
+     * metadata, and gives the camera buffer back right away.
+     *
+     * @return The upright frame, or {@code frame} itself if its layout is not supported.
+     */
+    private Frame toUpright(Frame frame) {
+        if (mLumaOnly) {
+            return toUprightGray(frame);
+        }
+        final int width = frame.getWidth();
+        final int height = frame.getHeight();
+        if ((width & 1) != 0 || (height & 1) != 0) {
+            return frame;
+        }
+        final int size = Nv21Converter.getNv21Size(width, height);
+        byte[] scratch = null;
+        final byte[] nv21;
+        if (frame.getPlanes() != null) {
+            scratch = mScratchPool.obtain(size);
+            Nv21Converter.convert(frame, scratch);
+            nv21 = scratch;
+        } else if (frame.getFormat() == ImageFormat.NV21 && frame.getRowStride() == width) {
+            nv21 = frame.getData();
+        } else {
+            return frame;
+        }
+        final int rotation = frame.getRotation();
+        final byte[] out = mUprightPool.obtain(size);
+        Nv21Rotator.rotate(nv21, width, height, rotation, frame.isMirrored(), out,
+                mParallelKernels);
+        if (scratch != null) {
+            mScratchPool.recycle(scratch);
+        }
+        final int uprightWidth = Nv21Rotator.getRotatedWidth(width, height, rotation);
+        final Frame upright = mFramePool.obtain(out, mUprightPool);
+        upright.setInfo(uprightWidth, Nv21Rotator.getRotatedHeight(width, height, rotation),
+                ImageFormat.NV21, uprightWidth, 0, false, frame.getTimestamp(),
+                frame.getSequence());
+        frame.release();
+        return upright;
+    }
+
+    /**
+     * Like {@link #toUpright(Frame)}, but only for the luma plane, producing a
+     * {@link Frame#FORMAT_GRAY} frame.
+     */
+    private Frame toUprightGray(Frame frame) {
+        final Frame.Luma luma = frame.getLuma();
+        if (luma == null) {
+            return frame;
+        }
+        final int width = luma.getWidth();
+        final int height = luma.getHeight();
+        byte[] scratch = null;
+        final byte[] src;
+        final int offset;
+        final int rowStride;
+        if (luma.getArray() != null) {
+            src = luma.getArray();
+            offset = luma.getOffset();
+            rowStride = luma.getRowStride();
+        } else {
+            scratch = mScratchPool.obtain(width * height);
+            luma.copyTo(scratch);
+            src = scratch;
+            offset = 0;
+            rowStride = width;
+        }
+        final int rotation = frame.getRotation();
+        final byte[] out = mUprightPool.obtain(width * height);
+        Nv21Rotator.rotateGray(src, offset, rowStride, width, height, rotation,
+                frame.isMirrored(), out, mParallelKernels);
+        if (scratch != null) {
+            mScratchPool.recycle(scratch);
+        }
+        final int uprightWidth = Nv21Rotator.getRotatedWidth(width, height, rotation);
+        final Frame upright = mFramePool.obtain(out, mUprightPool);
+        upright.setInfo(uprightWidth, Nv21Rotator.getRotatedHeight(width, height, rotation),
+                Frame.FORMAT_GRAY, uprightWidth, 0, false, frame.getTimestamp(),
+                frame.getSequence());
+        frame.release();
+        return upright;
+    }
+
+    /**
+     * Remembers when {@link CameraView} asked for the next session. Called on the caller's
+     * thread right before a start or switch is queued.
+     */
+    void markStartRequested() {
+        mRequestTime = SystemClock.elapsedRealtimeNanos();
+    }
+
+    /**
+     * Starts a new {@link #mTimings} record. Called on the camera thread before the camera is
+     * chosen.
+     */
+    protected final void beginTimings() {
+        final long requestTime = mRequestTime;
+        mRequestTime = 0;
+        mTimings.reset(requestTime);
+        mAwaitingFirstFrame = true;
+    }
+
+    /**
+     * Reports the {@link #mTimings} record once the camera is released.
+     */
+    protected final void endTimings() {
+        mAwaitingFirstFrame = false;
+        mCallback.onSessionClosed(mTimings.copy());
+    }
+
+    /**
+     * Restarts {@link Frame#getSequence()} from zero. Called when a camera is opened.
+     */
+    protected final void resetFrameSequence() {
+        mFrameSequence = 0;
+        mMetrics.onCameraOpened();
+    }
+
+    /**
+     * @return The number of bytes between two rows of the luma plane of a preview frame.
+     */
+    static int getRowStride(int width, int format) {
+        if (format == ImageFormat.YV12) {
+            // YV12 rows are aligned to 16 bytes
+            return (width + 15) / 16 * 16;
+        }
+        return width;
+    }
+
+    /**
+     * @return The clockwise rotation that makes a frame from a camera with the given sensor
+     * orientation upright on a display rotated by {@code displayOrientation}.
+     */
+    static int calcFrameRotation(int sensorOrientation, boolean front, int displayOrientation) {
+        if (front) {
+            return (sensorOrientation + displayOrientation) % 360;
+        }
+        return (sensorOrientation - displayOrientation + 360) % 360;
+    }
+
+    /**
+     * @return The frame rate range last applied to the camera, {@code {min, max}} in frames per
+     * second, or {@code null} if not known yet.
+     */
+    int[] getFpsRange() {
+        final int[] range = mFpsRange;
+        return range == null ? null : range.clone();
+    }
+
+    /**
+     * Takes a still picture from the stream configured by
+     * {@link CameraParameters#mStillCapture}. Fails unless the backend supports it.
+     */
+    void takePicture(PictureCallback callback) {
+        callback.onPictureFailed(new UnsupportedOperationException(
+                "Still capture is not supported by " + getClass().getSimpleName()));
+    }
+
+    interface PictureCallback {
+
+        /**
+         * @param format {@link ImageFormat#JPEG} or {@link ImageFormat#NV21}.
+         */
+        void onPictureTaken(byte[] data, int format, int width, int height);
+
+        void onPictureFailed(Exception e);
+
+    }
+
+    interface Callback {
 
         void onCameraOpened();
 
         void onCameraClosed();
 
-        void onPreviewFrame(byte[] data, Camera camera);
+        /**
+         * Called for every preview frame. The callee owns the single reference of {@code frame}
+         * and must release it.
+         */
+        void onFrame(Frame frame);
+
+        /**
+         * Called on the frame thread with the timings up to the first frame of a session.
+         */
+        void onFirstFrame(CameraTimings timings);
+
+        /**
+         * Called on the camera thread with the timings of a session whose camera was released.
+         */
+        void onSessionClosed(CameraTimings timings);
 
     }
 
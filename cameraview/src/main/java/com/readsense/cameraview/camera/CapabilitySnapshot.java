@@ -0,0 +1,278 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.readsense.cameraview.camera;
+
+import android.content.Context;
+import android.os.Build;
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Persists the {@link CameraCapabilities} cache in the app's files dir, so that a cold start can
+ * choose sizes and frame rates without asking the camera service.
+ *
+ * <p>The file is read with one read into memory and parsed from there. Its header holds
+ * {@link Build#FINGERPRINT}; an OS update changes the fingerprint, and a snapshot of another
+ * fingerprint is discarded and rewritten with fresh values.</p>
+ */
+final class CapabilitySnapshot {
+
+    private static final String TAG = "CapabilitySnapshot";
+
+    private static final String FILE_NAME = "cameraview_capabilities.bin";
+
+    /** "CVCS" */
+    private static final int MAGIC = 0x43564353;
+
+    /** Bump whenever the layout below changes. */
+    private static final int VERSION = 1;
+
+    private static File sFile;
+
+    /** The number of cached capabilities the file holds. */
+    private static int sSavedCount;
+
+    private CapabilitySnapshot() {
+    }
+
+    /**
+     * Fills the {@link CameraCapabilities} cache from the snapshot. Only the first call per
+     * process touches the disk. Call it off the main thread.
+     */
+    static synchronized void load(Context context) {
+        if (sFile != null) {
+            return;
+        }
+        sFile = new File(context.getFilesDir(), FILE_NAME);
+        if (!sFile.isFile()) {
+            return;
+        }
+        try {
+            final DataInputStream in = new DataInputStream(
+                    new ByteArrayInputStream(readFully(sFile)));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION
+                    || !Build.FINGERPRINT.equals(in.readUTF())) {
+                // Another format or another OS build; rewritten by the next save
+                return;
+            }
+            final int count = readCount(in, 1);
+            for (int i = 0; i < count; i++) {
+                CameraCapabilities.put(readCapabilities(in));
+            }
+            sSavedCount = count;
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "Ignoring a corrupt capability snapshot", e);
+        }
+    }
+
+    /**
+     * Writes the {@link CameraCapabilities} cache if it holds cameras the snapshot does not.
+     * Does nothing before {@link #load(Context)}. Call it off the main thread.
+     */
+    static synchronized void save() {
+        if (sFile == null) {
+            return;
+        }
+        final CameraCapabilities[] all = CameraCapabilities.getAll();
+        if (all.length == sSavedCount) {
+            return;
+        }
+        final File temp = new File(sFile.getPath() + ".tmp");
+        try {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream(4096);
+            final DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(Build.FINGERPRINT);
+            out.writeInt(all.length);
+            for (CameraCapabilities capabilities : all) {
+                writeCapabilities(out, capabilities);
+            }
+            final FileOutputStream file = new FileOutputStream(temp);
+            try {
+                bytes.writeTo(file);
+                file.getFD().sync();
+            } finally {
+                file.close();
+            }
+            // Readers see either the old snapshot or the complete new one
+            if (!temp.renameTo(sFile)) {
+                throw new IOException("Cannot rename " + temp + " to " + sFile);
+            }
+            sSavedCount = all.length;
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to save the capability snapshot", e);
+            temp.delete();
+        }
+    }
+
+    private static byte[] readFully(File file) throws IOException {
+        final long length = file.length();
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException("Snapshot too large: " + length);
+        }
+        final byte[] data = new byte[(int) length];
+        final FileInputStream in = new FileInputStream(file);
+        try {
+            int offset = 0;
+            while (offset < data.length) {
+                final int read = in.read(data, offset, data.length - offset);
+                if (read < 0) {
+                    throw new IOException("Snapshot truncated at " + offset);
+                }
+                offset += read;
+            }
+        } finally {
+            in.close();
+        }
+        return data;
+    }
+
+    /**
+     * Reads an element count and checks it against the bytes left, so that a corrupt count
+     * fails instead of allocating a huge array.
+     */
+    private static int readCount(DataInputStream in, int bytesPerElement) throws IOException {
+        final int count = in.readInt();
+        checkCount(in, count, bytesPerElement);
+        return count;
+    }
+
+    private static void checkCount(DataInputStream in, int count, int bytesPerElement)
+            throws IOException {
+        if (count < 0 || (long) count * bytesPerElement > in.available()) {
+            throw new IOException("Bad element count: " + count);
+        }
+    }
+
+    private static void writeCapabilities(DataOutputStream out, CameraCapabilities capabilities)
+            throws IOException {
+        out.writeUTF(capabilities.getKey());
+        out.writeInt(capabilities.getFacing());
+        out.writeInt(capabilities.getSensorOrientation());
+        out.writeInt(capabilities.getHardwareLevel());
+        writeSizes(out, capabilities.getPreviewSizes());
+        writeSizes(out, capabilities.getAnalysisSizes());
+        writeSizes(out, capabilities.getYuvSizes());
+        writeSizes(out, capabilities.getJpegSizes());
+        writeRates(out, capabilities.getPreviewRates());
+        writeRates(out, capabilities.getAnalysisRates());
+        final int[][] fpsRanges = capabilities.getFpsRanges();
+        out.writeInt(capabilities.getFpsScale());
+        out.writeInt(fpsRanges.length);
+        for (int[] range : fpsRanges) {
+            out.writeInt(range[0]);
+            out.writeInt(range[1]);
+        }
+        final String[] focusModes = capabilities.getFocusModes();
+        out.writeInt(focusModes.length);
+        for (String mode : focusModes) {
+            out.writeUTF(mode);
+        }
+        final int[] afModes = capabilities.getAfModes();
+        out.writeInt(afModes.length);
+        for (int mode : afModes) {
+            out.writeInt(mode);
+        }
+    }
+
+    private static CameraCapabilities readCapabilities(DataInputStream in) throws IOException {
+        final CameraCapabilities.Builder builder = new CameraCapabilities.Builder(in.readUTF())
+                .setFacing(in.readInt())
+                .setSensorOrientation(in.readInt())
+                .setHardwareLevel(in.readInt())
+                .setPreviewSizes(readSizes(in))
+                .setAnalysisSizes(readSizes(in))
+                .setYuvSizes(readSizes(in))
+                .setJpegSizes(readSizes(in))
+                .setPreviewRates(readRates(in))
+                .setAnalysisRates(readRates(in));
+        final int fpsScale = in.readInt();
+        final int[][] fpsRanges = new int[readCount(in, 8)][];
+        for (int i = 0; i < fpsRanges.length; i++) {
+            fpsRanges[i] = new int[]{in.readInt(), in.readInt()};
+        }
+        final String[] focusModes = new String[readCount(in, 2)];
+        for (int i = 0; i < focusModes.length; i++) {
+            focusModes[i] = in.readUTF();
+        }
+        final int[] afModes = new int[readCount(in, 4)];
+        for (int i = 0; i < afModes.length; i++) {
+            afModes[i] = in.readInt();
+        }
+        return builder.setFpsRanges(fpsRanges, fpsScale)
+                .setFocusModes(focusModes)
+                .setAfModes(afModes)
+                .build();
+    }
+
+    private static void writeSizes(DataOutputStream out, SizeCatalog sizes) throws IOException {
+        final long[] all = sizes.toArray();
+        out.writeInt(all.length);
+        for (long size : all) {
+            out.writeLong(size);
+        }
+    }
+
+    private static SizeCatalog readSizes(DataInputStream in) throws IOException {
+        final long[] sizes = new long[readCount(in, 8)];
+        for (int i = 0; i < sizes.length; i++) {
+            sizes[i] = in.readLong();
+        }
+        return SizeCatalog.of(sizes);
+    }
+
+    /**
+     * Writes -1 for {@code null}.
+     */
+    private static void writeRates(DataOutputStream out, SizeRates rates) throws IOException {
+        if (rates == null) {
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(rates.getCount());
+        for (int i = 0; i < rates.getCount(); i++) {
+            out.writeLong(rates.getSize(i));
+            out.writeInt(rates.getMaxFps(i));
+        }
+    }
+
+    private static SizeRates readRates(DataInputStream in) throws IOException {
+        final int count = in.readInt();
+        if (count < 0) {
+            return null;
+        }
+        checkCount(in, count, 12);
+        final long[] sizes = new long[count];
+        final int[] maxFps = new int[count];
+        for (int i = 0; i < count; i++) {
+            sizes[i] = in.readLong();
+            maxFps[i] = in.readInt();
+        }
+        return new SizeRates(sizes, maxFps);
+    }
+
+}
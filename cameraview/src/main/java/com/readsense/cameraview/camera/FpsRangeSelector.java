@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.readsense.cameraview.camera;
+
+import com.readsense.cameraview.modle.CameraParameters;
+
+/**
+ * Picks the frame rate range for a {@code CameraParameters.FPS_*} policy, for either camera
+ * backend.
+ *
+ * <p>Ranges are {@code {min, max}} pairs. Camera1 reports them in frames per 1000 seconds and
+ * Camera2 in frames per second, so the caller passes the unit along.</p>
+ */
+class FpsRangeSelector {
+
+    private FpsRangeSelector() {
+    }
+
+    /**
+     * @param ranges The supported ranges.
+     * @param scale  The value of one frame per second in {@code ranges}, 1000 for Camera1.
+     * @param mode   One of the {@code CameraParameters.FPS_*} constants.
+     * @param fps    The frame rate of {@code mode}.
+     * @return The index of the best range, or -1 to keep the device default.
+     */
+    static int select(int[][] ranges, int scale, int mode, int fps) {
+        if (mode == CameraParameters.FPS_DEFAULT || fps <= 0 || ranges == null) {
+            return -1;
+        }
+        int best = -1;
+        for (int i = 0; i < ranges.length; i++) {
+            if (best == -1 || isBetter(ranges[i], ranges[best], scale, mode, fps)) {
+                best = i;
+            }
+        }
+        return best;
+    }
+
+    private static boolean isBetter(int[] range, int[] than, int scale, int mode, int fps) {
+        final int min = (range[0] + scale / 2) / scale;
+        final int max = (range[1] + scale / 2) / scale;
+        final int thanMin = (than[0] + scale / 2) / scale;
+        final int thanMax = (than[1] + scale / 2) / scale;
+        switch (mode) {
+            case CameraParameters.FPS_FIXED:
+                // The maximum nearest to fps, then the steadiest
+                if (distance(max, fps) != distance(thanMax, fps)) {
+                    return distance(max, fps) < distance(thanMax, fps);
+                }
+                return min > thanMin;
+            case CameraParameters.FPS_PREFER:
+                // The maximum nearest to fps, then the most room for exposure in low light
+                if (distance(max, fps) != distance(thanMax, fps)) {
+                    return distance(max, fps) < distance(thanMax, fps);
+                }
+                return min < thanMin;
+            case CameraParameters.FPS_MIN:
+                // The lowest minimum that still reaches fps, then the highest maximum; if none
+                // reaches it, the highest minimum
+                final boolean reaches = min >= fps;
+                if (reaches != thanMin >= fps) {
+                    return reaches;
+                }
+                if (min != thanMin) {
+                    return reaches ? min < thanMin : min > thanMin;
+                }
+                return max > thanMax;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Orders frame rates by their distance to {@code fps}; at equal distance the higher one is
+     * nearer, so that the target is met rather than missed.
+     */
+    private static int distance(int value, int fps) {
+        return value >= fps ? 2 * (value - fps) : 2 * (fps - value) + 1;
+    }
+
+}
@@ -0,0 +1,412 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.readsense.cameraview.camera;
+
+import android.graphics.ImageFormat;
+import android.hardware.Camera;
+import android.media.Image;
+import android.os.SystemClock;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A preview frame together with everything needed to interpret its pixels.
+ *
+ * <p>Frames are pooled and shared by every {@link CameraView.Callback}. A frame is only valid
+ * until {@link CameraView.Callback#onFrame(Frame)} returns; call {@link #retain()} to keep it
+ * longer and {@link #release()} once done. The pixel data must not be modified.</p>
+ */
+@SuppressWarnings("deprecation")
+public final class Frame {
+
+    /**
+     * A single 8-bit luma plane. Same value as {@code ImageFormat.Y8}, which only exists from
+     * API 29 on.
+     */
+    public static final int FORMAT_GRAY = 0x20203859;
+
+    private final FramePool mPool;
+
+    private final AtomicInteger mRefCount = new AtomicInteger();
+
+    byte[] mData;
+
+    Camera mCamera;
+
+    Image mImage;
+
+    /** Whether a {@link CameraTrace#FRAME} slice is open for this frame until it is recycled. */
+    boolean mTraced;
+
+    /** Where {@link #mData} goes back to if it was produced by the library instead of the camera. */
+    ByteArrayPool mDataPool;
+
+    private final Plane[] mPlanes = {new Plane(), new Plane(), new Plane()};
+
+    private final Luma mLuma = new Luma(this);
+
+    /** {@code true} once {@link #mLuma} describes the current buffer. */
+    private boolean mLumaReady;
+
+    private int mWidth;
+
+    private int mHeight;
+
+    private int mFormat;
+
+    private int mRowStride;
+
+    private int mRotation;
+
+    private boolean mMirrored;
+
+    private long mTimestamp;
+
+    private long mSequence;
+
+    Frame(FramePool pool) {
+        mPool = pool;
+    }
+
+    /**
+     * @return The pixel data, laid out as described by {@link #getFormat()}, or {@code null} if
+     * the frame only has {@link #getPlanes() planes}.
+     */
+    public byte[] getData() {
+        return mData;
+    }
+
+    /**
+     * @return The Y, U and V planes of a {@link android.graphics.ImageFormat#YUV_420_888} frame
+     * delivered by Camera2, or {@code null} if the frame only has {@link #getData() data}. The
+     * array is owned by the frame and must not be modified.
+     */
+    public Plane[] getPlanes() {
+        return mImage == null ? null : mPlanes;
+    }
+
+    /**
+     * @return A view of the luma plane over the frame's own buffer, set up on first use, or
+     * {@code null} if the format has no contiguous luma plane. Available for NV21, YV12,
+     * {@link #FORMAT_GRAY} and Camera2 frames. Owned by the frame and valid as long as it.
+     */
+    public synchronized Luma getLuma() {
+        if (!mLumaReady) {
+            if (mImage != null) {
+                final ByteBuffer buffer = mPlanes[0].getBuffer();
+                mLuma.set(null, buffer, buffer.position(), mPlanes[0].getRowStride(), mWidth,
+                        mHeight);
+            } else if (mFormat == ImageFormat.NV21 || mFormat == ImageFormat.YV12
+                    || mFormat == FORMAT_GRAY) {
+                mLuma.set(mData, null, 0, mRowStride, mWidth, mHeight);
+            } else {
+                return null;
+            }
+            mLumaReady = true;
+        }
+        return mLuma;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * @return One of the {@link android.graphics.ImageFormat} constants, usually
+     * {@link android.graphics.ImageFormat#NV21}, or {@link #FORMAT_GRAY}.
+     */
+    public int getFormat() {
+        return mFormat;
+    }
+
+    /**
+     * @return The number of bytes between the starts of two rows of the luma plane.
+     */
+    public int getRowStride() {
+        return mRowStride;
+    }
+
+    /**
+     * @return The clockwise rotation in degrees, one of 0, 90, 180 and 270, that makes the image
+     * upright on the current display. {@link #isMirrored() Mirroring} applies to the rotated
+     * image.
+     */
+    public int getRotation() {
+        return mRotation;
+    }
+
+    /**
+     * @return {@code true} if the image has to be flipped horizontally to look like the preview,
+     * which is the case for front-facing cameras.
+     */
+    public boolean isMirrored() {
+        return mMirrored;
+    }
+
+    /**
+     * @return The time the frame reached this library, in the {@link
+     * SystemClock#elapsedRealtimeNanos()} time base.
+     */
+    public long getTimestamp() {
+        return mTimestamp;
+    }
+
+    /**
+     * @return The number of frames the camera delivered before this one since it was opened.
+     */
+    public long getSequence() {
+        return mSequence;
+    }
+
+    /**
+     * Takes one more reference to this frame, keeping it valid until the matching
+     * {@link #release()}.
+     */
+    public Frame retain() {
+        mRefCount.incrementAndGet();
+        return this;
+    }
+
+    /**
+     * Drops one reference to this frame. The last one gives the buffer back to the camera.
+     */
+    public void release() {
+        final int count = mRefCount.decrementAndGet();
+        if (count == 0) {
+            if (mTraced) {
+                mTraced = false;
+                CameraTrace.endAsync(CameraTrace.FRAME, (int) mSequence);
+            }
+            mPool.recycle(this);
+        } else if (count < 0) {
+            throw new IllegalStateException("Frame released more times than it was retained");
+        }
+    }
+
+    void init(byte[] data, Camera camera) {
+        mData = data;
+        mCamera = camera;
+        mImage = null;
+        mDataPool = null;
+        mRefCount.set(1);
+    }
+
+    void init(byte[] data, ByteArrayPool pool) {
+        init(data, (Camera) null);
+        mDataPool = pool;
+    }
+
+    void init(Image image) {
+        mData = null;
+        mCamera = null;
+        mImage = image;
+        mDataPool = null;
+        final Image.Plane[] planes = image.getPlanes();
+        for (int i = 0; i < mPlanes.length; i++) {
+            mPlanes[i].set(planes[i].getBuffer(), planes[i].getRowStride(),
+                    planes[i].getPixelStride());
+        }
+        mRefCount.set(1);
+    }
+
+    synchronized void clear() {
+        mData = null;
+        mCamera = null;
+        mImage = null;
+        mDataPool = null;
+        for (Plane plane : mPlanes) {
+            plane.set(null, 0, 0);
+        }
+        mLuma.set(null, null, 0, 0, 0, 0);
+        mLumaReady = false;
+    }
+
+    synchronized void setInfo(int width, int height, int format, int rowStride, int rotation,
+            boolean mirrored, long timestamp, long sequence) {
+        mLumaReady = false;
+        mWidth = width;
+        mHeight = height;
+        mFormat = format;
+        mRowStride = rowStride;
+        mRotation = rotation;
+        mMirrored = mirrored;
+        mTimestamp = timestamp;
+        mSequence = sequence;
+    }
+
+    /**
+     * One plane of a YUV frame, backed directly by the camera's buffer.
+     */
+    public static final class Plane {
+
+        private ByteBuffer mBuffer;
+
+        private int mRowStride;
+
+        private int mPixelStride;
+
+        Plane() {
+        }
+
+        /**
+         * @return The plane data. Read it with absolute gets or through {@link
+         * ByteBuffer#duplicate()}, since the buffer is shared by every callback.
+         */
+        public ByteBuffer getBuffer() {
+            return mBuffer;
+        }
+
+        public int getRowStride() {
+            return mRowStride;
+        }
+
+        public int getPixelStride() {
+            return mPixelStride;
+        }
+
+        void set(ByteBuffer buffer, int rowStride, int pixelStride) {
+            mBuffer = buffer;
+            mRowStride = rowStride;
+            mPixelStride = pixelStride;
+        }
+
+    }
+
+    /**
+     * The luma plane of a frame, read in place. Exactly one of {@link #getArray()} and
+     * {@link #getBuffer()} is set.
+     */
+    public static final class Luma {
+
+        /** Serializes the relative reads on shared plane buffers, like {@link Nv21Converter}. */
+        private final Frame mFrame;
+
+        private byte[] mArray;
+
+        private ByteBuffer mBuffer;
+
+        private int mOffset;
+
+        private int mRowStride;
+
+        private int mWidth;
+
+        private int mHeight;
+
+        Luma(Frame frame) {
+            mFrame = frame;
+        }
+
+        /**
+         * @return The frame data, or {@code null} for a Camera2 frame.
+         */
+        public byte[] getArray() {
+            return mArray;
+        }
+
+        /**
+         * @return The Camera2 plane, or {@code null} if the frame has an {@link #getArray()
+         * array}. Read it with absolute gets, since the buffer is shared by every callback.
+         */
+        public ByteBuffer getBuffer() {
+            return mBuffer;
+        }
+
+        /**
+         * @return The index of the top left pixel in the array or buffer.
+         */
+        public int getOffset() {
+            return mOffset;
+        }
+
+        public int getRowStride() {
+            return mRowStride;
+        }
+
+        public int getWidth() {
+            return mWidth;
+        }
+
+        public int getHeight() {
+            return mHeight;
+        }
+
+        /**
+         * @return The luma of pixel ({@code x}, {@code y}), from 0 to 255.
+         */
+        public int get(int x, int y) {
+            final int index = mOffset + y * mRowStride + x;
+            return (mArray != null ? mArray[index] : mBuffer.get(index)) & 0xFF;
+        }
+
+        /**
+         * Copies the plane into {@code out} without row padding.
+         *
+         * @param out At least width * height bytes.
+         */
+        public void copyTo(byte[] out) {
+            if (out.length < mWidth * mHeight) {
+                throw new IllegalArgumentException("Output too small: " + out.length);
+            }
+            if (mArray != null) {
+                if (mRowStride == mWidth) {
+                    System.arraycopy(mArray, mOffset, out, 0, mWidth * mHeight);
+                    return;
+                }
+                for (int row = 0; row < mHeight; row++) {
+                    System.arraycopy(mArray, mOffset + row * mRowStride, out, row * mWidth,
+                            mWidth);
+                }
+                return;
+            }
+            synchronized (mFrame) {
+                final int position = mBuffer.position();
+                try {
+                    for (int row = 0; row < mHeight; row++) {
+                        mBuffer.position(mOffset + row * mRowStride);
+                        mBuffer.get(out, row * mWidth, mWidth);
+                    }
+                } finally {
+                    mBuffer.position(position);
+                }
+            }
+        }
+
+        void set(byte[] array, ByteBuffer buffer, int offset, int rowStride, int width,
+                int height) {
+            mArray = array;
+            mBuffer = buffer;
+            mOffset = offset;
+            mRowStride = rowStride;
+            mWidth = width;
+            mHeight = height;
+        }
+
+    }
+
+    @Override
+    public String toString() {
+        return "Frame#" + mSequence + " " + mWidth + "x" + mHeight + " rotation=" + mRotation
+                + (mMirrored ? " mirrored" : "");
+    }
+
+}
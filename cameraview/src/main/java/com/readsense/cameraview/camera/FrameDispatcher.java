@@ -0,0 +1,282 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.readsense.cameraview.camera;
+
+import android.os.SystemClock;
+
+import com.readsense.cameraview.modle.CameraParameters;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hands preview frames from the camera callback over to one frame consumer according to one of
+ * the {@code CameraParameters.DISPATCH_*} policies.
+ *
+ * <p>Except for {@link CameraParameters#DISPATCH_INLINE}, the consumer runs on its executor, one
+ * frame at a time. Every dispatched frame reference is released exactly once, either after the
+ * consumer has returned or when the frame is dropped.</p>
+ */
+class FrameDispatcher {
+
+    interface Consumer {
+
+        void onFrame(Frame frame);
+
+    }
+
+    private final int mPolicy;
+
+    private final Consumer mConsumer;
+
+    private final Object mLock = new Object();
+
+    /** Pending frames, stored as a ring starting at {@link #mHead}. */
+    private final Frame[] mFrames;
+
+    private int mHead;
+
+    private int mCount;
+
+    /** {@code true} while {@link #mDrainTask} is queued or running. */
+    private boolean mScheduled;
+
+    private boolean mClosed;
+
+    /** The executor given by the caller, or {@code null} to use {@link #mOwnExecutor}. */
+    private final Executor mExecutor;
+
+    private ExecutorService mOwnExecutor;
+
+    private final AtomicLong mDelivered = new AtomicLong();
+
+    private final AtomicLong mDropped = new AtomicLong();
+
+    private final LatencyHistogram mCaptureToDispatch = new LatencyHistogram();
+
+    private final LatencyHistogram mDispatchToRelease = new LatencyHistogram();
+
+    private final Runnable mDrainTask = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+
+    /**
+     * @param policy   One of the {@code CameraParameters.DISPATCH_*} constants.
+     * @param capacity The number of frames that may wait for the consumer. Ignored by
+     *                 {@link CameraParameters#DISPATCH_INLINE} and forced to 1 by
+     *                 {@link CameraParameters#DISPATCH_KEEP_LATEST}.
+     * @param executor The executor the consumer runs on, or {@code null} for a dispatch thread
+     *                 owned by this dispatcher. A consumer with its own executor never runs inline,
+     *                 so {@link CameraParameters#DISPATCH_INLINE} falls back to
+     *                 {@link CameraParameters#DISPATCH_KEEP_LATEST} for it.
+     */
+    FrameDispatcher(int policy, int capacity, Executor executor, Consumer consumer) {
+        if (executor != null && policy == CameraParameters.DISPATCH_INLINE) {
+            policy = CameraParameters.DISPATCH_KEEP_LATEST;
+        }
+        mPolicy = policy;
+        mExecutor = executor;
+        mConsumer = consumer;
+        if (policy == CameraParameters.DISPATCH_KEEP_LATEST || capacity < 1) {
+            capacity = 1;
+        }
+        mFrames = new Frame[capacity];
+    }
+
+    int getPolicy() {
+        return mPolicy;
+    }
+
+    int getCapacity() {
+        return mFrames.length;
+    }
+
+    /**
+     * @return The number of frames the consumer has returned from.
+     */
+    long getDeliveredCount() {
+        return mDelivered.get();
+    }
+
+    /**
+     * @return The number of frames released without reaching the consumer.
+     */
+    long getDroppedCount() {
+        return mDropped.get();
+    }
+
+    FrameMetrics.Consumer getMetrics() {
+        return new FrameMetrics.Consumer(mDelivered.get(), mDropped.get(),
+                mCaptureToDispatch.snapshot(), mDispatchToRelease.snapshot());
+    }
+
+    /**
+     * Called on the camera callback thread for every preview frame. Takes over one reference to
+     * {@code frame}.
+     */
+    void dispatch(Frame frame) {
+        if (mPolicy == CameraParameters.DISPATCH_INLINE) {
+            deliver(frame);
+            return;
+        }
+        Frame dropped = null;
+        Executor executor = null;
+        synchronized (mLock) {
+            if (mPolicy == CameraParameters.DISPATCH_BLOCK_PRODUCER) {
+                while (mCount == mFrames.length && !mClosed) {
+                    try {
+                        mLock.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                }
+            }
+            if (mClosed) {
+                dropped = frame;
+            } else {
+                if (mCount == mFrames.length) {
+                    // Keep the newest frames so that the consumer never falls further behind
+                    dropped = pollLocked();
+                }
+                mFrames[(mHead + mCount) % mFrames.length] = frame;
+                mCount++;
+                if (!mScheduled) {
+                    mScheduled = true;
+                    executor = getExecutorLocked();
+                }
+            }
+        }
+        if (dropped != null) {
+            mDropped.incrementAndGet();
+            dropped.release();
+        }
+        if (executor != null) {
+            try {
+                executor.execute(mDrainTask);
+            } catch (RejectedExecutionException e) {
+                // Closed concurrently, or a caller's executor that is saturated or shut down; let
+                // the next frame try again
+                synchronized (mLock) {
+                    mScheduled = false;
+                }
+                clear();
+            }
+        }
+    }
+
+    /**
+     * Drops the frames that have not reached the consumer yet.
+     */
+    void clear() {
+        while (true) {
+            final Frame frame;
+            synchronized (mLock) {
+                if (mCount == 0) {
+                    return;
+                }
+                frame = pollLocked();
+            }
+            mDropped.incrementAndGet();
+            frame.release();
+        }
+    }
+
+    /**
+     * Drops the pending frames and stops the owned dispatch thread. Frames dispatched afterwards
+     * are released right away.
+     */
+    void close() {
+        final ExecutorService executor;
+        synchronized (mLock) {
+            mClosed = true;
+            mLock.notifyAll();
+            executor = mOwnExecutor;
+            mOwnExecutor = null;
+        }
+        clear();
+        if (executor != null) {
+            executor.shutdown();
+        }
+    }
+
+    private void drain() {
+        while (true) {
+            final Frame frame;
+            synchronized (mLock) {
+                if (mCount == 0) {
+                    mScheduled = false;
+                    return;
+                }
+                frame = pollLocked();
+            }
+            try {
+                deliver(frame);
+            } catch (RuntimeException e) {
+                // Let the next frame schedule a new drain after the consumer has thrown
+                synchronized (mLock) {
+                    mScheduled = false;
+                }
+                throw e;
+            }
+        }
+    }
+
+    private Frame pollLocked() {
+        final Frame frame = mFrames[mHead];
+        mFrames[mHead] = null;
+        mHead = (mHead + 1) % mFrames.length;
+        mCount--;
+        mLock.notifyAll();
+        return frame;
+    }
+
+    private void deliver(Frame frame) {
+        final long dispatched = SystemClock.elapsedRealtimeNanos();
+        mCaptureToDispatch.record(dispatched - frame.getTimestamp());
+        try {
+            mConsumer.onFrame(frame);
+            mDelivered.incrementAndGet();
+        } finally {
+            frame.release();
+            mDispatchToRelease.record(SystemClock.elapsedRealtimeNanos() - dispatched);
+        }
+    }
+
+    private Executor getExecutorLocked() {
+        if (mExecutor != null) {
+            return mExecutor;
+        }
+        if (mOwnExecutor == null) {
+            mOwnExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    return new Thread(r, "CameraView-Dispatch");
+                }
+            });
+        }
+        return mOwnExecutor;
+    }
+
+}
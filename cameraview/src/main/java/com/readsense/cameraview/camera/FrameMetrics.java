@@ -0,0 +1,237 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.readsense.cameraview.camera;
+
+/**
+ * A snapshot of the frame pipeline of one {@link CameraView}, taken by
+ * {@link CameraView#getFrameMetrics()}.
+ *
+ * <p>Counters run from the creation of the view and survive camera restarts. Snapshots are
+ * immutable; their parts are read one by one without stopping the pipeline, so they may be off
+ * by the frames recorded meanwhile.</p>
+ */
+public final class FrameMetrics {
+
+    private final long mFrameCount;
+
+    private final float mFps;
+
+    private final Histogram mFrameIntervals;
+
+    private final long mBufferExhaustedCount;
+
+    FrameMetrics(long frameCount, float fps, Histogram frameIntervals,
+            long bufferExhaustedCount) {
+        mFrameCount = frameCount;
+        mFps = fps;
+        mFrameIntervals = frameIntervals;
+        mBufferExhaustedCount = bufferExhaustedCount;
+    }
+
+    /**
+     * @return The number of frames delivered by the camera.
+     */
+    public long getFrameCount() {
+        return mFrameCount;
+    }
+
+    /**
+     * @return The frame rate over the last second, 0 if fewer than two frames arrived in it.
+     */
+    public float getFps() {
+        return mFps;
+    }
+
+    /**
+     * @return The times between two consecutive frames of the same camera.
+     */
+    public Histogram getFrameIntervals() {
+        return mFrameIntervals;
+    }
+
+    /**
+     * @return How often the consumers held every preview buffer (Camera1) or image (Camera2), so
+     * that the camera had to drop frames until one was released.
+     */
+    public long getBufferExhaustedCount() {
+        return mBufferExhaustedCount;
+    }
+
+    @Override
+    public String toString() {
+        return "FrameMetrics{frames=" + mFrameCount + ", fps=" + mFps
+                + ", intervals=" + mFrameIntervals + ", bufferExhausted=" + mBufferExhaustedCount
+                + '}';
+    }
+
+    /**
+     * A snapshot of the frames of one {@link CameraView.Callback}, taken by
+     * {@link CameraView#getFrameMetrics(CameraView.Callback)}. Counters restart with every
+     * {@code start()}.
+     */
+    public static final class Consumer {
+
+        private final long mDeliveredCount;
+
+        private final long mDroppedCount;
+
+        private final Histogram mCaptureToDispatch;
+
+        private final Histogram mDispatchToRelease;
+
+        Consumer(long deliveredCount, long droppedCount, Histogram captureToDispatch,
+                Histogram dispatchToRelease) {
+            mDeliveredCount = deliveredCount;
+            mDroppedCount = droppedCount;
+            mCaptureToDispatch = captureToDispatch;
+            mDispatchToRelease = dispatchToRelease;
+        }
+
+        /**
+         * @return The number of frames the callback has returned from.
+         */
+        public long getDeliveredCount() {
+            return mDeliveredCount;
+        }
+
+        /**
+         * @return The number of frames dropped before reaching the callback.
+         */
+        public long getDroppedCount() {
+            return mDroppedCount;
+        }
+
+        /**
+         * @return The times from a frame arriving from the camera to the callback being called
+         * with it, i.e. the time spent in the dispatch queue.
+         */
+        public Histogram getCaptureToDispatch() {
+            return mCaptureToDispatch;
+        }
+
+        /**
+         * @return The times from the callback being called to it returning and its reference to
+         * the frame being released, i.e. the processing time.
+         */
+        public Histogram getDispatchToRelease() {
+            return mDispatchToRelease;
+        }
+
+        @Override
+        public String toString() {
+            return "Consumer{delivered=" + mDeliveredCount + ", dropped=" + mDroppedCount
+                    + ", captureToDispatch=" + mCaptureToDispatch
+                    + ", dispatchToRelease=" + mDispatchToRelease + '}';
+        }
+
+    }
+
+    /**
+     * Durations counted into {@link #getBucketCount()} buckets with power-of-two bounds: bucket 0
+     * holds durations under 1 microsecond, bucket {@code i} those in {@code [2^(i-1), 2^i)}
+     * microseconds, and the last bucket everything longer.
+     */
+    public static final class Histogram {
+
+        private final long[] mCounts;
+
+        private final long mCount;
+
+        private final long mSumNanos;
+
+        private final long mMaxNanos;
+
+        Histogram(long[] counts, long sumNanos, long maxNanos) {
+            long count = 0;
+            for (long c : counts) {
+                count += c;
+            }
+            mCounts = counts;
+            mCount = count;
+            mSumNanos = sumNanos;
+            mMaxNanos = maxNanos;
+        }
+
+        /**
+         * @return The number of recorded durations.
+         */
+        public long getCount() {
+            return mCount;
+        }
+
+        public int getBucketCount() {
+            return mCounts.length;
+        }
+
+        /**
+         * @return The number of durations in {@code bucket}.
+         */
+        public long getCount(int bucket) {
+            return mCounts[bucket];
+        }
+
+        /**
+         * @return The exclusive upper bound of {@code bucket}, {@link Long#MAX_VALUE} for the
+         * last one.
+         */
+        public long getUpperBoundNanos(int bucket) {
+            return LatencyHistogram.getUpperBoundNanos(bucket);
+        }
+
+        /**
+         * @return The mean duration, 0 if there is none.
+         */
+        public long getMeanNanos() {
+            return mCount == 0 ? 0 : mSumNanos / mCount;
+        }
+
+        public long getMaxNanos() {
+            return mMaxNanos;
+        }
+
+        /**
+         * @param percentile In {@code [0, 100]}.
+         * @return An upper bound of the given percentile: the upper bound of its bucket, capped
+         * at {@link #getMaxNanos()}. 0 if there is no duration.
+         */
+        public long getPercentileNanos(double percentile) {
+            if (mCount == 0) {
+                return 0;
+            }
+            final long rank = (long) Math.ceil(percentile / 100 * mCount);
+            long seen = 0;
+            for (int i = 0; i < mCounts.length; i++) {
+                seen += mCounts[i];
+                if (seen >= rank && seen > 0) {
+                    return Math.min(getUpperBoundNanos(i), mMaxNanos);
+                }
+            }
+            return mMaxNanos;
+        }
+
+        @Override
+        public String toString() {
+            return "Histogram{count=" + mCount + ", meanUs=" + getMeanNanos() / 1000
+                    + ", p50Us=" + getPercentileNanos(50) / 1000
+                    + ", p99Us=" + getPercentileNanos(99) / 1000
+                    + ", maxUs=" + mMaxNanos / 1000 + '}';
+        }
+
+    }
+
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.readsense.cameraview.camera;
+
+import android.os.SystemClock;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Records the frames leaving the camera for {@link FrameMetrics}, without locking or allocating,
+ * so that it can stay enabled in release builds.
+ *
+ * <p>The frame rate is measured over the arrivals of the last {@link #FPS_WINDOW_NANOS}, kept in
+ * a ring of {@link #RING_SIZE} timestamps, which bounds the measurable rate to
+ * {@code RING_SIZE} fps.</p>
+ */
+final class FrameMetricsRecorder {
+
+    private static final long FPS_WINDOW_NANOS = 1000000000L;
+
+    /** A power of two. */
+    private static final int RING_SIZE = 128;
+
+    private final AtomicLong mFrameCount = new AtomicLong();
+
+    private final AtomicLongArray mArrivals = new AtomicLongArray(RING_SIZE);
+
+    /** The previous arrival, 0 right after the camera was opened. */
+    private final AtomicLong mLastArrival = new AtomicLong();
+
+    private final LatencyHistogram mIntervals = new LatencyHistogram();
+
+    private final AtomicLong mBufferExhaustedCount = new AtomicLong();
+
+    /**
+     * Called when a camera is opened, so that the gap to the previous session is not counted as
+     * a frame interval.
+     */
+    void onCameraOpened() {
+        mLastArrival.set(0);
+    }
+
+    /**
+     * Called on the camera callback thread for every frame.
+     *
+     * @param timestamp The {@link SystemClock#elapsedRealtimeNanos()} of the arrival.
+     */
+    void onFrame(long timestamp) {
+        final long index = mFrameCount.getAndIncrement();
+        mArrivals.set((int) (index & (RING_SIZE - 1)), timestamp);
+        final long last = mLastArrival.getAndSet(timestamp);
+        if (last != 0) {
+            mIntervals.record(timestamp - last);
+        }
+    }
+
+    /**
+     * Called when the consumers hold every buffer or image, so that the camera drops frames.
+     */
+    void onBufferExhausted() {
+        mBufferExhaustedCount.incrementAndGet();
+    }
+
+    FrameMetrics snapshot() {
+        final long now = SystemClock.elapsedRealtimeNanos();
+        long oldest = Long.MAX_VALUE;
+        long newest = Long.MIN_VALUE;
+        int count = 0;
+        for (int i = 0; i < RING_SIZE; i++) {
+            final long arrival = mArrivals.get(i);
+            if (arrival != 0 && now - arrival <= FPS_WINDOW_NANOS) {
+                oldest = Math.min(oldest, arrival);
+                newest = Math.max(newest, arrival);
+                count++;
+            }
+        }
+        final float fps = count < 2 || newest == oldest ? 0
+                : (count - 1) * 1e9f / (newest - oldest);
+        return new FrameMetrics(mFrameCount.get(), fps, mIntervals.snapshot(),
+                mBufferExhaustedCount.get());
+    }
+
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.readsense.cameraview.camera;
+
+import android.hardware.Camera;
+import android.media.Image;
+
+/**
+ * Recycles {@link Frame} holders and hands their preview buffers or images back once a frame is
+ * no longer referenced. Only grows while more frames are in flight than ever before.
+ */
+@SuppressWarnings("deprecation")
+class FramePool {
+
+    interface BufferReleaser {
+
+        void releaseBuffer(byte[] data);
+
+        void releaseImage(Image image);
+
+    }
+
+    private final BufferReleaser mReleaser;
+
+    private Frame[] mFree = new Frame[4];
+
+    private int mFreeCount;
+
+    FramePool(BufferReleaser releaser) {
+        mReleaser = releaser;
+    }
+
+    /**
+     * @return A frame holding {@code data} with a single reference owned by the caller.
+     */
+    Frame obtain(byte[] data, Camera camera) {
+        final Frame frame = obtain();
+        frame.init(data, camera);
+        return frame;
+    }
+
+    /**
+     * @return A frame holding {@code data}, which goes back to {@code pool} once the frame is
+     * recycled, with a single reference owned by the caller.
+     */
+    Frame obtain(byte[] data, ByteArrayPool pool) {
+        final Frame frame = obtain();
+        frame.init(data, pool);
+        return frame;
+    }
+
+    /**
+     * @return A frame exposing the planes of {@code image} with a single reference owned by the
+     * caller. The image is closed through the releaser once the frame is recycled.
+     */
+    Frame obtain(Image image) {
+        final Frame frame = obtain();
+        frame.init(image);
+        return frame;
+    }
+
+    private Frame obtain() {
+        synchronized (this) {
+            if (mFreeCount > 0) {
+                final Frame frame = mFree[--mFreeCount];
+                mFree[mFreeCount] = null;
+                return frame;
+            }
+        }
+        return new Frame(this);
+    }
+
+    void recycle(Frame frame) {
+        final byte[] data = frame.mData;
+        final Image image = frame.mImage;
+        final ByteArrayPool dataPool = frame.mDataPool;
+        frame.clear();
+        if (dataPool != null) {
+            dataPool.recycle(data);
+        } else if (image != null) {
+            mReleaser.releaseImage(image);
+        } else {
+            mReleaser.releaseBuffer(data);
+        }
+        synchronized (this) {
+            if (mFreeCount == mFree.length) {
+                Frame[] free = new Frame[mFree.length * 2];
+                System.arraycopy(mFree, 0, free, 0, mFreeCount);
+                mFree = free;
+            }
+            mFree[mFreeCount++] = frame;
+        }
+    }
+
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.readsense.cameraview.camera;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts durations into fixed power-of-two buckets without locking or allocating.
+ *
+ * <p>Bucket 0 holds durations under 1 microsecond, bucket {@code i} those in
+ * {@code [2^(i-1), 2^i)} microseconds, and the last bucket everything longer. Any number of
+ * threads may record concurrently; a snapshot taken meanwhile may miss the latest records.</p>
+ */
+final class LatencyHistogram {
+
+    static final int BUCKET_COUNT = 24;
+
+    private final AtomicLongArray mCounts = new AtomicLongArray(BUCKET_COUNT);
+
+    private final AtomicLong mSum = new AtomicLong();
+
+    private final AtomicLong mMax = new AtomicLong();
+
+    /**
+     * @return The exclusive upper bound of {@code bucket}, {@link Long#MAX_VALUE} for the last.
+     */
+    static long getUpperBoundNanos(int bucket) {
+        return bucket == BUCKET_COUNT - 1 ? Long.MAX_VALUE : (1L << bucket) * 1000L;
+    }
+
+    void record(long nanos) {
+        if (nanos < 0) {
+            // Clock skew between the recording threads
+            nanos = 0;
+        }
+        final long micros = nanos / 1000L;
+        final int bucket = Math.min(64 - Long.numberOfLeadingZeros(micros), BUCKET_COUNT - 1);
+        mCounts.incrementAndGet(bucket);
+        mSum.addAndGet(nanos);
+        long max;
+        while ((max = mMax.get()) < nanos && !mMax.compareAndSet(max, nanos)) {
+            // Lost to a concurrent record, retry against its value
+        }
+    }
+
+    FrameMetrics.Histogram snapshot() {
+        final long[] counts = new long[BUCKET_COUNT];
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts[i] = mCounts.get(i);
+        }
+        return new FrameMetrics.Histogram(counts, mSum.get(), mMax.get());
+    }
+
+}
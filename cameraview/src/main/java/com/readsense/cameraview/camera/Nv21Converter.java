@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.readsense.cameraview.camera;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Converts {@link android.graphics.ImageFormat#YUV_420_888} planes with arbitrary row and pixel
+ * strides into NV21, writing into a caller-supplied array and never allocating.
+ *
+ * <p>Two layouts take a fast path built on bulk {@link ByteBuffer#get(byte[], int, int)}: chroma
+ * planes with a pixel stride of 2 (usually one interleaved VU buffer, what most Camera2 HALs
+ * produce), and planar chroma with a pixel stride of 1. Everything else is converted pixel by
+ * pixel. The planes are never written to.</p>
+ *
+ * <p>The buffers are read through their positions, which are restored afterwards, so the same
+ * buffers must not be read relatively by another thread during the conversion.</p>
+ */
+public final class Nv21Converter {
+
+    private Nv21Converter() {
+    }
+
+    /**
+     * @return The number of bytes of an NV21 image of the given size.
+     */
+    public static int getNv21Size(int width, int height) {
+        return width * height + 2 * ((width + 1) / 2) * ((height + 1) / 2);
+    }
+
+    /**
+     * Converts the planes of a Camera2 {@link Frame} into NV21.
+     *
+     * @param out At least {@link #getNv21Size(int, int)} bytes.
+     * @throws IllegalArgumentException if the frame has no planes.
+     */
+    public static void convert(Frame frame, byte[] out) {
+        final Frame.Plane[] planes = frame.getPlanes();
+        if (planes == null) {
+            throw new IllegalArgumentException("Frame has no planes: " + frame);
+        }
+        // Consumers share the plane buffers; serialize the relative reads on the same frame
+        synchronized (frame) {
+            convert(planes[0].getBuffer(), planes[0].getRowStride(),
+                    planes[1].getBuffer(), planes[2].getBuffer(),
+                    planes[1].getRowStride(), planes[1].getPixelStride(),
+                    frame.getWidth(), frame.getHeight(), out);
+        }
+    }
+
+    /**
+     * Converts YUV 4:2:0 planes into NV21.
+     *
+     * @param y             The luma plane.
+     * @param yRowStride    Bytes between two luma rows.
+     * @param u             The Cb plane.
+     * @param v             The Cr plane.
+     * @param uvRowStride   Bytes between two chroma rows, shared by both chroma planes.
+     * @param uvPixelStride Bytes between two chroma samples of a row, shared by both planes.
+     * @param out           At least {@link #getNv21Size(int, int)} bytes.
+     */
+    public static void convert(ByteBuffer y, int yRowStride, ByteBuffer u, ByteBuffer v,
+            int uvRowStride, int uvPixelStride, int width, int height, byte[] out) {
+        if (out.length < getNv21Size(width, height)) {
+            throw new IllegalArgumentException("Output too small for " + width + "x" + height
+                    + ": " + out.length);
+        }
+        final int yPosition = y.position();
+        final int uPosition = u.position();
+        final int vPosition = v.position();
+        try {
+            copyLuma(y, yPosition, yRowStride, width, height, out);
+            final int chromaWidth = (width + 1) / 2;
+            final int chromaHeight = (height + 1) / 2;
+            final int offset = width * height;
+            if (uvPixelStride == 2) {
+                copyInterleavedVu(u, uPosition, v, vPosition, uvRowStride,
+                        chromaWidth, chromaHeight, out, offset);
+            } else if (uvPixelStride == 1) {
+                copyPlanar(u, uPosition, v, vPosition, uvRowStride,
+                        chromaWidth, chromaHeight, out, offset);
+            } else {
+                copyChroma(u, uPosition, v, vPosition, uvRowStride, uvPixelStride,
+                        chromaWidth, chromaHeight, out, offset);
+            }
+        } finally {
+            y.position(yPosition);
+            u.position(uPosition);
+            v.position(vPosition);
+        }
+    }
+
+    private static void copyLuma(ByteBuffer y, int position, int rowStride, int width, int height,
+            byte[] out) {
+        if (rowStride == width) {
+            y.position(position);
+            y.get(out, 0, width * height);
+            return;
+        }
+        for (int row = 0; row < height; row++) {
+            y.position(position + row * rowStride);
+            y.get(out, row * width, width);
+        }
+    }
+
+    /**
+     * Bulk-reads each V row, which yields V at the even output positions, then overwrites the odd
+     * positions with the U samples. If the planes share one VUVU... buffer, the bulk read already
+     * brings the right U values and the overwrite is redundant but harmless. The camera buffers
+     * are only read, since consumers may read the same frame concurrently.
+     */
+    private static void copyInterleavedVu(ByteBuffer u, int uPosition, ByteBuffer v,
+            int vPosition, int rowStride, int chromaWidth, int chromaHeight, byte[] out,
+            int offset) {
+        final int rowBytes = 2 * chromaWidth;
+        if (rowStride == rowBytes) {
+            final int length = rowBytes * chromaHeight;
+            v.position(vPosition);
+            v.get(out, offset, length - 1);
+            fillU(u, uPosition, out, offset, length / 2);
+            return;
+        }
+        for (int row = 0; row < chromaHeight; row++) {
+            final int rowStart = row * rowStride;
+            final int o = offset + row * rowBytes;
+            // The last V sample of a row is followed by at most padding, so read one byte less
+            v.position(vPosition + rowStart);
+            v.get(out, o, rowBytes - 1);
+            fillU(u, uPosition + rowStart, out, o, chromaWidth);
+        }
+    }
+
+    private static void fillU(ByteBuffer u, int position, byte[] out, int offset, int count) {
+        for (int i = 0; i < count; i++) {
+            out[offset + 2 * i + 1] = u.get(position + 2 * i);
+        }
+    }
+
+    /**
+     * Bulk-reads each U row into the second half of its own output row, then interleaves it with
+     * V from left to right. Every U sample is read before its slot is overwritten.
+     */
+    private static void copyPlanar(ByteBuffer u, int uPosition, ByteBuffer v, int vPosition,
+            int rowStride, int chromaWidth, int chromaHeight, byte[] out, int offset) {
+        final int rowBytes = 2 * chromaWidth;
+        for (int row = 0; row < chromaHeight; row++) {
+            final int rowStart = row * rowStride;
+            final int o = offset + row * rowBytes;
+            u.position(uPosition + rowStart);
+            u.get(out, o + chromaWidth, chromaWidth);
+            final int vRow = vPosition + rowStart;
+            for (int i = 0; i < chromaWidth; i++) {
+                final byte cb = out[o + chromaWidth + i];
+                out[o + 2 * i] = v.get(vRow + i);
+                out[o + 2 * i + 1] = cb;
+            }
+        }
+    }
+
+    private static void copyChroma(ByteBuffer u, int uPosition, ByteBuffer v, int vPosition,
+            int rowStride, int pixelStride, int chromaWidth, int chromaHeight, byte[] out,
+            int offset) {
+        int o = offset;
+        for (int row = 0; row < chromaHeight; row++) {
+            final int rowStart = row * rowStride;
+            for (int i = 0; i < chromaWidth; i++) {
+                final int index = rowStart + i * pixelStride;
+                out[o++] = v.get(vPosition + index);
+                out[o++] = u.get(uPosition + index);
+            }
+        }
+    }
+
+}
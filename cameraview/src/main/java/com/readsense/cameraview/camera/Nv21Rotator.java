@@ -0,0 +1,272 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.readsense.cameraview.camera;
+
+/**
+ * Rotates and mirrors packed NV21 images in a single pass, writing into a caller-supplied array.
+ *
+ * <p>Both planes are walked in square tiles, so the scattered writes of a 90 or 270 degree
+ * rotation stay within a few cache lines. The chroma plane is moved as VU pairs, and
+ * {@link #rotateGray} skips it altogether. With {@code parallel} set, bands of source rows run
+ * on {@link ParallelBands}.</p>
+ */
+public final class Nv21Rotator {
+
+    /** Tile edge in pixels; 32 luma rows plus 32 output rows fit comfortably in L1. */
+    private static final int TILE = 32;
+
+    private static final ThreadLocal<RotateTask> sTasks = new ThreadLocal<RotateTask>() {
+        @Override
+        protected RotateTask initialValue() {
+            return new RotateTask();
+        }
+    };
+
+    private Nv21Rotator() {
+    }
+
+    /**
+     * @return The width of the output for the given rotation.
+     */
+    public static int getRotatedWidth(int width, int height, int rotation) {
+        return rotation % 180 == 0 ? width : height;
+    }
+
+    /**
+     * @return The height of the output for the given rotation.
+     */
+    public static int getRotatedHeight(int width, int height, int rotation) {
+        return rotation % 180 == 0 ? height : width;
+    }
+
+    /**
+     * @see #rotate(byte[], int, int, int, boolean, byte[], boolean)
+     */
+    public static void rotate(byte[] src, int width, int height, int rotation, boolean mirror,
+            byte[] dst) {
+        rotate(src, width, height, rotation, mirror, dst, false);
+    }
+
+    /**
+     * Rotates {@code src} clockwise by {@code rotation} degrees, then flips it horizontally if
+     * {@code mirror} is set.
+     *
+     * @param src      A packed NV21 image with even width and height.
+     * @param rotation One of 0, 90, 180 and 270.
+     * @param dst      At least as large as the NV21 part of {@code src}; must not be {@code src}.
+     * @param parallel Whether to split the work across the kernel threads.
+     */
+    public static void rotate(byte[] src, int width, int height, int rotation, boolean mirror,
+            byte[] dst, boolean parallel) {
+        if (rotation != 0 && rotation != 90 && rotation != 180 && rotation != 270) {
+            throw new IllegalArgumentException("Unsupported rotation: " + rotation);
+        }
+        if ((width & 1) != 0 || (height & 1) != 0) {
+            throw new IllegalArgumentException("Odd NV21 size: " + width + "x" + height);
+        }
+        final int lumaSize = width * height;
+        final int size = lumaSize + lumaSize / 2;
+        if (src.length < size || dst.length < size) {
+            throw new IllegalArgumentException("Buffers too small for " + width + "x" + height);
+        }
+        if (rotation == 0 && !mirror) {
+            System.arraycopy(src, 0, dst, 0, size);
+            return;
+        }
+        final RotateTask task = sTasks.get();
+        task.set(src, 0, width, width, height, rotation, mirror, dst, true);
+        try {
+            ParallelBands.run(height / 2, TILE / 2, parallel, task);
+        } finally {
+            task.clear();
+        }
+    }
+
+    /**
+     * Rotates {@code src} clockwise by {@code rotation} degrees, then flips it horizontally if
+     * {@code mirror} is set, like {@link #rotate(byte[], int, int, int, boolean, byte[], boolean)}
+     * but for a single 8-bit plane, such as the luma plane of any YUV frame.
+     *
+     * @param offset    The index of the top left pixel in {@code src}.
+     * @param rowStride The number of bytes between the starts of two rows of {@code src}.
+     * @param dst       At least width * height bytes, written without row padding.
+     */
+    public static void rotateGray(byte[] src, int offset, int rowStride, int width, int height,
+            int rotation, boolean mirror, byte[] dst, boolean parallel) {
+        if (rotation != 0 && rotation != 90 && rotation != 180 && rotation != 270) {
+            throw new IllegalArgumentException("Unsupported rotation: " + rotation);
+        }
+        if (src.length < offset + (height - 1) * rowStride + width
+                || dst.length < width * height) {
+            throw new IllegalArgumentException("Buffers too small for " + width + "x" + height);
+        }
+        final RotateTask task = sTasks.get();
+        task.set(src, offset, rowStride, width, height, rotation, mirror, dst, false);
+        try {
+            ParallelBands.run(height, TILE, parallel, task);
+        } finally {
+            task.clear();
+        }
+    }
+
+    private static void copyLuma(byte[] src, int offset, int rowStride, int width, int rowStart,
+            int rowEnd, byte[] dst, Mapping m) {
+        for (int ty = rowStart; ty < rowEnd; ty += TILE) {
+            final int tyEnd = Math.min(ty + TILE, rowEnd);
+            for (int tx = 0; tx < width; tx += TILE) {
+                final int txEnd = Math.min(tx + TILE, width);
+                for (int y = ty; y < tyEnd; y++) {
+                    int s = offset + y * rowStride + tx;
+                    int d = m.mBase + tx * m.mDx + y * m.mDy;
+                    for (int x = tx; x < txEnd; x++) {
+                        dst[d] = src[s++];
+                        d += m.mDx;
+                    }
+                }
+            }
+        }
+    }
+
+    private static void copyChroma(byte[] src, int srcOffset, int width, int rowStart,
+            int rowEnd, byte[] dst, int dstOffset, Mapping m) {
+        for (int ty = rowStart; ty < rowEnd; ty += TILE) {
+            final int tyEnd = Math.min(ty + TILE, rowEnd);
+            for (int tx = 0; tx < width; tx += TILE) {
+                final int txEnd = Math.min(tx + TILE, width);
+                for (int y = ty; y < tyEnd; y++) {
+                    int s = srcOffset + 2 * (y * width + tx);
+                    int d = m.mBase + tx * m.mDx + y * m.mDy;
+                    for (int x = tx; x < txEnd; x++) {
+                        final int o = dstOffset + 2 * d;
+                        dst[o] = src[s++];
+                        dst[o + 1] = src[s++];
+                        d += m.mDx;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * The arguments of one call, reused by its calling thread so that a call allocates nothing.
+     */
+    private static final class RotateTask implements ParallelBands.Task {
+
+        private final Mapping mLuma = new Mapping();
+
+        private final Mapping mChroma = new Mapping();
+
+        private byte[] mSrc;
+
+        private int mOffset;
+
+        private int mRowStride;
+
+        private int mWidth;
+
+        private int mLumaSize;
+
+        private byte[] mDst;
+
+        /** Whether {@link #mSrc} is NV21, whose bands are counted in chroma rows. */
+        private boolean mNv21;
+
+        void set(byte[] src, int offset, int rowStride, int width, int height, int rotation,
+                boolean mirror, byte[] dst, boolean nv21) {
+            mSrc = src;
+            mOffset = offset;
+            mRowStride = rowStride;
+            mWidth = width;
+            mLumaSize = width * height;
+            mDst = dst;
+            mNv21 = nv21;
+            mLuma.set(width, height, rotation, mirror);
+            if (nv21) {
+                mChroma.set(width / 2, height / 2, rotation, mirror);
+            }
+        }
+
+        /** Drops the buffers, so that an idle thread does not keep them alive. */
+        void clear() {
+            mSrc = null;
+            mDst = null;
+        }
+
+        @Override
+        public void run(int start, int end) {
+            if (!mNv21) {
+                copyLuma(mSrc, mOffset, mRowStride, mWidth, start, end, mDst, mLuma);
+                return;
+            }
+            // Chroma row r belongs to luma rows 2r and 2r + 1
+            copyLuma(mSrc, 0, mWidth, mWidth, 2 * start, 2 * end, mDst, mLuma);
+            copyChroma(mSrc, mLumaSize, mWidth / 2, start, end, mDst, mLumaSize, mChroma);
+        }
+
+    }
+
+    /**
+     * The output index of source pixel (x, y) is {@code mBase + x * mDx + y * mDy}. Shared with
+     * {@link RgbConverter}, which rotates while it converts. Mutable, so that the tasks holding
+     * one can be reused for every frame.
+     */
+    static final class Mapping {
+
+        int mBase;
+
+        int mDx;
+
+        int mDy;
+
+        void set(int width, int height, int rotation, boolean mirror) {
+            final int outWidth = getRotatedWidth(width, height, rotation);
+            mBase = index(0, 0, width, height, outWidth, rotation, mirror);
+            mDx = index(1, 0, width, height, outWidth, rotation, mirror) - mBase;
+            mDy = index(0, 1, width, height, outWidth, rotation, mirror) - mBase;
+        }
+
+        private static int index(int x, int y, int width, int height, int outWidth,
+                int rotation, boolean mirror) {
+            int outX;
+            int outY;
+            switch (rotation) {
+                case 90:
+                    outX = height - 1 - y;
+                    outY = x;
+                    break;
+                case 180:
+                    outX = width - 1 - x;
+                    outY = height - 1 - y;
+                    break;
+                case 270:
+                    outX = y;
+                    outY = width - 1 - x;
+                    break;
+                default:
+                    outX = x;
+                    outY = y;
+                    break;
+            }
+            if (mirror) {
+                outX = outWidth - 1 - outX;
+            }
+            return outY * outWidth + outX;
+        }
+
+    }
+
+}
@@ -0,0 +1,274 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.readsense.cameraview.camera;
+
+/**
+ * Crops a region of a packed NV21 image and resamples it to a smaller size, writing NV21 or
+ * {@link Frame#FORMAT_GRAY} into a caller-supplied array.
+ *
+ * <p>Source positions are tracked in 16.16 fixed point, so the inner loops use integer
+ * arithmetic only. Output pixel centers are mapped onto the region, which keeps the image
+ * centered for any scale factor.</p>
+ */
+public final class Nv21Scaler {
+
+    /** Takes the source pixel under each output pixel center. Fastest, aliases when shrinking. */
+    public static final int SCALE_NEAREST = 0;
+
+    /** Averages the 2x2 source pixels around each output pixel center. */
+    public static final int SCALE_BOX = 1;
+
+    /** Interpolates between the 2x2 source pixels around each output pixel center. */
+    public static final int SCALE_BILINEAR = 2;
+
+    private static final int SHIFT = 16;
+
+    private static final int HALF = 1 << (SHIFT - 1);
+
+    private static final ThreadLocal<ScaleTask> sTasks = new ThreadLocal<ScaleTask>() {
+        @Override
+        protected ScaleTask initialValue() {
+            return new ScaleTask();
+        }
+    };
+
+    private Nv21Scaler() {
+    }
+
+    /**
+     * @return The number of bytes of the output of the given size.
+     */
+    public static int getOutputSize(int width, int height, boolean gray) {
+        return gray ? width * height : width * height + width * height / 2;
+    }
+
+    /**
+     * Resamples the region ({@code left}, {@code top}, {@code cropWidth}, {@code cropHeight}) of
+     * {@code src} to {@code dstWidth} x {@code dstHeight}.
+     *
+     * @param src      A packed NV21 image with even width and height.
+     * @param left     The left edge of the region; must be even, like {@code top},
+     *                 {@code cropWidth} and {@code cropHeight}.
+     * @param dst      At least {@link #getOutputSize(int, int, boolean)} bytes.
+     * @param dstWidth The output width; must be even unless {@code gray} is set, like
+     *                 {@code dstHeight}.
+     * @param mode     One of the {@code SCALE_*} constants.
+     * @param gray     Whether to write the luma plane only.
+     * @param parallel Whether to split the work across the kernel threads.
+     */
+    public static void scale(byte[] src, int width, int height, int left, int top,
+            int cropWidth, int cropHeight, byte[] dst, int dstWidth, int dstHeight, int mode,
+            boolean gray, boolean parallel) {
+        if (mode != SCALE_NEAREST && mode != SCALE_BOX && mode != SCALE_BILINEAR) {
+            throw new IllegalArgumentException("Unsupported scale mode: " + mode);
+        }
+        if (((width | height | left | top | cropWidth | cropHeight) & 1) != 0
+                || (!gray && ((dstWidth | dstHeight) & 1) != 0)) {
+            throw new IllegalArgumentException("Odd NV21 size or region");
+        }
+        if (left < 0 || top < 0 || cropWidth <= 0 || cropHeight <= 0
+                || left + cropWidth > width || top + cropHeight > height) {
+            throw new IllegalArgumentException("Region outside of " + width + "x" + height);
+        }
+        if (dstWidth <= 0 || dstHeight <= 0) {
+            throw new IllegalArgumentException("Empty output: " + dstWidth + "x" + dstHeight);
+        }
+        final int lumaSize = width * height;
+        if (src.length < lumaSize + lumaSize / 2
+                || dst.length < getOutputSize(dstWidth, dstHeight, gray)) {
+            throw new IllegalArgumentException("Buffers too small");
+        }
+        if (gray) {
+            scaleGray(src, 0, width, left, top, cropWidth, cropHeight, dst, dstWidth, dstHeight,
+                    mode, parallel);
+            return;
+        }
+        final ScaleTask task = sTasks.get();
+        task.set(src, 0, width, left, top, cropWidth, cropHeight, dst, dstWidth, dstHeight, mode,
+                lumaSize);
+        try {
+            ParallelBands.run(dstHeight / 2, 16, parallel, task);
+        } finally {
+            task.clear();
+        }
+    }
+
+    /**
+     * Resamples a region of a single 8-bit plane, such as the luma plane of any YUV frame, to
+     * {@code dstWidth} x {@code dstHeight}. Unlike
+     * {@link #scale(byte[], int, int, int, int, int, int, byte[], int, int, int, boolean, boolean)}
+     * any sizes and edges are allowed.
+     *
+     * @param offset    The index of the top left pixel of the plane in {@code src}.
+     * @param rowStride The number of bytes between the starts of two rows of {@code src}.
+     * @param left      The left edge of the region, relative to the plane.
+     * @param dst       At least dstWidth * dstHeight bytes.
+     */
+    public static void scaleGray(byte[] src, int offset, int rowStride, int left, int top,
+            int cropWidth, int cropHeight, byte[] dst, int dstWidth, int dstHeight, int mode,
+            boolean parallel) {
+        if (mode != SCALE_NEAREST && mode != SCALE_BOX && mode != SCALE_BILINEAR) {
+            throw new IllegalArgumentException("Unsupported scale mode: " + mode);
+        }
+        if (left < 0 || top < 0 || cropWidth <= 0 || cropHeight <= 0 || dstWidth <= 0
+                || dstHeight <= 0) {
+            throw new IllegalArgumentException("Empty region or output");
+        }
+        if (src.length < offset + (top + cropHeight - 1) * rowStride + left + cropWidth
+                || dst.length < dstWidth * dstHeight) {
+            throw new IllegalArgumentException("Buffers too small");
+        }
+        final ScaleTask task = sTasks.get();
+        task.set(src, offset, rowStride, left, top, cropWidth, cropHeight, dst, dstWidth,
+                dstHeight, mode, -1);
+        try {
+            ParallelBands.run(dstHeight, 16, parallel, task);
+        } finally {
+            task.clear();
+        }
+    }
+
+    /**
+     * The arguments of one call, reused by its calling thread so that a call allocates nothing.
+     */
+    private static final class ScaleTask implements ParallelBands.Task {
+
+        private byte[] mSrc;
+
+        private int mOffset;
+
+        private int mRowStride;
+
+        private int mLeft;
+
+        private int mTop;
+
+        private int mCropWidth;
+
+        private int mCropHeight;
+
+        private byte[] mDst;
+
+        private int mDstWidth;
+
+        private int mDstHeight;
+
+        private int mMode;
+
+        /** The offset of the NV21 chroma plane in {@link #mSrc}, or -1 for a single plane. */
+        private int mChromaOffset;
+
+        void set(byte[] src, int offset, int rowStride, int left, int top, int cropWidth,
+                int cropHeight, byte[] dst, int dstWidth, int dstHeight, int mode,
+                int chromaOffset) {
+            mSrc = src;
+            mOffset = offset;
+            mRowStride = rowStride;
+            mLeft = left;
+            mTop = top;
+            mCropWidth = cropWidth;
+            mCropHeight = cropHeight;
+            mDst = dst;
+            mDstWidth = dstWidth;
+            mDstHeight = dstHeight;
+            mMode = mode;
+            mChromaOffset = chromaOffset;
+        }
+
+        /** Drops the buffers, so that an idle thread does not keep them alive. */
+        void clear() {
+            mSrc = null;
+            mDst = null;
+        }
+
+        @Override
+        public void run(int start, int end) {
+            if (mChromaOffset < 0) {
+                scalePlane(mSrc, mOffset, mRowStride, 1, mLeft, mTop, mCropWidth, mCropHeight,
+                        mDst, 0, mDstWidth, mDstHeight, mMode, start, end);
+                return;
+            }
+            // Chroma row r belongs to luma rows 2r and 2r + 1
+            scalePlane(mSrc, mOffset, mRowStride, 1, mLeft, mTop, mCropWidth, mCropHeight,
+                    mDst, 0, mDstWidth, mDstHeight, mMode, 2 * start, 2 * end);
+            scalePlane(mSrc, mChromaOffset, mRowStride, 2, mLeft / 2, mTop / 2, mCropWidth / 2,
+                    mCropHeight / 2, mDst, mDstWidth * mDstHeight, mDstWidth / 2,
+                    mDstHeight / 2, mMode, start, end);
+        }
+
+    }
+
+    /**
+     * Resamples output rows {@code [rowStart, rowEnd)} of one plane whose pixels are
+     * {@code channels} interleaved bytes.
+     */
+    private static void scalePlane(byte[] src, int srcOffset, int srcStride, int channels,
+            int left, int top, int cropWidth, int cropHeight, byte[] dst, int dstOffset,
+            int dstWidth, int dstHeight, int mode, int rowStart, int rowEnd) {
+        final int xStep = (cropWidth << SHIFT) / dstWidth;
+        final int yStep = (cropHeight << SHIFT) / dstHeight;
+        final int maxX = cropWidth - 1;
+        final int maxY = cropHeight - 1;
+        final int base = srcOffset + top * srcStride + left * channels;
+        for (int y = rowStart; y < rowEnd; y++) {
+            int d = dstOffset + y * dstWidth * channels;
+            // Position of the output pixel center on the region, in source pixels
+            final int cy = y * yStep + (yStep >> 1);
+            if (mode == SCALE_NEAREST) {
+                final int row = base + (cy >> SHIFT) * srcStride;
+                int cx = xStep >> 1;
+                for (int x = 0; x < dstWidth; x++) {
+                    final int s = row + (cx >> SHIFT) * channels;
+                    for (int c = 0; c < channels; c++) {
+                        dst[d++] = src[s + c];
+                    }
+                    cx += xStep;
+                }
+                continue;
+            }
+            // The 2x2 neighbourhood starts half a pixel up and to the left of the center
+            final int fy = Math.max(0, cy - HALF);
+            final int y0 = Math.min(fy >> SHIFT, maxY);
+            final int row0 = base + y0 * srcStride;
+            final int row1 = base + Math.min(y0 + 1, maxY) * srcStride;
+            final int wy = (fy >> (SHIFT - 8)) & 0xFF;
+            int cx = (xStep >> 1) - HALF;
+            for (int x = 0; x < dstWidth; x++) {
+                final int fx = cx < 0 ? 0 : cx;
+                final int x0 = Math.min(fx >> SHIFT, maxX);
+                final int s0 = x0 * channels;
+                final int s1 = Math.min(x0 + 1, maxX) * channels;
+                final int wx = (fx >> (SHIFT - 8)) & 0xFF;
+                for (int c = 0; c < channels; c++) {
+                    final int a = src[row0 + s0 + c] & 0xFF;
+                    final int b = src[row0 + s1 + c] & 0xFF;
+                    final int e = src[row1 + s0 + c] & 0xFF;
+                    final int f = src[row1 + s1 + c] & 0xFF;
+                    if (mode == SCALE_BOX) {
+                        dst[d++] = (byte) ((a + b + e + f + 2) >> 2);
+                    } else {
+                        final int upper = (a << 8) + (b - a) * wx;
+                        final int lower = (e << 8) + (f - e) * wx;
+                        dst[d++] = (byte) (((upper << 8) + (lower - upper) * wy + HALF) >> 16);
+                    }
+                }
+                cx += xStep;
+            }
+        }
+    }
+
+}
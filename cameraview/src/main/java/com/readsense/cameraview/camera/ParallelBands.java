@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.readsense.cameraview.camera;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Splits image kernels into bands of rows that run on a small fixed pool shared by the whole
+ * library. Bands write disjoint output, so no further synchronization is needed.
+ */
+final class ParallelBands {
+
+    interface Task {
+
+        /**
+         * Processes rows {@code [start, end)}.
+         */
+        void run(int start, int end);
+
+    }
+
+    private static final int PARALLELISM =
+            Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+    private static ExecutorService sPool;
+
+    private static final ThreadLocal<Batch> sBatches = new ThreadLocal<Batch>() {
+        @Override
+        protected Batch initialValue() {
+            return new Batch();
+        }
+    };
+
+    private ParallelBands() {
+    }
+
+    private static synchronized ExecutorService getPool() {
+        if (sPool == null) {
+            sPool = Executors.newFixedThreadPool(PARALLELISM - 1, new ThreadFactory() {
+                private final AtomicInteger mCount = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "CameraView-Kernel-" + mCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return sPool;
+    }
+
+    /**
+     * Runs {@code task} over rows {@code [0, rows)}, in parallel if {@code parallel} is set and
+     * there are at least two bands of {@code minRows}. The calling thread takes the first band and
+     * returns once every band is done.
+     */
+    static void run(int rows, int minRows, boolean parallel, Task task) {
+        final int bands = parallel ? Math.min(PARALLELISM, rows / Math.max(1, minRows)) : 1;
+        if (bands <= 1) {
+            task.run(0, rows);
+            return;
+        }
+        sBatches.get().run(rows, bands, task);
+    }
+
+    /**
+     * The state of one parallel run, reused by its calling thread so that a run allocates
+     * nothing.
+     */
+    private static final class Batch {
+
+        private final Band[] mBands = new Band[PARALLELISM - 1];
+
+        private Task mTask;
+
+        private int mRows;
+
+        private int mBandCount;
+
+        /** The bands still running on the pool. Guarded by {@code this}, like {@link #mError}. */
+        private int mPending;
+
+        private Throwable mError;
+
+        Batch() {
+            for (int i = 0; i < mBands.length; i++) {
+                mBands[i] = new Band(this, i + 1);
+            }
+        }
+
+        void run(int rows, int bands, Task task) {
+            mTask = task;
+            mRows = rows;
+            mBandCount = bands;
+            synchronized (this) {
+                mPending = bands - 1;
+                mError = null;
+            }
+            final ExecutorService pool = getPool();
+            for (int i = 1; i < bands; i++) {
+                pool.execute(mBands[i - 1]);
+            }
+            try {
+                task.run(0, rows / bands);
+            } finally {
+                // The other bands still write into the caller's buffers, never return before them
+                awaitBands();
+                mTask = null;
+            }
+            final Throwable error;
+            synchronized (this) {
+                error = mError;
+                mError = null;
+            }
+            if (error != null) {
+                throw new RuntimeException("Parallel band failed", error);
+            }
+        }
+
+        private synchronized void awaitBands() {
+            boolean interrupted = false;
+            while (mPending > 0) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private synchronized void onBandDone(Throwable error) {
+            if (error != null && mError == null) {
+                mError = error;
+            }
+            if (--mPending == 0) {
+                notifyAll();
+            }
+        }
+
+    }
+
+    private static final class Band implements Runnable {
+
+        private final Batch mBatch;
+
+        private final int mIndex;
+
+        Band(Batch batch, int index) {
+            mBatch = batch;
+            mIndex = index;
+        }
+
+        @Override
+        public void run() {
+            final Batch batch = mBatch;
+            Throwable error = null;
+            try {
+                final int start = (int) ((long) batch.mRows * mIndex / batch.mBandCount);
+                final int end = (int) ((long) batch.mRows * (mIndex + 1) / batch.mBandCount);
+                batch.mTask.run(start, end);
+            } catch (Throwable t) {
+                error = t;
+            } finally {
+                batch.onBandDone(error);
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.readsense.cameraview.camera;
+
+import android.graphics.ImageFormat;
+import android.hardware.Camera;
+
+/**
+ * A fixed set of preview buffers that are handed to the camera through
+ * {@link Camera#addCallbackBuffer(byte[])} and recycled once the frame has been consumed.
+ *
+ * <p>The buffers survive {@link #detach()} so that restarting the preview with the same size and
+ * format does not allocate again.</p>
+ */
+@SuppressWarnings("deprecation")
+class PreviewBufferPool {
+
+    private byte[][] mBuffers = new byte[0][];
+
+    /** {@code true} while the buffer at the same index is held by a consumer. */
+    private boolean[] mInUse = new boolean[0];
+
+    private int mInUseCount;
+
+    private int mBufferSize;
+
+    private Camera mCamera;
+
+    /**
+     * @return The number of bytes needed for one preview frame of the given size and format.
+     */
+    static int getBufferSize(int width, int height, int format) {
+        return width * height * ImageFormat.getBitsPerPixel(format) / 8;
+    }
+
+    /**
+     * Allocates the buffers if needed and queues every free buffer on {@code camera}. Must be called
+     * before {@link Camera#setPreviewCallbackWithBuffer(Camera.PreviewCallback)}.
+     */
+    synchronized void attach(Camera camera, int count, int width, int height, int format) {
+        final int size = getBufferSize(width, height, format);
+        if (size != mBufferSize || count != mBuffers.length) {
+            mBufferSize = size;
+            mBuffers = new byte[count][];
+            mInUse = new boolean[count];
+            mInUseCount = 0;
+            for (int i = 0; i < count; i++) {
+                mBuffers[i] = new byte[size];
+            }
+        }
+        mCamera = camera;
+        for (int i = 0; i < mBuffers.length; i++) {
+            if (!mInUse[i]) {
+                camera.addCallbackBuffer(mBuffers[i]);
+            }
+        }
+    }
+
+    /**
+     * Stops returning buffers to the camera. Buffers released afterwards are kept for the next
+     * {@link #attach}.
+     */
+    synchronized void detach() {
+        mCamera = null;
+    }
+
+    /**
+     * Marks {@code data} as held by the consumers.
+     *
+     * @return {@code true} if this was the last buffer the camera had, so that it drops frames
+     * until one is recycled.
+     */
+    synchronized boolean onFrameDelivered(byte[] data) {
+        final int index = indexOf(data);
+        if (index == -1 || mInUse[index]) {
+            return false;
+        }
+        mInUse[index] = true;
+        mInUseCount++;
+        return mInUseCount == mInUse.length;
+    }
+
+    /**
+     * Gives {@code data} back to the camera. Buffers that do not belong to this pool, for example
+     * frames delivered by {@link Camera#setPreviewCallback(Camera.PreviewCallback)} or buffers left
+     * over from a previous preview size, are ignored.
+     */
+    synchronized void recycle(byte[] data) {
+        final int index = indexOf(data);
+        if (index == -1) {
+            return;
+        }
+        if (mInUse[index]) {
+            mInUse[index] = false;
+            mInUseCount--;
+        }
+        if (mCamera != null) {
+            mCamera.addCallbackBuffer(data);
+        }
+    }
+
+    private int indexOf(byte[] data) {
+        for (int i = 0; i < mBuffers.length; i++) {
+            if (mBuffers[i] == data) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+}
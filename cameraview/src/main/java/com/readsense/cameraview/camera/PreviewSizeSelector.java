@@ -0,0 +1,195 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.readsense.cameraview.camera;
+
+import com.readsense.cameraview.modle.CameraParameters;
+
+/**
+ * Picks the cheapest preview size that still serves the view and the frame consumers, for either
+ * camera backend.
+ *
+ * <p>A size is valid if it has the wanted aspect ratio, covers the minimum size and can stream at
+ * the target frame rate. Among valid sizes the one with the fewest pixels wins, since every pixel
+ * is paid for in bandwidth and in each consumer. All sizes are in sensor orientation, i.e. usually
+ * landscape.</p>
+ */
+class PreviewSizeSelector {
+
+    /** Relative aspect ratio difference still treated as a match, e.g. 1920x1088 for 16:9. */
+    private static final float RATIO_TOLERANCE = 0.02f;
+
+    /** Used when neither the view size nor an analysis budget is known yet. */
+    private static final int DEFAULT_MIN_WIDTH = 640;
+
+    private static final int DEFAULT_MIN_HEIGHT = 480;
+
+    private static final AspectRatio DEFAULT_ASPECT_RATIO = AspectRatio.of(4, 3);
+
+    interface FrameRates {
+
+        /**
+         * @return The highest frame rate the camera can stream at {@code width} x {@code height},
+         * or 0 if unknown.
+         */
+        int getMaxFps(int width, int height);
+
+    }
+
+    private PreviewSizeSelector() {
+    }
+
+    /**
+     * Selects a size for the request described by {@code parameters}: its aspect ratio, analysis
+     * budget and target frame rate. Missing values are derived from the view.
+     *
+     * @param viewWidth  The width of the preview view, or 0 if not laid out yet.
+     * @param viewHeight The height of the preview view, or 0 if not laid out yet.
+     * @param swap       Whether the preview is shown rotated by 90 or 270 degrees, so that the
+     *                   view dimensions have to be swapped to compare them with sensor sizes.
+     * @param rates      The frame rate of each size, or {@code null} if sizes do not differ.
+     * @return {@code null} if {@code sizes} is empty.
+     */
+    static Size select(SizeCatalog sizes, CameraParameters parameters, int viewWidth, int viewHeight,
+            boolean swap, FrameRates rates) {
+        return select(sizes, parameters, parameters.mAnalysisSize, viewWidth, viewHeight, swap,
+                rates);
+    }
+
+    /**
+     * Like {@link #select(SizeCatalog, CameraParameters, int, int, boolean, FrameRates)}, but
+     * ignores the analysis budget. For a display stream when analysis has a stream of its own.
+     */
+    static Size selectForView(SizeCatalog sizes, CameraParameters parameters, int viewWidth,
+            int viewHeight, boolean swap, FrameRates rates) {
+        return select(sizes, parameters, null, viewWidth, viewHeight, swap, rates);
+    }
+
+    private static Size select(SizeCatalog sizes, CameraParameters parameters, Size analysis,
+            int viewWidth, int viewHeight, boolean swap, FrameRates rates) {
+        if (swap) {
+            final int width = viewWidth;
+            viewWidth = viewHeight;
+            viewHeight = width;
+        }
+        final boolean hasView = viewWidth > 0 && viewHeight > 0;
+        AspectRatio ratio = parameters.mAspectRatio;
+        if (ratio == null) {
+            ratio = hasView ? AspectRatio.of(viewWidth, viewHeight) : DEFAULT_ASPECT_RATIO;
+        }
+        int minWidth = DEFAULT_MIN_WIDTH;
+        int minHeight = DEFAULT_MIN_HEIGHT;
+        if (analysis != null) {
+            minWidth = analysis.getWidth();
+            minHeight = analysis.getHeight();
+        } else if (hasView) {
+            minWidth = viewWidth;
+            minHeight = viewHeight;
+        }
+        return select(sizes, ratio, minWidth, minHeight, getTargetFps(parameters), rates);
+    }
+
+    /**
+     * @return {@link CameraParameters#mTargetFps}, or else the frame rate of the fps range policy.
+     */
+    private static int getTargetFps(CameraParameters parameters) {
+        if (parameters.mTargetFps > 0) {
+            return parameters.mTargetFps;
+        }
+        return parameters.mFpsMode != CameraParameters.FPS_DEFAULT ? parameters.mFps : 0;
+    }
+
+    /**
+     * @param ratio     The wanted aspect ratio.
+     * @param minWidth  The smallest acceptable width.
+     * @param minHeight The smallest acceptable height.
+     * @param targetFps The frame rate the size must sustain, or 0 for any.
+     * @return The smallest valid size. If there is none, the largest size of the wanted ratio
+     * that reaches the frame rate, then the smallest valid size of any ratio, then the largest
+     * size of any ratio that reaches the frame rate, then simply the largest size. {@code null}
+     * if {@code sizes} is empty.
+     */
+    static Size select(SizeCatalog sizes, AspectRatio ratio, int minWidth, int minHeight,
+            int targetFps, FrameRates rates) {
+        long best = SizeCatalog.NONE;
+        long largestOfRatio = SizeCatalog.NONE;
+        long anyRatio = SizeCatalog.NONE;
+        long largestFast = SizeCatalog.NONE;
+        long largest = SizeCatalog.NONE;
+        final float wanted = ratio.toFloat();
+        for (int id = 0; id < sizes.getRatioCount(); id++) {
+            final int count = sizes.getSizeCount(id);
+            final boolean matches = Math.abs(sizes.getRatio(id) / wanted - 1) <= RATIO_TOLERANCE;
+            largest = larger(largest, sizes.getSize(id, count - 1));
+            for (int i = count - 1; i >= 0; i--) {
+                final long size = sizes.getSize(id, i);
+                if (isFastEnough(size, targetFps, rates)) {
+                    largestFast = larger(largestFast, size);
+                    if (matches) {
+                        largestOfRatio = larger(largestOfRatio, size);
+                    }
+                    break;
+                }
+            }
+            // Ascending by area, so the first valid size is the cheapest of this ratio
+            int index = sizes.indexOfAtLeast(id, minWidth, minHeight);
+            for (; index >= 0 && index < count; index++) {
+                final long size = sizes.getSize(id, index);
+                if (isFastEnough(size, targetFps, rates)) {
+                    if (matches) {
+                        best = smaller(best, size);
+                    } else {
+                        anyRatio = smaller(anyRatio, size);
+                    }
+                    break;
+                }
+            }
+        }
+        long size = best;
+        if (size == SizeCatalog.NONE) {
+            size = largestOfRatio;
+        }
+        if (size == SizeCatalog.NONE) {
+            size = anyRatio;
+        }
+        if (size == SizeCatalog.NONE) {
+            size = largestFast != SizeCatalog.NONE ? largestFast : largest;
+        }
+        return size == SizeCatalog.NONE ? null
+                : new Size(SizeCatalog.width(size), SizeCatalog.height(size));
+    }
+
+    private static boolean isFastEnough(long size, int targetFps, FrameRates rates) {
+        if (targetFps <= 0 || rates == null) {
+            return true;
+        }
+        final int fps = rates.getMaxFps(SizeCatalog.width(size), SizeCatalog.height(size));
+        return fps == 0 || fps >= targetFps;
+    }
+
+    private static long larger(long a, long b) {
+        return a == SizeCatalog.NONE || area(b) > area(a) ? b : a;
+    }
+
+    private static long smaller(long a, long b) {
+        return a == SizeCatalog.NONE || area(b) < area(a) ? b : a;
+    }
+
+    private static long area(long size) {
+        return (long) SizeCatalog.width(size) * SizeCatalog.height(size);
+    }
+
+}
@@ -0,0 +1,376 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.readsense.cameraview.camera;
+
+import android.graphics.Bitmap;
+import android.graphics.ImageFormat;
+
+/**
+ * Converts YUV 4:2:0 frames to ARGB_8888 or packed RGB888, rotating and mirroring them in the
+ * same pass.
+ *
+ * <p>Uses the BT.601 limited-range matrix with 10-bit integer coefficients looked up from tables,
+ * so the inner loop has no floating point and no multiplication. Each 2x2 block shares one
+ * chroma lookup. The source is walked in square tiles, as in {@link Nv21Rotator}, to keep the
+ * rotated writes cache friendly.</p>
+ *
+ * <p>The static kernels write into caller-supplied arrays. An instance additionally keeps the
+ * scratch buffers needed for {@link Frame} input and {@link Bitmap} output, and must only be used
+ * by one thread at a time.</p>
+ */
+public final class RgbConverter {
+
+    private static final int TILE = 32;
+
+    private static final ThreadLocal<ConvertTask> sTasks = new ThreadLocal<ConvertTask>() {
+        @Override
+        protected ConvertTask initialValue() {
+            return new ConvertTask();
+        }
+    };
+
+    private static final int[] Y_TABLE = new int[256];
+
+    private static final int[] RV_TABLE = new int[256];
+
+    private static final int[] GU_TABLE = new int[256];
+
+    private static final int[] GV_TABLE = new int[256];
+
+    private static final int[] BU_TABLE = new int[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            Y_TABLE[i] = 1192 * Math.max(0, i - 16) + 512;
+            RV_TABLE[i] = 1634 * (i - 128);
+            GU_TABLE[i] = 401 * (i - 128);
+            GV_TABLE[i] = 832 * (i - 128);
+            BU_TABLE[i] = 2066 * (i - 128);
+        }
+    }
+
+    private boolean mParallel;
+
+    private int[] mPixels;
+
+    private byte[] mScratch;
+
+    public RgbConverter() {
+    }
+
+    /**
+     * @param parallel Whether to split the work across the kernel threads.
+     */
+    public RgbConverter setParallel(boolean parallel) {
+        mParallel = parallel;
+        return this;
+    }
+
+    /**
+     * @return The width of the converted image of {@code frame}, after its rotation.
+     */
+    public static int getOutputWidth(Frame frame) {
+        return Nv21Rotator.getRotatedWidth(frame.getWidth(), frame.getHeight(),
+                frame.getRotation());
+    }
+
+    /**
+     * @return The height of the converted image of {@code frame}, after its rotation.
+     */
+    public static int getOutputHeight(Frame frame) {
+        return Nv21Rotator.getRotatedHeight(frame.getWidth(), frame.getHeight(),
+                frame.getRotation());
+    }
+
+    /**
+     * Converts {@code frame} to upright ARGB_8888 pixels, applying its rotation and mirroring.
+     *
+     * @param out Reused if it holds at least width * height pixels.
+     * @return {@code out}, or a new array if it was {@code null} or too small.
+     * @throws IllegalArgumentException if the format is not NV21, YV12 or YUV_420_888.
+     */
+    public int[] toArgb(Frame frame, int[] out) {
+        final int size = frame.getWidth() * frame.getHeight();
+        if (out == null || out.length < size) {
+            out = new int[size];
+        }
+        convert(frame, out, null);
+        return out;
+    }
+
+    /**
+     * Converts {@code frame} to upright packed RGB888 bytes, in R, G, B order.
+     *
+     * @param out Reused if it holds at least width * height * 3 bytes.
+     * @return {@code out}, or a new array if it was {@code null} or too small.
+     * @throws IllegalArgumentException if the format is not NV21, YV12 or YUV_420_888.
+     */
+    public byte[] toRgb(Frame frame, byte[] out) {
+        final int size = 3 * frame.getWidth() * frame.getHeight();
+        if (out == null || out.length < size) {
+            out = new byte[size];
+        }
+        convert(frame, null, out);
+        return out;
+    }
+
+    /**
+     * Converts {@code frame} to an upright ARGB_8888 bitmap.
+     *
+     * @param reuse Written into if it is a mutable ARGB_8888 bitmap of the output size.
+     * @return {@code reuse}, or a new bitmap if it could not be reused.
+     */
+    public Bitmap toBitmap(Frame frame, Bitmap reuse) {
+        final int width = getOutputWidth(frame);
+        final int height = getOutputHeight(frame);
+        Bitmap bitmap = reuse;
+        if (bitmap == null || bitmap.isRecycled() || !bitmap.isMutable()
+                || bitmap.getConfig() != Bitmap.Config.ARGB_8888
+                || bitmap.getWidth() != width || bitmap.getHeight() != height) {
+            bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        }
+        mPixels = toArgb(frame, mPixels);
+        bitmap.setPixels(mPixels, 0, width, 0, 0, width, height);
+        return bitmap;
+    }
+
+    private void convert(Frame frame, int[] argb, byte[] rgb) {
+        final int width = frame.getWidth();
+        final int height = frame.getHeight();
+        final int rotation = frame.getRotation();
+        final boolean mirror = frame.isMirrored();
+        final byte[] data = frame.getData();
+        if (frame.getPlanes() != null) {
+            final int size = Nv21Converter.getNv21Size(width, height);
+            if (mScratch == null || mScratch.length < size) {
+                mScratch = new byte[size];
+            }
+            Nv21Converter.convert(frame, mScratch);
+            convertNv21(mScratch, width, height, width, rotation, mirror, argb, rgb, mParallel);
+        } else if (data != null && frame.getFormat() == ImageFormat.NV21) {
+            convertNv21(data, width, height, frame.getRowStride(), rotation, mirror, argb, rgb,
+                    mParallel);
+        } else if (data != null && frame.getFormat() == ImageFormat.YV12) {
+            final int yStride = frame.getRowStride();
+            final int uvStride = (yStride / 2 + 15) / 16 * 16;
+            final int vOffset = yStride * height;
+            final int uOffset = vOffset + uvStride * (height / 2);
+            convert(data, 0, yStride, uOffset, vOffset, uvStride, 1, width, height, rotation,
+                    mirror, argb, rgb, mParallel);
+        } else {
+            throw new IllegalArgumentException("Unsupported frame: " + frame.getFormat());
+        }
+    }
+
+    /**
+     * Converts an NV21 image to ARGB_8888, rotating it clockwise by {@code rotation} degrees and
+     * then mirroring it if {@code mirror} is set.
+     *
+     * @param rowStride The number of bytes between two rows of either plane.
+     * @param out       At least width * height pixels.
+     */
+    public static void nv21ToArgb(byte[] src, int width, int height, int rowStride, int rotation,
+            boolean mirror, int[] out, boolean parallel) {
+        convertNv21(src, width, height, rowStride, rotation, mirror, out, null, parallel);
+    }
+
+    /**
+     * Like {@link #nv21ToArgb}, but writes packed RGB888.
+     *
+     * @param out At least width * height * 3 bytes.
+     */
+    public static void nv21ToRgb(byte[] src, int width, int height, int rowStride, int rotation,
+            boolean mirror, byte[] out, boolean parallel) {
+        convertNv21(src, width, height, rowStride, rotation, mirror, null, out, parallel);
+    }
+
+    /**
+     * Like {@link #nv21ToArgb}, but for I420: a luma plane followed by the U and V planes, whose
+     * rows are {@code rowStride / 2} bytes apart.
+     */
+    public static void i420ToArgb(byte[] src, int width, int height, int rowStride, int rotation,
+            boolean mirror, int[] out, boolean parallel) {
+        convertI420(src, width, height, rowStride, rotation, mirror, out, null, parallel);
+    }
+
+    /**
+     * Like {@link #i420ToArgb}, but writes packed RGB888.
+     *
+     * @param out At least width * height * 3 bytes.
+     */
+    public static void i420ToRgb(byte[] src, int width, int height, int rowStride, int rotation,
+            boolean mirror, byte[] out, boolean parallel) {
+        convertI420(src, width, height, rowStride, rotation, mirror, null, out, parallel);
+    }
+
+    private static void convertNv21(byte[] src, int width, int height, int rowStride,
+            int rotation, boolean mirror, int[] argb, byte[] rgb, boolean parallel) {
+        final int vOffset = rowStride * height;
+        convert(src, 0, rowStride, vOffset + 1, vOffset, rowStride, 2, width, height, rotation,
+                mirror, argb, rgb, parallel);
+    }
+
+    private static void convertI420(byte[] src, int width, int height, int rowStride,
+            int rotation, boolean mirror, int[] argb, byte[] rgb, boolean parallel) {
+        final int uvStride = rowStride / 2;
+        final int uOffset = rowStride * height;
+        final int vOffset = uOffset + uvStride * (height / 2);
+        convert(src, 0, rowStride, uOffset, vOffset, uvStride, 1, width, height, rotation,
+                mirror, argb, rgb, parallel);
+    }
+
+    /**
+     * Converts a YUV 4:2:0 image described by plane offsets and strides. Exactly one of
+     * {@code argb} and {@code rgb} is set.
+     */
+    private static void convert(byte[] src, int yOffset, int yStride, int uOffset, int vOffset,
+            int uvStride, int uvPixelStride, int width, int height, int rotation, boolean mirror,
+            int[] argb, byte[] rgb, boolean parallel) {
+        if (rotation != 0 && rotation != 90 && rotation != 180 && rotation != 270) {
+            throw new IllegalArgumentException("Unsupported rotation: " + rotation);
+        }
+        if ((width & 1) != 0 || (height & 1) != 0) {
+            throw new IllegalArgumentException("Odd YUV size: " + width + "x" + height);
+        }
+        final int lastChroma = (height / 2 - 1) * uvStride + (width / 2 - 1) * uvPixelStride;
+        if (src.length < yOffset + (height - 1) * yStride + width
+                || src.length <= Math.max(uOffset, vOffset) + lastChroma) {
+            throw new IllegalArgumentException("Source too small for " + width + "x" + height);
+        }
+        final int size = width * height;
+        if (argb != null ? argb.length < size : rgb.length < 3 * size) {
+            throw new IllegalArgumentException("Output too small for " + width + "x" + height);
+        }
+        final ConvertTask task = sTasks.get();
+        task.set(src, yOffset, yStride, uOffset, vOffset, uvStride, uvPixelStride, width, height,
+                rotation, mirror, argb, rgb);
+        try {
+            ParallelBands.run(height / 2, TILE / 2, parallel, task);
+        } finally {
+            task.clear();
+        }
+    }
+
+    /**
+     * The arguments of one call, reused by its calling thread so that a call allocates nothing.
+     */
+    private static final class ConvertTask implements ParallelBands.Task {
+
+        private final Nv21Rotator.Mapping mMapping = new Nv21Rotator.Mapping();
+
+        private byte[] mSrc;
+
+        private int mYOffset;
+
+        private int mYStride;
+
+        private int mUOffset;
+
+        private int mVOffset;
+
+        private int mUvStride;
+
+        private int mUvPixelStride;
+
+        private int mWidth;
+
+        private int[] mArgb;
+
+        private byte[] mRgb;
+
+        void set(byte[] src, int yOffset, int yStride, int uOffset, int vOffset, int uvStride,
+                int uvPixelStride, int width, int height, int rotation, boolean mirror,
+                int[] argb, byte[] rgb) {
+            mSrc = src;
+            mYOffset = yOffset;
+            mYStride = yStride;
+            mUOffset = uOffset;
+            mVOffset = vOffset;
+            mUvStride = uvStride;
+            mUvPixelStride = uvPixelStride;
+            mWidth = width;
+            mArgb = argb;
+            mRgb = rgb;
+            mMapping.set(width, height, rotation, mirror);
+        }
+
+        /** Drops the buffers, so that an idle thread does not keep them alive. */
+        void clear() {
+            mSrc = null;
+            mArgb = null;
+            mRgb = null;
+        }
+
+        @Override
+        public void run(int start, int end) {
+            convertRows(mSrc, mYOffset, mYStride, mUOffset, mVOffset, mUvStride, mUvPixelStride,
+                    mWidth, 2 * start, 2 * end, mMapping, mArgb, mRgb);
+        }
+
+    }
+
+    private static void convertRows(byte[] src, int yOffset, int yStride, int uOffset,
+            int vOffset, int uvStride, int uvPixelStride, int width, int rowStart, int rowEnd,
+            Nv21Rotator.Mapping m, int[] argb, byte[] rgb) {
+        for (int ty = rowStart; ty < rowEnd; ty += TILE) {
+            final int tyEnd = Math.min(ty + TILE, rowEnd);
+            for (int tx = 0; tx < width; tx += TILE) {
+                final int txEnd = Math.min(tx + TILE, width);
+                for (int y = ty; y < tyEnd; y += 2) {
+                    final int row0 = yOffset + y * yStride;
+                    final int row1 = row0 + yStride;
+                    final int chromaRow = (y >> 1) * uvStride;
+                    int d = m.mBase + tx * m.mDx + y * m.mDy;
+                    for (int x = tx; x < txEnd; x += 2) {
+                        final int c = chromaRow + (x >> 1) * uvPixelStride;
+                        final int u = src[uOffset + c] & 0xFF;
+                        final int v = src[vOffset + c] & 0xFF;
+                        final int rv = RV_TABLE[v];
+                        final int guv = GU_TABLE[u] + GV_TABLE[v];
+                        final int bu = BU_TABLE[u];
+                        write(Y_TABLE[src[row0 + x] & 0xFF], rv, guv, bu, d, argb, rgb);
+                        write(Y_TABLE[src[row0 + x + 1] & 0xFF], rv, guv, bu, d + m.mDx,
+                                argb, rgb);
+                        write(Y_TABLE[src[row1 + x] & 0xFF], rv, guv, bu, d + m.mDy, argb,
+                                rgb);
+                        write(Y_TABLE[src[row1 + x + 1] & 0xFF], rv, guv, bu,
+                                d + m.mDx + m.mDy, argb, rgb);
+                        d += 2 * m.mDx;
+                    }
+                }
+            }
+        }
+    }
+
+    private static void write(int y, int rv, int guv, int bu, int index, int[] argb, byte[] rgb) {
+        int r = (y + rv) >> 10;
+        int g = (y - guv) >> 10;
+        int b = (y + bu) >> 10;
+        r = r < 0 ? 0 : r > 255 ? 255 : r;
+        g = g < 0 ? 0 : g > 255 ? 255 : g;
+        b = b < 0 ? 0 : b > 255 ? 255 : b;
+        if (argb != null) {
+            argb[index] = 0xFF000000 | (r << 16) | (g << 8) | b;
+        } else {
+            final int o = 3 * index;
+            rgb[o] = (byte) r;
+            rgb[o + 1] = (byte) g;
+            rgb[o + 2] = (byte) b;
+        }
+    }
+
+}
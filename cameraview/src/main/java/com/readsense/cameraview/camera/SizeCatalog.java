@@ -0,0 +1,238 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.readsense.cameraview.camera;
+
+import java.util.Arrays;
+
+/**
+ * The sizes supported by one camera output, grouped by exact aspect ratio.
+ *
+ * <p>Sizes are packed into {@code long}s ({@code width << 32 | height}) and kept in one sorted
+ * primitive array per ratio, so lookups neither box nor allocate. Ratios are reduced once while
+ * building and then identified by an index, the ratio id. Since all sizes of a ratio are
+ * proportional, "the smallest size at least W x H" is a binary search over the widths.</p>
+ *
+ * <p>Instances are immutable and can be shared by any number of threads.</p>
+ */
+final class SizeCatalog {
+
+    /** Returned by the lookups when there is no such size or ratio. */
+    static final long NONE = -1;
+
+    /** Reduced ratios packed like sizes, ascending; the index is the ratio id. */
+    private final long[] mRatios;
+
+    /** The sizes of each ratio, ascending by width and thus by area. */
+    private final long[][] mSizes;
+
+    private SizeCatalog(long[] ratios, long[][] sizes) {
+        mRatios = ratios;
+        mSizes = sizes;
+    }
+
+    static long pack(int width, int height) {
+        return ((long) width << 32) | (height & 0xFFFFFFFFL);
+    }
+
+    static int width(long size) {
+        return (int) (size >>> 32);
+    }
+
+    static int height(long size) {
+        return (int) size;
+    }
+
+    /**
+     * @param sizes Packed sizes in any order; duplicates and empty sizes are dropped.
+     */
+    static SizeCatalog of(long[] sizes) {
+        int count = 0;
+        final long[] valid = new long[sizes.length];
+        final long[] keys = new long[sizes.length];
+        for (long size : sizes) {
+            final int width = width(size);
+            final int height = height(size);
+            if (width > 0 && height > 0) {
+                final int gcd = gcd(width, height);
+                keys[count] = pack(width / gcd, height / gcd);
+                valid[count] = size;
+                count++;
+            }
+        }
+        final long[] ratios = unique(Arrays.copyOf(keys, count));
+        final int[] counts = new int[ratios.length];
+        for (int i = 0; i < count; i++) {
+            counts[Arrays.binarySearch(ratios, keys[i])]++;
+        }
+        final long[][] groups = new long[ratios.length][];
+        for (int i = 0; i < ratios.length; i++) {
+            groups[i] = new long[counts[i]];
+            counts[i] = 0;
+        }
+        for (int i = 0; i < count; i++) {
+            final int id = Arrays.binarySearch(ratios, keys[i]);
+            groups[id][counts[id]++] = valid[i];
+        }
+        for (int i = 0; i < groups.length; i++) {
+            groups[i] = unique(groups[i]);
+        }
+        return new SizeCatalog(ratios, groups);
+    }
+
+    int getRatioCount() {
+        return mRatios.length;
+    }
+
+    /**
+     * @return The width to height ratio of {@code ratioId}.
+     */
+    float getRatio(int ratioId) {
+        final long ratio = mRatios[ratioId];
+        return (float) width(ratio) / height(ratio);
+    }
+
+    /**
+     * @return The id of the ratio of {@code width} x {@code height}, or -1 if no size has it.
+     */
+    int findRatio(int width, int height) {
+        if (width <= 0 || height <= 0) {
+            return -1;
+        }
+        final int gcd = gcd(width, height);
+        final int id = Arrays.binarySearch(mRatios, pack(width / gcd, height / gcd));
+        return id >= 0 ? id : -1;
+    }
+
+    /**
+     * @return Whether the catalog holds exactly {@code width} x {@code height}.
+     */
+    boolean contains(int width, int height) {
+        final int ratioId = findRatio(width, height);
+        return ratioId >= 0 && Arrays.binarySearch(mSizes[ratioId], pack(width, height)) >= 0;
+    }
+
+    int getSizeCount(int ratioId) {
+        return mSizes[ratioId].length;
+    }
+
+    /**
+     * @return The packed size at {@code index}, counted from the smallest.
+     */
+    long getSize(int ratioId, int index) {
+        return mSizes[ratioId][index];
+    }
+
+    /**
+     * @return All packed sizes in ascending order.
+     */
+    long[] toArray() {
+        int count = 0;
+        for (long[] sizes : mSizes) {
+            count += sizes.length;
+        }
+        final long[] all = new long[count];
+        int offset = 0;
+        for (long[] sizes : mSizes) {
+            System.arraycopy(sizes, 0, all, offset, sizes.length);
+            offset += sizes.length;
+        }
+        Arrays.sort(all);
+        return all;
+    }
+
+    /**
+     * @return The size with the most pixels of any ratio, or {@link #NONE} if there is none.
+     */
+    long getLargest() {
+        long largest = NONE;
+        long largestArea = 0;
+        for (long[] sizes : mSizes) {
+            final long size = sizes[sizes.length - 1];
+            final long area = (long) width(size) * height(size);
+            if (area > largestArea) {
+                largest = size;
+                largestArea = area;
+            }
+        }
+        return largest;
+    }
+
+    /**
+     * @return The index of the smallest size of {@code ratioId} that is at least {@code width} x
+     * {@code height}, or -1 if even the largest is too small.
+     */
+    int indexOfAtLeast(int ratioId, int width, int height) {
+        final long ratio = mRatios[ratioId];
+        final long x = width(ratio);
+        final long y = height(ratio);
+        // Within a ratio, height >= H exactly when width >= ceil(H * x / y)
+        final long minWidth = Math.max(width, (height * x + y - 1) / y);
+        if (minWidth > Integer.MAX_VALUE) {
+            return -1;
+        }
+        final long[] sizes = mSizes[ratioId];
+        int index = Arrays.binarySearch(sizes, pack((int) minWidth, 0));
+        if (index < 0) {
+            index = -index - 1;
+        }
+        return index < sizes.length ? index : -1;
+    }
+
+    /**
+     * @return The smallest packed size of {@code ratioId} that is at least {@code width} x
+     * {@code height}, or {@link #NONE}.
+     */
+    long smallestAtLeast(int ratioId, int width, int height) {
+        final int index = indexOfAtLeast(ratioId, width, height);
+        return index >= 0 ? mSizes[ratioId][index] : NONE;
+    }
+
+    /**
+     * @return The largest packed size of {@code ratioId} that is at most {@code width} x
+     * {@code height}, or {@link #NONE}.
+     */
+    long largestAtMost(int ratioId, int width, int height) {
+        final long[] sizes = mSizes[ratioId];
+        for (int i = sizes.length - 1; i >= 0; i--) {
+            if (width(sizes[i]) <= width && height(sizes[i]) <= height) {
+                return sizes[i];
+            }
+        }
+        return NONE;
+    }
+
+    private static long[] unique(long[] values) {
+        Arrays.sort(values);
+        int count = 0;
+        for (int i = 0; i < values.length; i++) {
+            if (i == 0 || values[i] != values[count - 1]) {
+                values[count++] = values[i];
+            }
+        }
+        return count == values.length ? values : Arrays.copyOf(values, count);
+    }
+
+    private static int gcd(int a, int b) {
+        while (b != 0) {
+            int c = b;
+            b = a % b;
+            a = c;
+        }
+        return a;
+    }
+
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.readsense.cameraview.camera;
+
+import java.util.Arrays;
+
+/**
+ * The maximum frame rate of every size of one output, looked up by binary search over the packed
+ * sizes.
+ *
+ * <p>Instances are immutable and can be shared by any number of threads.</p>
+ */
+final class SizeRates implements PreviewSizeSelector.FrameRates {
+
+    private final long[] mSizes;
+
+    private final int[] mMaxFps;
+
+    /**
+     * @param sizes  Packed sizes in ascending order, as returned by {@link SizeCatalog#toArray()}.
+     * @param maxFps The maximum frame rate of each size, 0 if unknown.
+     */
+    SizeRates(long[] sizes, int[] maxFps) {
+        if (sizes.length != maxFps.length) {
+            throw new IllegalArgumentException(
+                    "Size and rate counts differ: " + sizes.length + " != " + maxFps.length);
+        }
+        mSizes = sizes;
+        mMaxFps = maxFps;
+    }
+
+    int getCount() {
+        return mSizes.length;
+    }
+
+    long getSize(int index) {
+        return mSizes[index];
+    }
+
+    int getMaxFps(int index) {
+        return mMaxFps[index];
+    }
+
+    @Override
+    public int getMaxFps(int width, int height) {
+        final int index = Arrays.binarySearch(mSizes, SizeCatalog.pack(width, height));
+        return index >= 0 ? mMaxFps[index] : 0;
+    }
+
+}
@@ -113,6 +113,7 @@ class TextureViewPreview extends PreviewImpl {
      * the surface size.
      */
     void configureTransform() {
+        final boolean traced = CameraTrace.begin("CameraView.configureTransform");
         Matrix matrix = new Matrix();
         if (mDisplayOrientation % 180 == 90) {
             final int width = getWidth();
@@ -145,6 +146,7 @@ class TextureViewPreview extends PreviewImpl {
             matrix.postRotate(180, getWidth() / 2, getHeight() / 2);
         }
         mTextureView.setTransform(matrix);
+        CameraTrace.end(traced);
     }
 
 
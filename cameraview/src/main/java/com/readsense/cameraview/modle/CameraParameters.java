@@ -2,12 +2,27 @@ package com.readsense.cameraview.modle;
 
 import android.view.Gravity;
 
+import com.readsense.cameraview.camera.AspectRatio;
 import com.readsense.cameraview.camera.Size;
 
 public class CameraParameters {
     public static final int FACING_BACK = 0;  //后摄像头
     public static final int FACING_FRONT = 1; //前摄像头
 
+    public static final int DISPATCH_INLINE = 0; //在相机回调线程直接执行回调
+    public static final int DISPATCH_KEEP_LATEST = 1; //只保留最新一帧，旧帧丢弃
+    public static final int DISPATCH_BOUNDED_QUEUE = 2; //最多排队 N 帧，满了丢弃最旧的帧
+    public static final int DISPATCH_BLOCK_PRODUCER = 3; //最多排队 N 帧，满了阻塞相机回调线程
+
+    public static final int STILL_NONE = 0; //不开启拍照流
+    public static final int STILL_JPEG = 1; //拍照流输出 JPEG
+    public static final int STILL_YUV = 2; //拍照流输出 YUV（FULL 以下最大 1080p），回调为 NV21
+
+    public static final int FPS_DEFAULT = 0; //使用设备默认的帧率范围
+    public static final int FPS_FIXED = 1; //固定帧率，例如固定 30
+    public static final int FPS_PREFER = 2; //尽量达到该帧率，暗光下允许降帧
+    public static final int FPS_MIN = 3; //帧率不低于该值
+
     public float mScale = -1; //预览缩放比例
     public Size mCameraSize;//摄像头分辨率
     public int CameraId = 0;
@@ -16,6 +31,17 @@ public class CameraParameters {
     public boolean mAdjustVertical = false;
     public int mDisplayOrientation = 0;//预览方向
     public int gravity = Gravity.CENTER;//位置
+    public int mPreviewBufferCount = 0;//预览回调缓冲区个数，0 表示不使用缓冲
+    public int mDispatchPolicy = DISPATCH_INLINE;//预览帧分发策略
+    public int mDispatchQueueSize = 3;//分发队列长度
+    public boolean mUprightFrames = false;//是否把预览帧旋转/镜像成与预览一致的方向
+    public boolean mParallelKernels = false;//图像处理是否使用多线程
+    public AspectRatio mAspectRatio;//期望的预览宽高比（传感器方向），为空时按预览控件的比例
+    public Size mAnalysisSize;//图像分析需要的最小分辨率（传感器方向），为空时按预览控件大小
+    public int mTargetFps = 0;//目标帧率，0 表示不限制
+    public int mStillCapture = STILL_NONE;//拍照流格式，仅 Camera2
+    public int mFpsMode = FPS_DEFAULT;//帧率范围策略
+    public int mFps = 0;//帧率范围策略对应的帧率
 
     public void init(CameraParameters cameraParameters) {
         this.setmScale(cameraParameters.mScale);
@@ -25,6 +51,15 @@ public class CameraParameters {
         this.setmAdjustViewBounds(cameraParameters.mAdjustViewBounds);
         this.setmPreviewSize(cameraParameters.mPreviewSize);
         this.setmCameraSize(cameraParameters.mCameraSize);
+        this.setmPreviewBufferCount(cameraParameters.mPreviewBufferCount);
+        this.setmDispatchPolicy(cameraParameters.mDispatchPolicy, cameraParameters.mDispatchQueueSize);
+        this.setmUprightFrames(cameraParameters.mUprightFrames);
+        this.setmParallelKernels(cameraParameters.mParallelKernels);
+        this.setmAspectRatio(cameraParameters.mAspectRatio);
+        this.setmAnalysisSize(cameraParameters.mAnalysisSize);
+        this.setmTargetFps(cameraParameters.mTargetFps);
+        this.setmStillCapture(cameraParameters.mStillCapture);
+        this.setmFpsRange(cameraParameters.mFpsMode, cameraParameters.mFps);
     }
 
     public CameraParameters setmScale(float mScale) {
@@ -75,6 +110,116 @@ public class CameraParameters {
         return this;
     }
 
+    /**
+     * 使用 {@code setPreviewCallbackWithBuffer} 复用的预览缓冲区个数，一般 2~4 个即可。
+     * 开启后 {@link com.readsense.cameraview.camera.CameraView.Callback#onPreviewFrame} 返回后
+     * 数据会被相机复用，不要在回调之外持有该数组。
+     */
+    public CameraParameters setmPreviewBufferCount(int count) {
+        if (count >= 0)
+            this.mPreviewBufferCount = count;
+        return this;
+    }
+
+    /**
+     * 设置预览帧分发策略。除 {@link #DISPATCH_INLINE} 外，回调都在独立的分发线程执行，
+     * 处理慢时按策略丢帧或阻塞，可通过 CameraView#getDroppedFrameCount() 查看丢帧数。
+     * 使用预览缓冲区时，缓冲区个数应大于队列长度，否则相机会因拿不到缓冲区而降帧。
+     *
+     * @param policy    DISPATCH_* 之一
+     * @param queueSize 队列长度，{@link #DISPATCH_KEEP_LATEST} 固定为 1
+     */
+    public CameraParameters setmDispatchPolicy(int policy, int queueSize) {
+        this.mDispatchPolicy = policy;
+        if (queueSize > 0)
+            this.mDispatchQueueSize = queueSize;
+        return this;
+    }
+
+    /**
+     * 按相机安装角度、前后摄和 displayOrientation 自动旋转（前摄同时镜像）预览帧，
+     * 回调收到的是与屏幕预览方向一致的 NV21 数据，Frame#getRotation() 为 0。
+     * 会多一次整帧拷贝，只在需要正向图像时开启。
+     */
+    public CameraParameters setmUprightFrames(boolean uprightFrames) {
+        this.mUprightFrames = uprightFrames;
+        return this;
+    }
+
+    /**
+     * 旋转等图像处理按行分块交给多个线程并行执行，适合高分辨率预览。
+     */
+    public CameraParameters setmParallelKernels(boolean parallelKernels) {
+        this.mParallelKernels = parallelKernels;
+        return this;
+    }
+
+    /**
+     * 期望的预览宽高比，按传感器方向（横向）填写，例如 4:3、16:9。
+     * 未设置 mCameraSize 时，在该比例下自动选择满足需求的最小分辨率。
+     */
+    public CameraParameters setmAspectRatio(AspectRatio aspectRatio) {
+        if (null != aspectRatio)
+            this.mAspectRatio = aspectRatio;
+        return this;
+    }
+
+    /**
+     * 图像分析需要的最小分辨率（横向），例如人脸检测用 640x480。
+     * 设置后自动选择不小于该分辨率的最小预览尺寸，而不是按预览控件大小选择。
+     * 使用 Camera2 时分析流与预览流分开，只有分析流按该分辨率选择，预览仍按控件大小。
+     */
+    public CameraParameters setmAnalysisSize(Size analysisSize) {
+        if (null != analysisSize)
+            this.mAnalysisSize = analysisSize;
+        return this;
+    }
+
+    public CameraParameters setmAnalysisSize(int w, int h) {
+        if (w > 0 && h > 0)
+            this.mAnalysisSize = new Size(w, h);
+        return this;
+    }
+
+    /**
+     * 目标帧率，自动选择预览尺寸时跳过达不到该帧率的分辨率
+     */
+    public CameraParameters setmTargetFps(int fps) {
+        if (fps >= 0)
+            this.mTargetFps = fps;
+        return this;
+    }
+
+    /**
+     * 在预览会话中同时配置拍照流（仅 Camera2），之后可用 CameraView#takePicture 拍照，
+     * 不需要停止预览或重新配置会话。拍照流使用与分析流同比例的最大分辨率，
+     * 全尺寸 YUV 需要 FULL 级别的设备，低于 FULL 时 YUV 拍照流最大为 1920x1080。
+     * 设备不支持所配置的流组合时，启动失败并回调 onStartFailed。
+     *
+     * @param still STILL_* 之一
+     */
+    public CameraParameters setmStillCapture(int still) {
+        if (still >= STILL_NONE && still <= STILL_YUV)
+            this.mStillCapture = still;
+        return this;
+    }
+
+    /**
+     * 设置帧率范围策略，从设备支持的帧率范围中选择最接近的一个，
+     * 实际生效的范围可通过 CameraView#getFpsRange() 获取。
+     * 未单独设置 mTargetFps 时，自动选择预览尺寸也按该帧率过滤。
+     *
+     * @param mode FPS_* 之一
+     * @param fps  例如 FPS_FIXED 与 30 表示固定 30 帧
+     */
+    public CameraParameters setmFpsRange(int mode, int fps) {
+        if (mode >= FPS_DEFAULT && mode <= FPS_MIN && fps >= 0) {
+            this.mFpsMode = mode;
+            this.mFps = fps;
+        }
+        return this;
+    }
+
     public CameraParameters setDisplayOrientation(int displayOrientation) {
         mDisplayOrientation = displayOrientation;
         return this;
@@ -0,0 +1,77 @@
+package com.readsense.cameraview.camera;
+
+import com.readsense.cameraview.modle.CameraParameters;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Picks fps ranges for each policy from the same list, once in Camera2 units and once scaled by
+ * 1000 as Camera1 reports them.
+ */
+public class FpsRangeSelectorTest {
+
+    private static final int[][] RANGES = {
+            {15, 15}, {7, 30}, {30, 30}, {15, 30}, {24, 24},
+    };
+
+    @Test
+    public void defaultKeepsTheDevice() {
+        assertEquals(-1, select(RANGES, 1, CameraParameters.FPS_DEFAULT, 30));
+        assertEquals(-1, select(RANGES, 1, CameraParameters.FPS_FIXED, 0));
+        assertEquals(-1, select(null, 1, CameraParameters.FPS_FIXED, 30));
+    }
+
+    @Test
+    public void fixedPrefersTheSteadiestRange() {
+        assertRange(30, 30, CameraParameters.FPS_FIXED, 30);
+        assertRange(24, 24, CameraParameters.FPS_FIXED, 24);
+        // 24 is nearer to 25 than 30 is
+        assertRange(24, 24, CameraParameters.FPS_FIXED, 25);
+    }
+
+    @Test
+    public void preferLeavesRoomForExposure() {
+        assertRange(7, 30, CameraParameters.FPS_PREFER, 30);
+        assertRange(15, 15, CameraParameters.FPS_PREFER, 15);
+    }
+
+    @Test
+    public void minTakesTheLowestMinimumReachingFps() {
+        assertRange(15, 30, CameraParameters.FPS_MIN, 15);
+        assertRange(24, 24, CameraParameters.FPS_MIN, 20);
+        // Nothing reaches 60, so the highest minimum wins
+        assertRange(30, 30, CameraParameters.FPS_MIN, 60);
+    }
+
+    @Test
+    public void equalDistanceFavoursTheHigherRate() {
+        int[][] ranges = {{24, 24}, {30, 30}};
+        assertEquals(1, select(ranges, 1, CameraParameters.FPS_FIXED, 27));
+    }
+
+    @Test
+    public void camera1ScaleRoundsToWholeFrames() {
+        int[][] ranges = {{14985, 30000}, {7000, 15000}};
+        assertEquals(0, select(ranges, 1000, CameraParameters.FPS_MIN, 15));
+        assertEquals(1, select(ranges, 1000, CameraParameters.FPS_FIXED, 15));
+    }
+
+    private static void assertRange(int min, int max, int mode, int fps) {
+        int index = select(RANGES, 1, mode, fps);
+        assertEquals(min, RANGES[index][0]);
+        assertEquals(max, RANGES[index][1]);
+        // Camera1 reports the same ranges in frames per 1000 seconds
+        int[][] scaled = new int[RANGES.length][];
+        for (int i = 0; i < RANGES.length; i++) {
+            scaled[i] = new int[]{RANGES[i][0] * 1000, RANGES[i][1] * 1000};
+        }
+        assertEquals(index, select(scaled, 1000, mode, fps));
+    }
+
+    private static int select(int[][] ranges, int scale, int mode, int fps) {
+        return FpsRangeSelector.select(ranges, scale, mode, fps);
+    }
+
+}
@@ -0,0 +1,106 @@
+package com.readsense.cameraview.camera;
+
+import android.hardware.Camera;
+import android.media.Image;
+
+import com.readsense.cameraview.modle.CameraParameters;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Dispatches frames to a consumer on a caller-supplied executor that runs tasks inline, so that
+ * every step happens on the test thread.
+ */
+public class FrameDispatcherTest {
+
+    private final List<byte[]> mReleased = new ArrayList<>();
+
+    private final List<byte[]> mConsumed = new ArrayList<>();
+
+    private final FramePool mPool = new FramePool(new FramePool.BufferReleaser() {
+        @Override
+        public void releaseBuffer(byte[] data) {
+            mReleased.add(data);
+        }
+
+        @Override
+        public void releaseImage(Image image) {
+        }
+    });
+
+    private final FrameDispatcher.Consumer mConsumer = new FrameDispatcher.Consumer() {
+        @Override
+        public void onFrame(Frame frame) {
+            mConsumed.add(frame.getData());
+        }
+    };
+
+    /** Runs tasks inline, or rejects them like a saturated or shut down executor. */
+    private static class SwitchableExecutor implements Executor {
+
+        boolean mRejecting;
+
+        @Override
+        public void execute(Runnable command) {
+            if (mRejecting) {
+                throw new RejectedExecutionException();
+            }
+            command.run();
+        }
+
+    }
+
+    @Test
+    public void deliversOnTheExecutor() {
+        FrameDispatcher dispatcher = new FrameDispatcher(CameraParameters.DISPATCH_BOUNDED_QUEUE,
+                2, new SwitchableExecutor(), mConsumer);
+        byte[] data = new byte[1];
+        dispatcher.dispatch(mPool.obtain(data, (Camera) null));
+        assertEquals(1, mConsumed.size());
+        assertSame(data, mConsumed.get(0));
+        assertEquals(1, mReleased.size());
+        assertEquals(1, dispatcher.getDeliveredCount());
+    }
+
+    @Test
+    public void recoversAfterTheExecutorRejected() {
+        SwitchableExecutor executor = new SwitchableExecutor();
+        FrameDispatcher dispatcher = new FrameDispatcher(CameraParameters.DISPATCH_KEEP_LATEST,
+                1, executor, mConsumer);
+        executor.mRejecting = true;
+        byte[] rejected = new byte[1];
+        dispatcher.dispatch(mPool.obtain(rejected, (Camera) null));
+        // The frame is dropped and its buffer goes back to the camera
+        assertEquals(0, mConsumed.size());
+        assertEquals(1, dispatcher.getDroppedCount());
+        assertSame(rejected, mReleased.get(0));
+
+        executor.mRejecting = false;
+        byte[] accepted = new byte[1];
+        dispatcher.dispatch(mPool.obtain(accepted, (Camera) null));
+        assertEquals(1, mConsumed.size());
+        assertSame(accepted, mConsumed.get(0));
+        assertEquals(1, dispatcher.getDeliveredCount());
+        assertEquals(2, mReleased.size());
+    }
+
+    @Test
+    public void closedDispatcherReleasesRightAway() {
+        FrameDispatcher dispatcher = new FrameDispatcher(CameraParameters.DISPATCH_BOUNDED_QUEUE,
+                2, new SwitchableExecutor(), mConsumer);
+        dispatcher.close();
+        dispatcher.dispatch(mPool.obtain(new byte[1], (Camera) null));
+        assertEquals(0, mConsumed.size());
+        assertEquals(1, mReleased.size());
+        assertEquals(1, dispatcher.getDroppedCount());
+    }
+
+}
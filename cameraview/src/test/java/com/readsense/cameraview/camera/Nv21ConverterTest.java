@@ -0,0 +1,171 @@
+package com.readsense.cameraview.camera;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Converts synthetic YUV_420_888 planes in the layouts Camera2 devices produce and compares the
+ * result with NV21 built directly from the same samples.
+ */
+public class Nv21ConverterTest {
+
+    private static final int WIDTH = 16;
+    private static final int HEIGHT = 6;
+    private static final int CHROMA_WIDTH = WIDTH / 2;
+    private static final int CHROMA_HEIGHT = HEIGHT / 2;
+
+    private final byte[] mY = new byte[WIDTH * HEIGHT];
+    private final byte[] mU = new byte[CHROMA_WIDTH * CHROMA_HEIGHT];
+    private final byte[] mV = new byte[CHROMA_WIDTH * CHROMA_HEIGHT];
+
+    public Nv21ConverterTest() {
+        Random random = new Random(42);
+        random.nextBytes(mY);
+        random.nextBytes(mU);
+        random.nextBytes(mV);
+    }
+
+    @Test
+    public void nv21Size() {
+        assertEquals(1920 * 1080 * 3 / 2, Nv21Converter.getNv21Size(1920, 1080));
+        assertEquals(3 * 3 + 2 * 2 * 2, Nv21Converter.getNv21Size(3, 3));
+    }
+
+    @Test
+    public void packedPlanar() {
+        assertConverts(luma(WIDTH), planar(mU, CHROMA_WIDTH), planar(mV, CHROMA_WIDTH),
+                WIDTH, CHROMA_WIDTH, 1);
+    }
+
+    @Test
+    public void paddedPlanar() {
+        assertConverts(luma(WIDTH + 8), planar(mU, CHROMA_WIDTH + 4),
+                planar(mV, CHROMA_WIDTH + 4), WIDTH + 8, CHROMA_WIDTH + 4, 1);
+    }
+
+    @Test
+    public void interleavedVu() {
+        ByteBuffer vu = interleaved(mV, mU, WIDTH);
+        assertConverts(luma(WIDTH), slice(vu, 1, vu.capacity() - 1),
+                slice(vu, 0, vu.capacity() - 1), WIDTH, WIDTH, 2);
+    }
+
+    @Test
+    public void paddedInterleavedVu() {
+        ByteBuffer vu = interleaved(mV, mU, WIDTH + 16);
+        assertConverts(luma(WIDTH + 16), slice(vu, 1, vu.capacity() - 1),
+                slice(vu, 0, vu.capacity() - 1), WIDTH + 16, WIDTH + 16, 2);
+    }
+
+    @Test
+    public void interleavedUv() {
+        ByteBuffer uv = interleaved(mU, mV, WIDTH);
+        assertConverts(luma(WIDTH), slice(uv, 0, uv.capacity() - 1),
+                slice(uv, 1, uv.capacity() - 1), WIDTH, WIDTH, 2);
+    }
+
+    @Test
+    public void separateInterleavedPlanes() {
+        // Pixel stride 2 without shared memory, as some HALs deliver
+        assertConverts(luma(WIDTH), strided(mU), strided(mV), WIDTH, WIDTH, 2);
+    }
+
+    @Test
+    public void readOnlyInterleavedVu() {
+        // The planes belong to the camera and may be read by other consumers at the same time
+        ByteBuffer vu = interleaved(mV, mU, WIDTH).asReadOnlyBuffer();
+        assertConverts(luma(WIDTH).asReadOnlyBuffer(), slice(vu, 1, vu.capacity() - 1),
+                slice(vu, 0, vu.capacity() - 1), WIDTH, WIDTH, 2);
+    }
+
+    @Test
+    public void positionsAreRestored() {
+        ByteBuffer y = luma(WIDTH);
+        ByteBuffer u = planar(mU, CHROMA_WIDTH);
+        ByteBuffer v = planar(mV, CHROMA_WIDTH);
+        Nv21Converter.convert(y, WIDTH, u, v, CHROMA_WIDTH, 1, WIDTH, HEIGHT,
+                new byte[Nv21Converter.getNv21Size(WIDTH, HEIGHT)]);
+        assertEquals(0, y.position());
+        assertEquals(0, u.position());
+        assertEquals(0, v.position());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void outputTooSmall() {
+        Nv21Converter.convert(luma(WIDTH), WIDTH, planar(mU, CHROMA_WIDTH),
+                planar(mV, CHROMA_WIDTH), CHROMA_WIDTH, 1, WIDTH, HEIGHT, new byte[WIDTH]);
+    }
+
+    private void assertConverts(ByteBuffer y, ByteBuffer u, ByteBuffer v, int yRowStride,
+            int uvRowStride, int uvPixelStride) {
+        byte[] out = new byte[Nv21Converter.getNv21Size(WIDTH, HEIGHT)];
+        Nv21Converter.convert(y, yRowStride, u, v, uvRowStride, uvPixelStride, WIDTH, HEIGHT, out);
+        assertArrayEquals(expectedNv21(), out);
+    }
+
+    private byte[] expectedNv21() {
+        byte[] nv21 = new byte[Nv21Converter.getNv21Size(WIDTH, HEIGHT)];
+        System.arraycopy(mY, 0, nv21, 0, mY.length);
+        for (int i = 0; i < mU.length; i++) {
+            nv21[mY.length + 2 * i] = mV[i];
+            nv21[mY.length + 2 * i + 1] = mU[i];
+        }
+        return nv21;
+    }
+
+    private ByteBuffer luma(int rowStride) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(rowStride * (HEIGHT - 1) + WIDTH);
+        for (int row = 0; row < HEIGHT; row++) {
+            buffer.position(row * rowStride);
+            buffer.put(mY, row * WIDTH, WIDTH);
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    private static ByteBuffer planar(byte[] samples, int rowStride) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(rowStride * (CHROMA_HEIGHT - 1)
+                + CHROMA_WIDTH);
+        for (int row = 0; row < CHROMA_HEIGHT; row++) {
+            buffer.position(row * rowStride);
+            buffer.put(samples, row * CHROMA_WIDTH, CHROMA_WIDTH);
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * @return One buffer holding {@code first} and {@code second} interleaved, row by row.
+     */
+    private static ByteBuffer interleaved(byte[] first, byte[] second, int rowStride) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(rowStride * CHROMA_HEIGHT);
+        for (int row = 0; row < CHROMA_HEIGHT; row++) {
+            for (int i = 0; i < CHROMA_WIDTH; i++) {
+                buffer.put(row * rowStride + 2 * i, first[row * CHROMA_WIDTH + i]);
+                buffer.put(row * rowStride + 2 * i + 1, second[row * CHROMA_WIDTH + i]);
+            }
+        }
+        return buffer;
+    }
+
+    private static ByteBuffer strided(byte[] samples) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(WIDTH * CHROMA_HEIGHT - 1);
+        for (int i = 0; i < samples.length; i++) {
+            buffer.put(2 * i, samples[i]);
+        }
+        return buffer;
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, int offset, int length) {
+        ByteBuffer copy = buffer.duplicate();
+        copy.position(offset);
+        copy.limit(offset + length);
+        return copy.slice();
+    }
+
+}
@@ -0,0 +1,144 @@
+package com.readsense.cameraview.camera;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Rotates random NV21 images and compares the result with a per-pixel reference that maps every
+ * sample on its own.
+ */
+public class Nv21RotatorTest {
+
+    private static final int[] ROTATIONS = {0, 90, 180, 270};
+
+    /** Not a multiple of the tile size, so that partial tiles are covered too. */
+    private static final int WIDTH = 70;
+
+    private static final int HEIGHT = 38;
+
+    private final byte[] mNv21 = new byte[WIDTH * HEIGHT * 3 / 2];
+
+    public Nv21RotatorTest() {
+        new Random(42).nextBytes(mNv21);
+    }
+
+    @Test
+    public void rotatedSize() {
+        assertEquals(640, Nv21Rotator.getRotatedWidth(640, 480, 180));
+        assertEquals(480, Nv21Rotator.getRotatedWidth(640, 480, 90));
+        assertEquals(640, Nv21Rotator.getRotatedHeight(640, 480, 270));
+        assertEquals(480, Nv21Rotator.getRotatedHeight(640, 480, 0));
+    }
+
+    @Test
+    public void rotate90IsClockwise() {
+        // 4x2 luma and 2x1 VU pairs, which become a single column
+        byte[] src = {0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11};
+        byte[] dst = new byte[src.length];
+        Nv21Rotator.rotate(src, 4, 2, 90, false, dst);
+        assertArrayEquals(new byte[]{4, 0, 5, 1, 6, 2, 7, 3, 8, 9, 10, 11}, dst);
+        Nv21Rotator.rotate(src, 4, 2, 90, true, dst);
+        assertArrayEquals(new byte[]{0, 4, 1, 5, 2, 6, 3, 7, 8, 9, 10, 11}, dst);
+    }
+
+    @Test
+    public void allRotations() {
+        for (int rotation : ROTATIONS) {
+            assertRotates(rotation, false, false);
+            assertRotates(rotation, true, false);
+        }
+    }
+
+    @Test
+    public void allRotationsParallel() {
+        for (int rotation : ROTATIONS) {
+            assertRotates(rotation, false, true);
+            assertRotates(rotation, true, true);
+        }
+    }
+
+    @Test
+    public void rotateGrayWithRowPadding() {
+        final int rowStride = WIDTH + 10;
+        final int offset = 3;
+        byte[] src = new byte[offset + rowStride * HEIGHT];
+        for (int y = 0; y < HEIGHT; y++) {
+            System.arraycopy(mNv21, y * WIDTH, src, offset + y * rowStride, WIDTH);
+        }
+        for (int rotation : ROTATIONS) {
+            for (boolean mirror : new boolean[]{false, true}) {
+                byte[] dst = new byte[WIDTH * HEIGHT];
+                Nv21Rotator.rotateGray(src, offset, rowStride, WIDTH, HEIGHT, rotation, mirror,
+                        dst, false);
+                byte[] expected = new byte[WIDTH * HEIGHT];
+                rotatePlane(mNv21, 0, WIDTH, HEIGHT, 1, rotation, mirror, expected, 0);
+                assertArrayEquals(rotation + (mirror ? " mirrored" : ""), expected, dst);
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unsupportedRotation() {
+        Nv21Rotator.rotate(mNv21, WIDTH, HEIGHT, 45, false, new byte[mNv21.length]);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void oddSize() {
+        Nv21Rotator.rotate(mNv21, WIDTH - 1, HEIGHT, 90, false, new byte[mNv21.length]);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void outputTooSmall() {
+        Nv21Rotator.rotate(mNv21, WIDTH, HEIGHT, 90, false, new byte[WIDTH * HEIGHT]);
+    }
+
+    private void assertRotates(int rotation, boolean mirror, boolean parallel) {
+        byte[] dst = new byte[mNv21.length];
+        Nv21Rotator.rotate(mNv21, WIDTH, HEIGHT, rotation, mirror, dst, parallel);
+        byte[] expected = new byte[mNv21.length];
+        final int lumaSize = WIDTH * HEIGHT;
+        rotatePlane(mNv21, 0, WIDTH, HEIGHT, 1, rotation, mirror, expected, 0);
+        rotatePlane(mNv21, lumaSize, WIDTH / 2, HEIGHT / 2, 2, rotation, mirror, expected,
+                lumaSize);
+        assertArrayEquals(rotation + (mirror ? " mirrored" : ""), expected, dst);
+    }
+
+    /**
+     * Rotates a packed plane of {@code channels} bytes per pixel clockwise, then mirrors it.
+     */
+    private static void rotatePlane(byte[] src, int srcOffset, int width, int height,
+            int channels, int rotation, boolean mirror, byte[] dst, int dstOffset) {
+        final int outWidth = rotation % 180 == 0 ? width : height;
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int outX;
+                int outY;
+                if (rotation == 90) {
+                    outX = height - 1 - y;
+                    outY = x;
+                } else if (rotation == 180) {
+                    outX = width - 1 - x;
+                    outY = height - 1 - y;
+                } else if (rotation == 270) {
+                    outX = y;
+                    outY = width - 1 - x;
+                } else {
+                    outX = x;
+                    outY = y;
+                }
+                if (mirror) {
+                    outX = outWidth - 1 - outX;
+                }
+                for (int c = 0; c < channels; c++) {
+                    dst[dstOffset + (outY * outWidth + outX) * channels + c]
+                            = src[srcOffset + (y * width + x) * channels + c];
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,169 @@
+package com.readsense.cameraview.camera;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Scales random NV21 images by factors whose expected output can be built directly from the
+ * source samples.
+ */
+public class Nv21ScalerTest {
+
+    private static final int WIDTH = 64;
+
+    private static final int HEIGHT = 48;
+
+    private static final int LUMA_SIZE = WIDTH * HEIGHT;
+
+    private final byte[] mNv21 = new byte[LUMA_SIZE * 3 / 2];
+
+    public Nv21ScalerTest() {
+        new Random(42).nextBytes(mNv21);
+    }
+
+    @Test
+    public void outputSize() {
+        assertEquals(320 * 240 * 3 / 2, Nv21Scaler.getOutputSize(320, 240, false));
+        assertEquals(320 * 240, Nv21Scaler.getOutputSize(320, 240, true));
+    }
+
+    @Test
+    public void sameSizeIsACopy() {
+        for (int mode : new int[]{Nv21Scaler.SCALE_NEAREST, Nv21Scaler.SCALE_BILINEAR}) {
+            byte[] dst = new byte[mNv21.length];
+            Nv21Scaler.scale(mNv21, WIDTH, HEIGHT, 0, 0, WIDTH, HEIGHT, dst, WIDTH, HEIGHT, mode,
+                    false, false);
+            assertArrayEquals("mode " + mode, mNv21, dst);
+        }
+    }
+
+    @Test
+    public void cropAtSameScale() {
+        final int left = 8;
+        final int top = 6;
+        final int width = 32;
+        final int height = 20;
+        byte[] dst = new byte[Nv21Scaler.getOutputSize(width, height, false)];
+        Nv21Scaler.scale(mNv21, WIDTH, HEIGHT, left, top, width, height, dst, width, height,
+                Nv21Scaler.SCALE_NEAREST, false, false);
+        byte[] expected = new byte[dst.length];
+        for (int y = 0; y < height; y++) {
+            System.arraycopy(mNv21, (top + y) * WIDTH + left, expected, y * width, width);
+        }
+        for (int y = 0; y < height / 2; y++) {
+            System.arraycopy(mNv21, LUMA_SIZE + (top / 2 + y) * WIDTH + left, expected,
+                    width * height + y * width, width);
+        }
+        assertArrayEquals(expected, dst);
+    }
+
+    @Test
+    public void halveNearestTakesTheLowerRightPixel() {
+        byte[] dst = new byte[Nv21Scaler.getOutputSize(WIDTH / 2, HEIGHT / 2, false)];
+        Nv21Scaler.scale(mNv21, WIDTH, HEIGHT, 0, 0, WIDTH, HEIGHT, dst, WIDTH / 2, HEIGHT / 2,
+                Nv21Scaler.SCALE_NEAREST, false, false);
+        byte[] expected = new byte[dst.length];
+        // Output pixel centers fall on the lower right pixel of each 2x2 block
+        for (int y = 0; y < HEIGHT / 2; y++) {
+            for (int x = 0; x < WIDTH / 2; x++) {
+                expected[y * WIDTH / 2 + x] = mNv21[(2 * y + 1) * WIDTH + 2 * x + 1];
+            }
+        }
+        final int chromaOffset = LUMA_SIZE / 4;
+        for (int y = 0; y < HEIGHT / 4; y++) {
+            for (int x = 0; x < WIDTH / 4; x++) {
+                final int s = LUMA_SIZE + (2 * y + 1) * WIDTH + 2 * (2 * x + 1);
+                final int d = chromaOffset + y * WIDTH / 2 + 2 * x;
+                expected[d] = mNv21[s];
+                expected[d + 1] = mNv21[s + 1];
+            }
+        }
+        assertArrayEquals(expected, dst);
+    }
+
+    @Test
+    public void halveBoxAveragesEachBlock() {
+        byte[] dst = new byte[Nv21Scaler.getOutputSize(WIDTH / 2, HEIGHT / 2, true)];
+        Nv21Scaler.scale(mNv21, WIDTH, HEIGHT, 0, 0, WIDTH, HEIGHT, dst, WIDTH / 2, HEIGHT / 2,
+                Nv21Scaler.SCALE_BOX, true, false);
+        byte[] expected = new byte[dst.length];
+        for (int y = 0; y < HEIGHT / 2; y++) {
+            for (int x = 0; x < WIDTH / 2; x++) {
+                final int s = 2 * y * WIDTH + 2 * x;
+                final int sum = (mNv21[s] & 0xFF) + (mNv21[s + 1] & 0xFF)
+                        + (mNv21[s + WIDTH] & 0xFF) + (mNv21[s + WIDTH + 1] & 0xFF);
+                expected[y * WIDTH / 2 + x] = (byte) ((sum + 2) / 4);
+            }
+        }
+        assertArrayEquals(expected, dst);
+    }
+
+    @Test
+    public void flatImageStaysFlat() {
+        byte[] flat = new byte[mNv21.length];
+        Arrays.fill(flat, (byte) 200);
+        for (int mode : new int[]{Nv21Scaler.SCALE_NEAREST, Nv21Scaler.SCALE_BOX,
+                Nv21Scaler.SCALE_BILINEAR}) {
+            byte[] dst = new byte[Nv21Scaler.getOutputSize(22, 14, false)];
+            Nv21Scaler.scale(flat, WIDTH, HEIGHT, 2, 4, 50, 38, dst, 22, 14, mode, false, false);
+            for (byte value : dst) {
+                assertEquals("mode " + mode, 200, value & 0xFF);
+            }
+        }
+    }
+
+    @Test
+    public void parallelMatchesSerial() {
+        for (int mode : new int[]{Nv21Scaler.SCALE_NEAREST, Nv21Scaler.SCALE_BOX,
+                Nv21Scaler.SCALE_BILINEAR}) {
+            byte[] serial = new byte[Nv21Scaler.getOutputSize(40, 34, false)];
+            byte[] parallel = new byte[serial.length];
+            Nv21Scaler.scale(mNv21, WIDTH, HEIGHT, 4, 2, 56, 44, serial, 40, 34, mode, false,
+                    false);
+            Nv21Scaler.scale(mNv21, WIDTH, HEIGHT, 4, 2, 56, 44, parallel, 40, 34, mode, false,
+                    true);
+            assertArrayEquals("mode " + mode, serial, parallel);
+        }
+    }
+
+    @Test
+    public void scaleGrayMatchesLumaOfScale() {
+        final int rowStride = WIDTH + 12;
+        final int offset = 5;
+        byte[] plane = new byte[offset + rowStride * HEIGHT];
+        for (int y = 0; y < HEIGHT; y++) {
+            System.arraycopy(mNv21, y * WIDTH, plane, offset + y * rowStride, WIDTH);
+        }
+        byte[] gray = new byte[30 * 20];
+        Nv21Scaler.scaleGray(plane, offset, rowStride, 6, 4, 50, 36, gray, 30, 20,
+                Nv21Scaler.SCALE_BILINEAR, false);
+        byte[] luma = new byte[30 * 20];
+        Nv21Scaler.scale(mNv21, WIDTH, HEIGHT, 6, 4, 50, 36, luma, 30, 20,
+                Nv21Scaler.SCALE_BILINEAR, true, false);
+        assertArrayEquals(luma, gray);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void oddRegion() {
+        Nv21Scaler.scale(mNv21, WIDTH, HEIGHT, 1, 0, 32, 24, new byte[mNv21.length], 16, 12,
+                Nv21Scaler.SCALE_NEAREST, false, false);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void regionOutside() {
+        Nv21Scaler.scale(mNv21, WIDTH, HEIGHT, 40, 0, 32, 24, new byte[mNv21.length], 16, 12,
+                Nv21Scaler.SCALE_NEAREST, false, false);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unsupportedMode() {
+        Nv21Scaler.scale(mNv21, WIDTH, HEIGHT, 0, 0, WIDTH, HEIGHT, new byte[mNv21.length],
+                WIDTH, HEIGHT, 7, false, false);
+    }
+
+}
@@ -0,0 +1,104 @@
+package com.readsense.cameraview.camera;
+
+import com.readsense.cameraview.modle.CameraParameters;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Selects preview sizes from a typical phone size list for the requests the view makes.
+ */
+public class PreviewSizeSelectorTest {
+
+    private static final SizeCatalog SIZES = SizeCatalog.of(new long[]{
+            SizeCatalog.pack(320, 240), SizeCatalog.pack(640, 480), SizeCatalog.pack(1280, 960),
+            SizeCatalog.pack(1600, 1200), SizeCatalog.pack(640, 360), SizeCatalog.pack(1280, 720),
+            SizeCatalog.pack(1920, 1088), SizeCatalog.pack(176, 144),
+    });
+
+    /** Only sizes up to 1280x720 stream at 30 fps. */
+    private static final PreviewSizeSelector.FrameRates RATES =
+            new PreviewSizeSelector.FrameRates() {
+                @Override
+                public int getMaxFps(int width, int height) {
+                    return width * height <= 1280 * 720 ? 30 : 15;
+                }
+            };
+
+    @Test
+    public void smallestCoveringTheView() {
+        assertEquals(new Size(1280, 960), select(new CameraParameters(), 1200, 900, false));
+    }
+
+    @Test
+    public void portraitViewIsSwapped() {
+        // 1920x1088 counts as 16:9
+        assertEquals(new Size(1920, 1088), select(new CameraParameters(), 1080, 1920, true));
+        assertEquals(new Size(1280, 720), select(new CameraParameters(), 720, 1280, true));
+    }
+
+    @Test
+    public void analysisSizeOverridesTheView() {
+        CameraParameters parameters = new CameraParameters()
+                .setmAspectRatio(AspectRatio.of(4, 3))
+                .setmAnalysisSize(600, 400);
+        assertEquals(new Size(640, 480), select(parameters, 1080, 1920, true));
+    }
+
+    @Test
+    public void selectForViewIgnoresTheAnalysisSize() {
+        CameraParameters parameters = new CameraParameters().setmAnalysisSize(1600, 1200);
+        assertEquals(new Size(640, 360), PreviewSizeSelector.selectForView(SIZES, parameters,
+                640, 360, false, null));
+    }
+
+    @Test
+    public void defaultsWithoutViewOrAnalysis() {
+        assertEquals(new Size(640, 480), select(new CameraParameters(), 0, 0, false));
+    }
+
+    @Test
+    public void targetFpsSkipsSlowSizes() {
+        CameraParameters parameters = new CameraParameters()
+                .setmAspectRatio(AspectRatio.of(4, 3))
+                .setmAnalysisSize(1200, 900)
+                .setmTargetFps(30);
+        // 1280x960 is too slow, so the largest fast 4:3 size wins
+        assertEquals(new Size(640, 480), select(parameters, 0, 0, false));
+        // Without rates every size is fast enough
+        assertEquals(new Size(1280, 960), PreviewSizeSelector.select(SIZES, parameters, 0, 0,
+                false, null));
+    }
+
+    @Test
+    public void tooLargeFallsBackToTheLargestOfTheRatio() {
+        CameraParameters parameters = new CameraParameters()
+                .setmAspectRatio(AspectRatio.of(16, 9))
+                .setmAnalysisSize(3840, 2160);
+        assertEquals(new Size(1920, 1088), select(parameters, 0, 0, false));
+    }
+
+    @Test
+    public void missingRatioFallsBackToAnyRatio() {
+        CameraParameters parameters = new CameraParameters()
+                .setmAspectRatio(AspectRatio.of(1, 1))
+                .setmAnalysisSize(600, 400);
+        assertEquals(new Size(640, 480), select(parameters, 0, 0, false));
+        parameters.setmAnalysisSize(4000, 3000);
+        assertEquals(new Size(1920, 1088), select(parameters, 0, 0, false));
+    }
+
+    @Test
+    public void emptyCatalog() {
+        assertNull(PreviewSizeSelector.select(SizeCatalog.of(new long[0]),
+                new CameraParameters(), 640, 480, false, null));
+    }
+
+    private static Size select(CameraParameters parameters, int viewWidth, int viewHeight,
+            boolean swap) {
+        return PreviewSizeSelector.select(SIZES, parameters, viewWidth, viewHeight, swap, RATES);
+    }
+
+}
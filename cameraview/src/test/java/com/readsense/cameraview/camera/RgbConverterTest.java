@@ -0,0 +1,166 @@
+package com.readsense.cameraview.camera;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the integer BT.601 limited-range conversion against the floating point matrix and the
+ * standard colour bars, and the fused rotation against {@link Nv21Rotator}.
+ */
+public class RgbConverterTest {
+
+    /** Integer coefficients and rounding may differ this much from the exact matrix. */
+    private static final int TOLERANCE = 2;
+
+    /** Y, U, V and the expected R, G, B of the 100% colour bars. */
+    private static final int[][] COLOUR_BARS = {
+            {16, 128, 128, 0, 0, 0},
+            {235, 128, 128, 255, 255, 255},
+            {126, 128, 128, 128, 128, 128},
+            {81, 90, 240, 255, 0, 0},
+            {145, 54, 34, 0, 255, 0},
+            {41, 240, 110, 0, 0, 255},
+            {210, 16, 146, 255, 255, 0},
+            {170, 166, 16, 0, 255, 255},
+            {106, 202, 222, 255, 0, 255},
+    };
+
+    private static final int WIDTH = 48;
+
+    private static final int HEIGHT = 34;
+
+    private final byte[] mNv21 = new byte[WIDTH * HEIGHT * 3 / 2];
+
+    public RgbConverterTest() {
+        new Random(42).nextBytes(mNv21);
+    }
+
+    @Test
+    public void colourBars() {
+        for (int[] bar : COLOUR_BARS) {
+            // One 2x2 block sharing a single VU pair
+            byte[] nv21 = {(byte) bar[0], (byte) bar[0], (byte) bar[0], (byte) bar[0],
+                    (byte) bar[2], (byte) bar[1]};
+            int[] argb = new int[4];
+            RgbConverter.nv21ToArgb(nv21, 2, 2, 2, 0, false, argb, false);
+            for (int pixel : argb) {
+                assertEquals(0xFF, pixel >>> 24);
+                assertNear(bar[3], (pixel >> 16) & 0xFF);
+                assertNear(bar[4], (pixel >> 8) & 0xFF);
+                assertNear(bar[5], pixel & 0xFF);
+            }
+        }
+    }
+
+    @Test
+    public void matchesFloatMatrix() {
+        int[] argb = new int[WIDTH * HEIGHT];
+        RgbConverter.nv21ToArgb(mNv21, WIDTH, HEIGHT, WIDTH, 0, false, argb, false);
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                final int c = WIDTH * HEIGHT + (y / 2) * WIDTH + (x / 2) * 2;
+                final int[] rgb = bt601(mNv21[y * WIDTH + x] & 0xFF, mNv21[c + 1] & 0xFF,
+                        mNv21[c] & 0xFF);
+                final int pixel = argb[y * WIDTH + x];
+                assertNear(rgb[0], (pixel >> 16) & 0xFF);
+                assertNear(rgb[1], (pixel >> 8) & 0xFF);
+                assertNear(rgb[2], pixel & 0xFF);
+            }
+        }
+    }
+
+    @Test
+    public void rgbMatchesArgb() {
+        int[] argb = new int[WIDTH * HEIGHT];
+        byte[] rgb = new byte[3 * WIDTH * HEIGHT];
+        RgbConverter.nv21ToArgb(mNv21, WIDTH, HEIGHT, WIDTH, 90, true, argb, false);
+        RgbConverter.nv21ToRgb(mNv21, WIDTH, HEIGHT, WIDTH, 90, true, rgb, false);
+        for (int i = 0; i < argb.length; i++) {
+            assertEquals((argb[i] >> 16) & 0xFF, rgb[3 * i] & 0xFF);
+            assertEquals((argb[i] >> 8) & 0xFF, rgb[3 * i + 1] & 0xFF);
+            assertEquals(argb[i] & 0xFF, rgb[3 * i + 2] & 0xFF);
+        }
+    }
+
+    @Test
+    public void rotationMatchesRotator() {
+        byte[] rotated = new byte[mNv21.length];
+        int[] expected = new int[WIDTH * HEIGHT];
+        int[] actual = new int[WIDTH * HEIGHT];
+        for (int rotation : new int[]{0, 90, 180, 270}) {
+            for (boolean mirror : new boolean[]{false, true}) {
+                Nv21Rotator.rotate(mNv21, WIDTH, HEIGHT, rotation, mirror, rotated);
+                final int width = Nv21Rotator.getRotatedWidth(WIDTH, HEIGHT, rotation);
+                final int height = Nv21Rotator.getRotatedHeight(WIDTH, HEIGHT, rotation);
+                RgbConverter.nv21ToArgb(rotated, width, height, width, 0, false, expected, false);
+                RgbConverter.nv21ToArgb(mNv21, WIDTH, HEIGHT, WIDTH, rotation, mirror, actual,
+                        true);
+                assertArrayEquals(rotation + (mirror ? " mirrored" : ""), expected, actual);
+            }
+        }
+    }
+
+    @Test
+    public void i420MatchesNv21() {
+        final int lumaSize = WIDTH * HEIGHT;
+        final int chromaSize = lumaSize / 4;
+        byte[] i420 = new byte[mNv21.length];
+        System.arraycopy(mNv21, 0, i420, 0, lumaSize);
+        for (int i = 0; i < chromaSize; i++) {
+            i420[lumaSize + i] = mNv21[lumaSize + 2 * i + 1];
+            i420[lumaSize + chromaSize + i] = mNv21[lumaSize + 2 * i];
+        }
+        int[] expected = new int[lumaSize];
+        int[] actual = new int[lumaSize];
+        RgbConverter.nv21ToArgb(mNv21, WIDTH, HEIGHT, WIDTH, 270, false, expected, false);
+        RgbConverter.i420ToArgb(i420, WIDTH, HEIGHT, WIDTH, 270, false, actual, false);
+        assertArrayEquals(expected, actual);
+    }
+
+    @Test
+    public void rowPadding() {
+        final int rowStride = WIDTH + 16;
+        byte[] padded = new byte[rowStride * HEIGHT * 3 / 2];
+        for (int y = 0; y < HEIGHT * 3 / 2; y++) {
+            System.arraycopy(mNv21, y * WIDTH, padded, y * rowStride, WIDTH);
+        }
+        int[] expected = new int[WIDTH * HEIGHT];
+        int[] actual = new int[WIDTH * HEIGHT];
+        RgbConverter.nv21ToArgb(mNv21, WIDTH, HEIGHT, WIDTH, 180, true, expected, false);
+        RgbConverter.nv21ToArgb(padded, WIDTH, HEIGHT, rowStride, 180, true, actual, false);
+        assertArrayEquals(expected, actual);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void outputTooSmall() {
+        RgbConverter.nv21ToArgb(mNv21, WIDTH, HEIGHT, WIDTH, 0, false, new int[WIDTH], false);
+    }
+
+    /**
+     * @return R, G and B of the BT.601 limited-range matrix, rounded and clamped.
+     */
+    private static int[] bt601(int y, int u, int v) {
+        // Like the converter, footroom below 16 is black
+        final double luma = 1.164 * Math.max(0, y - 16);
+        return new int[]{
+                clamp(luma + 1.596 * (v - 128)),
+                clamp(luma - 0.392 * (u - 128) - 0.813 * (v - 128)),
+                clamp(luma + 2.017 * (u - 128)),
+        };
+    }
+
+    private static int clamp(double value) {
+        return (int) Math.max(0, Math.min(255, Math.round(value)));
+    }
+
+    private static void assertNear(int expected, int actual) {
+        assertTrue("expected " + expected + " but was " + actual,
+                Math.abs(expected - actual) <= TOLERANCE);
+    }
+
+}
@@ -0,0 +1,116 @@
+package com.readsense.cameraview.camera;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Builds catalogs from the kind of size lists cameras report, unordered and with duplicates, and
+ * checks the lookups the size selection relies on.
+ */
+public class SizeCatalogTest {
+
+    private final SizeCatalog mCatalog = SizeCatalog.of(new long[]{
+            size(1920, 1080), size(640, 480), size(1280, 720), size(320, 240),
+            size(1440, 1080), size(640, 480), size(176, 144), size(0, 480), size(1600, 1200),
+    });
+
+    @Test
+    public void groupsByReducedRatio() {
+        // 11:9, 4:3 and 16:9, ascending by packed ratio
+        assertEquals(3, mCatalog.getRatioCount());
+        final int fourThree = mCatalog.findRatio(4, 3);
+        assertEquals(fourThree, mCatalog.findRatio(640, 480));
+        assertEquals(fourThree, mCatalog.findRatio(1440, 1080));
+        assertEquals(4f / 3, mCatalog.getRatio(fourThree), 1e-6);
+        assertEquals(4, mCatalog.getSizeCount(fourThree));
+        assertEquals(2, mCatalog.getSizeCount(mCatalog.findRatio(16, 9)));
+        assertEquals(1, mCatalog.getSizeCount(mCatalog.findRatio(176, 144)));
+    }
+
+    @Test
+    public void sizesAscendWithoutDuplicates() {
+        final int fourThree = mCatalog.findRatio(4, 3);
+        assertEquals(size(320, 240), mCatalog.getSize(fourThree, 0));
+        assertEquals(size(640, 480), mCatalog.getSize(fourThree, 1));
+        assertEquals(size(1440, 1080), mCatalog.getSize(fourThree, 2));
+        assertEquals(size(1600, 1200), mCatalog.getSize(fourThree, 3));
+    }
+
+    @Test
+    public void findRatio() {
+        assertEquals(-1, mCatalog.findRatio(1, 1));
+        assertEquals(-1, mCatalog.findRatio(0, 480));
+        assertEquals(-1, mCatalog.findRatio(-4, 3));
+    }
+
+    @Test
+    public void contains() {
+        assertTrue(mCatalog.contains(1440, 1080));
+        assertTrue(mCatalog.contains(176, 144));
+        assertFalse(mCatalog.contains(1280, 960));
+        assertFalse(mCatalog.contains(1080, 1440));
+        assertFalse(mCatalog.contains(0, 480));
+    }
+
+    @Test
+    public void indexOfAtLeast() {
+        final int fourThree = mCatalog.findRatio(4, 3);
+        assertEquals(0, mCatalog.indexOfAtLeast(fourThree, 1, 1));
+        assertEquals(1, mCatalog.indexOfAtLeast(fourThree, 640, 480));
+        assertEquals(2, mCatalog.indexOfAtLeast(fourThree, 641, 0));
+        // A height of 481 needs at least 642 wide in 4:3
+        assertEquals(2, mCatalog.indexOfAtLeast(fourThree, 0, 481));
+        assertEquals(3, mCatalog.indexOfAtLeast(fourThree, 1500, 480));
+        assertEquals(-1, mCatalog.indexOfAtLeast(fourThree, 1601, 1200));
+        assertEquals(-1, mCatalog.indexOfAtLeast(fourThree, 0, Integer.MAX_VALUE));
+    }
+
+    @Test
+    public void smallestAtLeast() {
+        final int sixteenNine = mCatalog.findRatio(16, 9);
+        assertEquals(size(1280, 720), mCatalog.smallestAtLeast(sixteenNine, 1000, 500));
+        assertEquals(size(1920, 1080), mCatalog.smallestAtLeast(sixteenNine, 1000, 721));
+        assertEquals(SizeCatalog.NONE, mCatalog.smallestAtLeast(sixteenNine, 3840, 2160));
+    }
+
+    @Test
+    public void largestAtMost() {
+        final int fourThree = mCatalog.findRatio(4, 3);
+        assertEquals(size(1440, 1080), mCatalog.largestAtMost(fourThree, 1920, 1080));
+        assertEquals(size(640, 480), mCatalog.largestAtMost(fourThree, 1000, 1000));
+        assertEquals(SizeCatalog.NONE, mCatalog.largestAtMost(fourThree, 300, 300));
+    }
+
+    @Test
+    public void largestAndAll() {
+        assertEquals(size(1920, 1080), mCatalog.getLargest());
+        assertArrayEquals(new long[]{size(176, 144), size(320, 240), size(640, 480),
+                size(1280, 720), size(1440, 1080), size(1600, 1200), size(1920, 1080)},
+                mCatalog.toArray());
+    }
+
+    @Test
+    public void empty() {
+        SizeCatalog catalog = SizeCatalog.of(new long[]{size(0, 0)});
+        assertEquals(0, catalog.getRatioCount());
+        assertEquals(SizeCatalog.NONE, catalog.getLargest());
+        assertEquals(-1, catalog.findRatio(4, 3));
+        assertEquals(0, catalog.toArray().length);
+    }
+
+    @Test
+    public void packing() {
+        final long packed = size(4032, 3024);
+        assertEquals(4032, SizeCatalog.width(packed));
+        assertEquals(3024, SizeCatalog.height(packed));
+    }
+
+    private static long size(int width, int height) {
+        return SizeCatalog.pack(width, height);
+    }
+
+}